@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.regexp;
+
+/**
+ * A named capture group of a {@link Pattern2}, resolved to its group number.
+ *
+ * <p>Resolve a handle once with {@link Pattern2#groupHandle(String)} and use
+ * it with {@link Matcher2#group(GroupHandle)}, {@link Matcher2#start(GroupHandle)}
+ * and {@link Matcher2#end(GroupHandle)} to read the group without looking up
+ * its name on each call. Instances are immutable.</p>
+ *
+ * @since 0.2.5
+ */
+public final class GroupHandle {
+
+    private final Pattern2 pattern;
+    private final String name;
+    private final int index;
+    private final int group;
+
+    GroupHandle(Pattern2 pattern, String name, int index, int group) {
+        this.pattern = pattern;
+        this.name = name;
+        this.index = index;
+        this.group = group;
+    }
+
+    /**
+     * Gets the pattern that contains the named group
+     *
+     * @return the pattern
+     */
+    public Pattern2 pattern() {
+        return pattern;
+    }
+
+    /**
+     * Gets the name of the group
+     *
+     * @return the group name
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Gets the instance index of the group among the groups with the same
+     * name (0 for the first instance)
+     *
+     * @return the instance index
+     */
+    public int index() {
+        return index;
+    }
+
+    /**
+     * Gets the number of the capture group, as used by
+     * {@link Matcher2#group(int)}
+     *
+     * @return the group number
+     */
+    public int group() {
+        return group;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return name + "[" + index + "]=" + group;
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.regexp;
+
+/**
+ * A match result whose groups can also be read by {@link GroupHandle} and
+ * as views of the input, without copying them.
+ *
+ * @since 0.2.5
+ */
+public interface MatchView extends MatchResult2 {
+
+    /**
+     * Returns the input subsequence captured by the given group during the
+     * previous match operation.
+     *
+     * @param handle handle of the capture group
+     * @return the subsequence
+     */
+    public String group(GroupHandle handle);
+
+    /**
+     * Returns the start index of the subsequence captured by the given group
+     * during this match.
+     *
+     * @param handle handle of the capture group
+     * @return the index
+     */
+    public int start(GroupHandle handle);
+
+    /**
+     * Returns the offset after the last character of the subsequence captured
+     * by the given group during this match.
+     *
+     * @param handle handle of the capture group
+     * @return the offset
+     */
+    public int end(GroupHandle handle);
+
+    /**
+     * Returns a view of the input subsequence captured by the given group
+     * during this match, without copying it. The view may be reused by the
+     * next call.
+     *
+     * @param group the index of the capture group
+     * @return the subsequence, or {@code null} if the group did not
+     * participate in the match
+     */
+    public CharSequence groupView(int group);
+
+    /**
+     * Returns a view of the input subsequence captured by the named group
+     * during this match, without copying it. The view may be reused by the
+     * next call.
+     *
+     * @param groupName name of capture group
+     * @return the subsequence, or {@code null} if the group did not
+     * participate in the match
+     */
+    public CharSequence groupView(String groupName);
+
+    /**
+     * Returns a view of the input subsequence captured by the group of the
+     * given handle during this match, without copying it. The view may be
+     * reused by the next call.
+     *
+     * @param handle handle of the capture group
+     * @return the subsequence, or {@code null} if the group did not
+     * participate in the match
+     */
+    public CharSequence groupView(GroupHandle handle);
+
+}
@@ -15,10 +15,17 @@
  */
 package com.google.code.regexp;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.bogdang.modifications.regex.*;
 
 /**
@@ -27,19 +34,33 @@ import org.bogdang.modifications.regex.*;
  *
  * @since 0.1.9
  */
-public class Matcher2 implements MatchResult2 {
+public class Matcher2 implements MatchView {
 
     private Matcher matcher;
     private Pattern2 parentPattern;
 
+    /** the input sequence, or null if not known (in a match result) */
+    private CharSequence input;
+
+    /** whether a match operation was attempted since the last reset */
+    private boolean attempted;
+
+    /** the live view of the named groups, created on first use */
+    private Map<String, String> namedGroupsView;
+
+    /** the read-only view passed to replacers, created on first use */
+    private MatchView matchView;
+
     Matcher2(Pattern2 parentPattern, MatchResult matcher) {
         this.parentPattern = parentPattern;
         this.matcher = (Matcher) matcher;
+        this.attempted = true;
     }
 
     Matcher2(Pattern2 parentPattern, CharSequence input) {
         this.parentPattern = parentPattern;
         this.matcher = parentPattern.pattern().matcher(input);
+        this.input = input;
     }
 
     /**
@@ -72,6 +93,7 @@ public class Matcher2 implements MatchResult2 {
         }
         this.parentPattern = newPattern;
         matcher.usePattern(newPattern.pattern());
+        attempted = false;
         return this;
     }
 
@@ -82,6 +104,7 @@ public class Matcher2 implements MatchResult2 {
      */
     public Matcher2 reset() {
         matcher.reset();
+        attempted = false;
         return this;
     }
 
@@ -99,6 +122,8 @@ public class Matcher2 implements MatchResult2 {
      */
     public Matcher2 reset(CharSequence input) {
         matcher.reset(input);
+        this.input = input;
+        attempted = false;
         return this;
     }
 
@@ -112,6 +137,7 @@ public class Matcher2 implements MatchResult2 {
      * matches this matcher's pattern
      */
     public boolean matches() {
+        attempted = true;
         return matcher.matches();
     }
 
@@ -140,6 +166,7 @@ public class Matcher2 implements MatchResult2 {
      * @return
      */
     public boolean find() {
+        attempted = true;
         return matcher.find();
     }
 
@@ -159,6 +186,7 @@ public class Matcher2 implements MatchResult2 {
      * is greater than the length of the input sequence.
      */
     public boolean find(int start) {
+        attempted = true;
         return matcher.find(start);
     }
 
@@ -177,6 +205,7 @@ public class Matcher2 implements MatchResult2 {
      * matches this matcher's pattern
      */
     public boolean lookingAt() {
+        attempted = true;
         return matcher.lookingAt();
     }
 
@@ -188,7 +217,24 @@ public class Matcher2 implements MatchResult2 {
      * @return The target string builder
      */
     public Matcher2 appendReplacement(StringBuilder sb, String replacement) {
-        matcher.appendReplacement(sb, parentPattern.replaceProperties(replacement));
+        return appendReplacement(sb, parentPattern.compileReplacement(replacement));
+    }
+
+    /**
+     * Implements a non-terminal append-and-replace step with a replacement
+     * compiled by {@link Pattern2#compileReplacement(String)}.
+     *
+     * @param sb The target string builder
+     * @param replacement The compiled replacement
+     * @return this Matcher
+     * @throws IllegalArgumentException if the replacement was compiled for
+     * another pattern
+     * @since 0.2.5
+     */
+    public Matcher2 appendReplacement(StringBuilder sb, Replacement replacement) {
+        checkReplacement(replacement);
+        matcher.appendInterveningText(sb);
+        replacement.appendTo(sb, this);
         return this;
     }
 
@@ -258,17 +304,193 @@ public class Matcher2 implements MatchResult2 {
      * @throws IndexOutOfBoundsException if group name not found
      */
     public String group(String groupName) {
-        int idx = groupIndex(groupName);
-        if (idx < 0) {
-          throw new IndexOutOfBoundsException("No group \"" + groupName + "\"");
-        }
-        return group(idx);
+        return group(requireGroupIndex(groupName));
+    }
+
+    /**
+     * Returns the input subsequence captured by the group of the given
+     * handle during the previous match operation.
+     *
+     * @param handle handle of the capture group, resolved from this
+     * matcher's pattern
+     * @return the subsequence
+     * @throws IllegalArgumentException if the handle belongs to another pattern
+     * @since 0.2.5
+     */
+    public String group(GroupHandle handle) {
+        return group(groupIndex(handle));
+    }
+
+    /**
+     * Returns a view of the input subsequence captured by the given group
+     * during the previous match operation, without copying it. The same
+     * view object is reused by every call, so the view is only valid until
+     * the next call to a {@code groupView} method of this matcher.
+     *
+     * @param group The index of a capturing group in this matcher's pattern
+     * @return the subsequence, or {@code null} if the group did not
+     * participate in the match
+     * @throws IllegalStateException If no match has yet been attempted, or
+     * if the previous match operation failed
+     * @since 0.2.5
+     */
+    public CharSequence groupView(int group) {
+        return matcher.groupView(group);
+    }
+
+    /**
+     * Returns a view of the input subsequence captured by the named group
+     * during the previous match operation, without copying it (see
+     * {@link #groupView(int)}).
+     *
+     * @param groupName name of the capture group
+     * @return the subsequence, or {@code null} if the group did not
+     * participate in the match
+     * @throws IndexOutOfBoundsException if group name not found
+     * @since 0.2.5
+     */
+    public CharSequence groupView(String groupName) {
+        return groupView(requireGroupIndex(groupName));
+    }
+
+    /**
+     * Returns a view of the input subsequence captured by the group of the
+     * given handle during the previous match operation, without copying it
+     * (see {@link #groupView(int)}).
+     *
+     * @param handle handle of the capture group
+     * @return the subsequence, or {@code null} if the group did not
+     * participate in the match
+     * @throws IllegalArgumentException if the handle belongs to another pattern
+     * @since 0.2.5
+     */
+    public CharSequence groupView(GroupHandle handle) {
+        return groupView(groupIndex(handle));
+    }
+
+    /**
+     * Returns the start and end indices of the subsequence captured by the
+     * given group during the previous match operation, packed in a long.
+     * Use {@link #spanStart(long)} and {@link #spanEnd(long)} to unpack them.
+     *
+     * @param group The index of a capturing group in this matcher's pattern
+     * @return the packed span, or -1 if the group did not participate in
+     * the match
+     * @throws IllegalStateException If no match has yet been attempted, or
+     * if the previous match operation failed
+     * @since 0.2.5
+     */
+    public long groupSpan(int group) {
+        return matcher.groupSpan(group);
+    }
+
+    /**
+     * Returns the start and end indices of the subsequence captured by the
+     * named group during the previous match operation, packed in a long
+     * (see {@link #groupSpan(int)}).
+     *
+     * @param groupName name of the capture group
+     * @return the packed span, or -1 if the group did not participate in
+     * the match
+     * @throws IndexOutOfBoundsException if group name not found
+     * @since 0.2.5
+     */
+    public long groupSpan(String groupName) {
+        return groupSpan(requireGroupIndex(groupName));
     }
 
     /**
-     * Finds all named groups that exist in the input string. This resets the
-     * matcher and attempts to match the input against the pre-specified
-     * pattern.
+     * Returns the start and end indices of the subsequence captured by the
+     * group of the given handle during the previous match operation, packed
+     * in a long (see {@link #groupSpan(int)}).
+     *
+     * @param handle handle of the capture group
+     * @return the packed span, or -1 if the group did not participate in
+     * the match
+     * @throws IllegalArgumentException if the handle belongs to another pattern
+     * @since 0.2.5
+     */
+    public long groupSpan(GroupHandle handle) {
+        return groupSpan(groupIndex(handle));
+    }
+
+    /**
+     * Gets the start index of a span returned by {@code groupSpan}
+     *
+     * @param span the packed span
+     * @return the start index, or -1 if the span is -1
+     * @since 0.2.5
+     */
+    public static int spanStart(long span) {
+        return Matcher.spanStart(span);
+    }
+
+    /**
+     * Gets the end index of a span returned by {@code groupSpan}
+     *
+     * @param span the packed span
+     * @return the end index, or -1 if the span is -1
+     * @since 0.2.5
+     */
+    public static int spanEnd(long span) {
+        return Matcher.spanEnd(span);
+    }
+
+    /**
+     * Appends the input subsequence captured by the given group during the
+     * previous match operation to a string builder, without creating an
+     * intermediate string. Nothing is appended if the group did not
+     * participate in the match.
+     *
+     * @param sb the target string builder
+     * @param group The index of a capturing group in this matcher's pattern
+     * @return the target string builder
+     * @throws IllegalStateException If no match has yet been attempted, or
+     * if the previous match operation failed
+     * @since 0.2.5
+     */
+    public StringBuilder appendGroup(StringBuilder sb, int group) {
+        return matcher.appendGroup(sb, group);
+    }
+
+    /**
+     * Appends the input subsequence captured by the named group during the
+     * previous match operation to a string builder (see
+     * {@link #appendGroup(StringBuilder, int)}).
+     *
+     * @param sb the target string builder
+     * @param groupName name of the capture group
+     * @return the target string builder
+     * @throws IndexOutOfBoundsException if group name not found
+     * @since 0.2.5
+     */
+    public StringBuilder appendGroup(StringBuilder sb, String groupName) {
+        return appendGroup(sb, requireGroupIndex(groupName));
+    }
+
+    /**
+     * Appends the input subsequence captured by the group of the given
+     * handle during the previous match operation to a string builder (see
+     * {@link #appendGroup(StringBuilder, int)}).
+     *
+     * @param sb the target string builder
+     * @param handle handle of the capture group
+     * @return the target string builder
+     * @throws IllegalArgumentException if the handle belongs to another pattern
+     * @since 0.2.5
+     */
+    public StringBuilder appendGroup(StringBuilder sb, GroupHandle handle) {
+        return appendGroup(sb, groupIndex(handle));
+    }
+
+    /**
+     * Gets the named groups of the current match. If no match operation
+     * was attempted since this matcher was created or reset, this first
+     * attempts to find a match starting at the beginning of the input.
+     *
+     * <p>The returned map is a copy that is unaffected by subsequent
+     * operations performed upon this matcher. Use
+     * {@link #namedGroupsView()} to avoid the copy.</p>
      *
      * @return a map of the group named and matched values
      * (empty if no match found)
@@ -276,7 +498,10 @@ public class Matcher2 implements MatchResult2 {
     public Map<String, String> namedGroups() {
         Map<String, String> result = new LinkedHashMap<String, String>();
 
-        if (matcher.find(0)) {
+        if (!attempted) {
+            find(0);
+        }
+        if (matcher.hasMatch()) {
             for (String groupName : parentPattern.groupNames()) {
                 String groupValue = matcher.group(groupIndex(groupName));
                 result.put(groupName, groupValue);
@@ -285,6 +510,25 @@ public class Matcher2 implements MatchResult2 {
         return result;
     }
 
+    /**
+     * Gets a read-only view of the named groups of the current match. The
+     * view is backed by this matcher, so it always reflects the latest
+     * match (and is empty while there is no match). The same view is
+     * returned on every call.
+     *
+     * <p>Unlike {@link #namedGroups()}, this never performs a match
+     * operation.</p>
+     *
+     * @return a map view of the group names and matched values
+     * @since 0.2.5
+     */
+    public Map<String, String> namedGroupsView() {
+        if (namedGroupsView == null) {
+            namedGroupsView = new NamedGroupsView();
+        }
+        return namedGroupsView;
+    }
+
     /**
      * Gets the index of a named capture group
      *
@@ -299,6 +543,37 @@ public class Matcher2 implements MatchResult2 {
         return idx > -1 ? idx + 1 : -1;
     }
 
+    /**
+     * Gets the index of a named capture group that must exist
+     *
+     * @param groupName name of capture group
+     * @return the group index
+     * @throws IndexOutOfBoundsException if group name not found
+     */
+    private int requireGroupIndex(String groupName) {
+        int idx = groupIndex(groupName);
+        if (idx < 0) {
+          throw new IndexOutOfBoundsException("No group \"" + groupName + "\"");
+        }
+        return idx;
+    }
+
+    /**
+     * Gets the index of the capture group of a handle
+     *
+     * @param handle handle of capture group
+     * @return the group index
+     * @throws IllegalArgumentException if the handle belongs to another pattern
+     */
+    private int groupIndex(GroupHandle handle) {
+        Pattern2 p = handle.pattern();
+        if (p != parentPattern && !p.equals(parentPattern)) {
+            throw new IllegalArgumentException("Group handle " + handle
+                    + " does not belong to this matcher's pattern");
+        }
+        return handle.group();
+    }
+
     /**
      * Returns the start index of the previous match.
      *
@@ -330,6 +605,19 @@ public class Matcher2 implements MatchResult2 {
         return start(groupIndex(groupName));
     }
 
+    /**
+     * Returns the start index of the subsequence captured by the group of
+     * the given handle during the previous match operation.
+     *
+     * @param handle handle of the capture group
+     * @return the index
+     * @throws IllegalArgumentException if the handle belongs to another pattern
+     * @since 0.2.5
+     */
+    public int start(GroupHandle handle) {
+        return start(groupIndex(handle));
+    }
+
     /**
      * Returns the offset after the last character matched.
      *
@@ -361,6 +649,20 @@ public class Matcher2 implements MatchResult2 {
         return end(groupIndex(groupName));
     }
 
+    /**
+     * Returns the offset after the last character of the subsequence
+     * captured by the group of the given handle during the previous match
+     * operation.
+     *
+     * @param handle handle of the capture group
+     * @return the offset
+     * @throws IllegalArgumentException if the handle belongs to another pattern
+     * @since 0.2.5
+     */
+    public int end(GroupHandle handle) {
+        return end(groupIndex(handle));
+    }
+
     /**
      * Sets the limits of this matcher's region.
      *
@@ -370,6 +672,7 @@ public class Matcher2 implements MatchResult2 {
      */
     public Matcher2 region(int start, int end) {
         matcher.region(start, end);
+        attempted = false;
         return this;
     }
 
@@ -441,8 +744,32 @@ public class Matcher2 implements MatchResult2 {
      * the replacement string, substituting captured subsequences as needed
      */
     public String replaceAll(String replacement) {
-        String r = parentPattern.replaceProperties(replacement);
-        return matcher.replaceAll(r);
+        return replaceAll(Replacement.compile(parentPattern, replacement, false));
+    }
+
+    /**
+     * Replaces every subsequence of the input sequence that matches the pattern
+     * with a replacement compiled by {@link Pattern2#compileReplacement(String)}.
+     *
+     * @param replacement The compiled replacement
+     * @return The string constructed by replacing each matching subsequence by
+     * the replacement, substituting captured subsequences as needed
+     * @throws IllegalArgumentException if the replacement was compiled for
+     * another pattern
+     * @since 0.2.5
+     */
+    public String replaceAll(Replacement replacement) {
+        checkReplacement(replacement);
+        reset();
+        if (!find()) {
+            return inputString();
+        }
+        StringBuilder sb = new StringBuilder();
+        do {
+            matcher.appendInterveningText(sb);
+            replacement.appendTo(sb, this);
+        } while (find());
+        return matcher.appendTail(sb).toString();
     }
 
     /**
@@ -454,7 +781,132 @@ public class Matcher2 implements MatchResult2 {
      * by the replacement string, substituting captured subsequences as needed
      */
     public String replaceFirst(String replacement) {
-        return matcher.replaceFirst(parentPattern.replaceProperties(replacement));
+        return replaceFirst(Replacement.compile(parentPattern, replacement, false));
+    }
+
+    /**
+     * Replaces the first subsequence of the input sequence that matches the
+     * pattern with a replacement compiled by
+     * {@link Pattern2#compileReplacement(String)}.
+     *
+     * @param replacement The compiled replacement
+     * @return The string constructed by replacing the first matching subsequence
+     * by the replacement, substituting captured subsequences as needed
+     * @throws IllegalArgumentException if the replacement was compiled for
+     * another pattern
+     * @since 0.2.5
+     */
+    public String replaceFirst(Replacement replacement) {
+        checkReplacement(replacement);
+        reset();
+        if (!find()) {
+            return inputString();
+        }
+        StringBuilder sb = new StringBuilder();
+        matcher.appendInterveningText(sb);
+        replacement.appendTo(sb, this);
+        return matcher.appendTail(sb).toString();
+    }
+
+    /**
+     * Replaces every subsequence of the input sequence that matches the pattern
+     * with the text computed for it by a replacer. The text is appended as is,
+     * without expanding group references.
+     *
+     * @param replacer computes the replacement of each match
+     * @return The string constructed by replacing each matching subsequence by
+     * the text computed by the replacer
+     * @since 0.2.5
+     */
+    public String replaceAll(Replacer replacer) {
+        reset();
+        if (!find()) {
+            return inputString();
+        }
+        MatchView view = matchView();
+        StringBuilder sb = new StringBuilder();
+        do {
+            matcher.appendInterveningText(sb);
+            appendReplacer(sb, replacer, view);
+        } while (find());
+        return matcher.appendTail(sb).toString();
+    }
+
+    /**
+     * Replaces the first subsequence of the input sequence that matches the
+     * pattern with the text computed for it by a replacer. The text is
+     * appended as is, without expanding group references.
+     *
+     * @param replacer computes the replacement of the match
+     * @return The string constructed by replacing the first matching subsequence
+     * by the text computed by the replacer
+     * @since 0.2.5
+     */
+    public String replaceFirst(Replacer replacer) {
+        reset();
+        if (!find()) {
+            return inputString();
+        }
+        StringBuilder sb = new StringBuilder();
+        matcher.appendInterveningText(sb);
+        appendReplacer(sb, replacer, matchView());
+        return matcher.appendTail(sb).toString();
+    }
+
+    /**
+     * Appends the text computed by a replacer for the current match
+     *
+     * @param sb the target string builder
+     * @param replacer the replacer
+     * @param view the read-only view of this matcher
+     */
+    static private void appendReplacer(StringBuilder sb, Replacer replacer, MatchView view) {
+        CharSequence text = replacer.replace(view);
+        if (text == null) {
+            throw new NullPointerException("Replacer returned null");
+        }
+        sb.append(text);
+    }
+
+    /**
+     * Gets the read-only view of this matcher that is passed to replacers
+     *
+     * @return the view
+     */
+    private MatchView matchView() {
+        if (matchView == null) {
+            matchView = new ReadOnlyView();
+        }
+        return matchView;
+    }
+
+    /**
+     * Checks that a compiled replacement refers to the groups of this
+     * matcher's pattern
+     *
+     * @param replacement the replacement
+     * @throws IllegalArgumentException if the replacement was compiled for
+     * another pattern
+     */
+    private void checkReplacement(Replacement replacement) {
+        Pattern2 p = replacement.pattern();
+        if (p != parentPattern && !p.equals(parentPattern)) {
+            throw new IllegalArgumentException("Replacement \"" + replacement
+                    + "\" was not compiled for this matcher's pattern");
+        }
+    }
+
+    /**
+     * Gets the whole input sequence as a string
+     *
+     * @return the input
+     */
+    private String inputString() {
+        if (input != null) {
+            return input.toString();
+        }
+        matcher.reset();
+        return matcher.appendTail(new StringBuilder()).toString();
     }
 
     /**
@@ -468,6 +920,52 @@ public class Matcher2 implements MatchResult2 {
         return this;
     }
 
+    /**
+     * Limits the number of steps each match operation of this matcher can
+     * take, so that a pattern that backtracks a lot on some input fails
+     * with a {@link MatchBudgetExceededException} instead of running for
+     * a very long time. The budget is kept across resets.
+     *
+     * @param steps the largest number of steps of a match operation, or a
+     * negative number for no limit
+     * @return this Matcher
+     * @see Matcher#useStepBudget(long)
+     * @since 0.2.5
+     */
+    public Matcher2 useStepBudget(long steps) {
+        matcher.useStepBudget(steps);
+        return this;
+    }
+
+    /**
+     * Gets the largest number of steps each match operation of this matcher
+     * can take
+     *
+     * @return the step budget, or -1 if there is no limit
+     * @since 0.2.5
+     */
+    public long stepBudget() {
+        return matcher.stepBudget();
+    }
+
+    /**
+     * Sets a deadline for the match operations of this matcher, the given
+     * amount of time from now. An operation that is still running at the
+     * deadline, or that is started after it, throws a
+     * {@link MatchBudgetExceededException}.
+     *
+     * @param timeout the time from now to the deadline, or a negative
+     * number for no deadline
+     * @param unit the unit of the timeout
+     * @return this Matcher
+     * @see Matcher#useDeadline(long, TimeUnit)
+     * @since 0.2.5
+     */
+    public Matcher2 useDeadline(long timeout, TimeUnit unit) {
+        matcher.useDeadline(timeout, unit);
+        return this;
+    }
+
     /**
      * Sets the transparency of region bounds for this matcher.
      *
@@ -517,4 +1015,156 @@ public class Matcher2 implements MatchResult2 {
     public String toString() {
         return matcher.toString();
     }
+
+    /**
+     * Map of the group names to the values captured by the current match,
+     * read from the matcher on each access
+     */
+    private class NamedGroupsView extends AbstractMap<String, String> {
+
+        private final Set<Entry<String, String>> entrySet = new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private final List<String> names = matcher.hasMatch()
+                            ? parentPattern.groupNames()
+                            : Collections.<String>emptyList();
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < names.size();
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        String name = names.get(next++);
+                        return new SimpleImmutableEntry<String, String>(name, get(name));
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return NamedGroupsView.this.size();
+            }
+        };
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return entrySet;
+        }
+
+        @Override
+        public int size() {
+            return matcher.hasMatch() ? parentPattern.groupNames().size() : 0;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return matcher.hasMatch() && key instanceof String
+                    && parentPattern.indexOf((String) key) >= 0;
+        }
+
+        @Override
+        public String get(Object key) {
+            if (!(key instanceof String) || !matcher.hasMatch()) {
+                return null;
+            }
+            int idx = groupIndex((String) key);
+            return idx < 0 ? null : matcher.group(idx);
+        }
+    }
+
+    /**
+     * Read-only view of the current match of this matcher
+     */
+    private class ReadOnlyView implements MatchView {
+
+        public int start() {
+            return Matcher2.this.start();
+        }
+
+        public int start(int group) {
+            return Matcher2.this.start(group);
+        }
+
+        public int start(String groupName) {
+            return Matcher2.this.start(groupName);
+        }
+
+        public int start(GroupHandle handle) {
+            return Matcher2.this.start(handle);
+        }
+
+        public int end() {
+            return Matcher2.this.end();
+        }
+
+        public int end(int group) {
+            return Matcher2.this.end(group);
+        }
+
+        public int end(String groupName) {
+            return Matcher2.this.end(groupName);
+        }
+
+        public int end(GroupHandle handle) {
+            return Matcher2.this.end(handle);
+        }
+
+        public String group() {
+            return Matcher2.this.group();
+        }
+
+        public String group(int group) {
+            return Matcher2.this.group(group);
+        }
+
+        public String group(String groupName) {
+            return Matcher2.this.group(groupName);
+        }
+
+        public String group(GroupHandle handle) {
+            return Matcher2.this.group(handle);
+        }
+
+        public CharSequence groupView(int group) {
+            return Matcher2.this.groupView(group);
+        }
+
+        public CharSequence groupView(String groupName) {
+            return Matcher2.this.groupView(groupName);
+        }
+
+        public CharSequence groupView(GroupHandle handle) {
+            return Matcher2.this.groupView(handle);
+        }
+
+        public int groupCount() {
+            return Matcher2.this.groupCount();
+        }
+
+        public List<String> orderedGroups() {
+            return Matcher2.this.orderedGroups();
+        }
+
+        public Map<String, String> namedGroups() {
+            // the matcher always has a match while the view is in use
+            return new LinkedHashMap<String, String>(namedGroupsView());
+        }
+
+        @Override
+        public String toString() {
+            return Matcher2.this.toString();
+        }
+    }
 }
@@ -17,11 +17,14 @@ package com.google.code.regexp;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import org.bogdang.modifications.regex.*;
 
 /**
@@ -50,12 +53,6 @@ public class Pattern2 implements Serializable {
     /** Pattern to match group names */
     private static final String NAME_PATTERN = "[^!=].*?";
 
-    /** Pattern to match named capture groups in a pattern string */
-    private static final Pattern NAMED_GROUP_PATTERN = Pattern.compile("\\(\\?<(" + NAME_PATTERN + ")>", Pattern.DOTALL);
-
-    /** Pattern to match back references for named capture groups */
-    private static final Pattern BACKREF_NAMED_GROUP_PATTERN = Pattern.compile("\\\\k<(" + NAME_PATTERN + ")>", Pattern.DOTALL);
-
     /** Pattern to match properties for named capture groups in a replacement string */
     private static final Pattern PROPERTY_PATTERN = Pattern.compile("\\$\\{(" + NAME_PATTERN + ")\\}", Pattern.DOTALL);
 
@@ -86,6 +83,26 @@ public class Pattern2 implements Serializable {
     /** @see @link {@link Pattern#CANON_EQ} */
     public static final int CANON_EQ = Pattern.CANON_EQ;
 
+    /**
+     * Compiles the named pattern as is, letting the regex parser resolve
+     * the group names instead of rewriting them into numbered groups
+     * beforehand. In this mode, {@link #standardPattern()} returns the
+     * named pattern. Ignored when combined with {@link #CANON_EQ}.
+     *
+     * @see {@link Pattern#EXTENDED_GROUP_NAMES}
+     * @since 0.2.5
+     */
+    public static final int DIRECT_NAMED_GROUPS = Pattern.EXTENDED_GROUP_NAMES;
+
+    /**
+     * Matches the pattern in a time linear in the length of the input when
+     * it only uses regular constructs, with the same groups as otherwise.
+     *
+     * @see {@link Pattern#LINEAR_TIME}
+     * @since 0.2.5
+     */
+    public static final int LINEAR_TIME = Pattern.LINEAR_TIME;
+
     private Pattern pattern;
     private String namedPattern;
     private List<String> groupNames;
@@ -105,15 +122,17 @@ public class Pattern2 implements Serializable {
      *   <li>{@link Pattern#UNIX_LINES}</li>
      *   <li>{@link Pattern#LITERAL}</li>
      *   <li>{@link Pattern#COMMENTS}</li>
+     *   <li>{@link #DIRECT_NAMED_GROUPS}</li>
+     *   <li>{@link #LINEAR_TIME}</li>
      * </ul>
      */
     protected Pattern2(String regex, int flags) {
         namedPattern = regex;
 
-        // group info must be parsed before building the standard pattern
-        // because the pattern relies on group info to determine the indexes
-        // of named back-references
-        groupInfo = extractGroupInfo(regex);
+        // the group info and the standard pattern are built in the same
+        // pass because the pattern relies on group info to determine the
+        // indexes of named back-references
+        groupInfo = new LinkedHashMap<String,List<GroupInfo> >();
         pattern = buildStandardPattern(regex, flags);
     }
 
@@ -141,6 +160,8 @@ public class Pattern2 implements Serializable {
      *   <li>{@link Pattern#UNIX_LINES}</li>
      *   <li>{@link Pattern#LITERAL}</li>
      *   <li>{@link Pattern#COMMENTS}</li>
+     *   <li>{@link #DIRECT_NAMED_GROUPS}</li>
+     *   <li>{@link #LINEAR_TIME}</li>
      * </ul>
      * @return the pattern
      */
@@ -148,6 +169,33 @@ public class Pattern2 implements Serializable {
         return new Pattern2(regex, flags);
     }
 
+    /**
+     * Gets the compiled form of the given regular expression from the
+     * {@linkplain PatternCache#defaultCache() default cache}, compiling it
+     * only if it's not already there
+     *
+     * @param regex the expression to be compiled
+     * @return the pattern
+     * @since 0.2.5
+     */
+    public static Pattern2 compileCached(String regex) {
+        return PatternCache.defaultCache().compile(regex, 0);
+    }
+
+    /**
+     * Gets the compiled form of the given regular expression and flags from
+     * the {@linkplain PatternCache#defaultCache() default cache}, compiling
+     * it only if it's not already there
+     *
+     * @param regex the expression to be compiled
+     * @param flags Match flags (see {@link #compile(String, int)})
+     * @return the pattern
+     * @since 0.2.5
+     */
+    public static Pattern2 compileCached(String regex, int flags) {
+        return PatternCache.defaultCache().compile(regex, flags);
+    }
+
     /**
      * Gets the group index of a named capture group
      *
@@ -178,6 +226,41 @@ public class Pattern2 implements Serializable {
         return idx;
     }
 
+    /**
+     * Resolves the first instance of a named capture group to a handle
+     * that can be used to read the group from this pattern's matchers
+     * without looking up the name again
+     *
+     * @param groupName name of capture group
+     * @return the group handle
+     * @throws IndexOutOfBoundsException if group name not found
+     * @since 0.2.5
+     */
+    public GroupHandle groupHandle(String groupName) {
+        return groupHandle(groupName, 0);
+    }
+
+    /**
+     * Resolves the specified instance of a named capture group to a handle
+     * that can be used to read the group from this pattern's matchers
+     * without looking up the name again
+     *
+     * @param groupName name of capture group
+     * @param index the instance index of the named capture group within
+     * the pattern; e.g., index is 2 for the third instance
+     * @return the group handle
+     * @throws IndexOutOfBoundsException if group name not found or if
+     * instance index is out of bounds
+     * @since 0.2.5
+     */
+    public GroupHandle groupHandle(String groupName, int index) {
+        int idx = indexOf(groupName, index);
+        if (idx < 0) {
+            throw new IndexOutOfBoundsException("No group \"" + groupName + "\"");
+        }
+        return new GroupHandle(this, groupName, index, idx + 1);
+    }
+
     /**
      * Returns this pattern's match flags
      *
@@ -197,6 +280,48 @@ public class Pattern2 implements Serializable {
         return new Matcher2(this, input);
     }
 
+    /**
+     * Tells whether the entire input matches this pattern. This is the same
+     * as <code>matcher(input).matches()</code>, but as the bounds of the
+     * match are not needed, patterns without back references, lookaround
+     * or possessive quantifiers are matched in linear time by a DFA.
+     *
+     * @param input The character sequence to be matched
+     * @return true if, and only if, the entire input matches
+     * @since 0.2.5
+     */
+    public boolean matches(CharSequence input) {
+        return pattern.matches(input);
+    }
+
+    /**
+     * Tells whether some part of the input matches this pattern. This is
+     * the same as <code>matcher(input).find()</code>, and uses a DFA when
+     * possible like {@link #matches(CharSequence)}.
+     *
+     * @param input The character sequence to be searched
+     * @return true if, and only if, some part of the input matches
+     * @since 0.2.5
+     */
+    public boolean find(CharSequence input) {
+        return pattern.find(input);
+    }
+
+    /**
+     * Analyzes whether this pattern can backtrack catastrophically, so that
+     * untrusted patterns can be rejected before they are used. The result
+     * tells whether the time a failing match takes grows linearly,
+     * polynomially or exponentially with the length of the input, with an
+     * input that shows it.
+     *
+     * @return the analysis of this pattern
+     * @see Pattern#analyze()
+     * @since 0.2.5
+     */
+    public PatternAnalysis analyze() {
+        return pattern.analyze();
+    }
+
     /**
      * Returns the wrapped {@link Pattern}
      * @return the pattern
@@ -207,6 +332,7 @@ public class Pattern2 implements Serializable {
 
     /**
      * Returns the regular expression from which this pattern was compiled.
+     * This is the named pattern if {@link #DIRECT_NAMED_GROUPS} is set.
      *
      * @return The source of this pattern
      */
@@ -270,6 +396,28 @@ public class Pattern2 implements Serializable {
                 ).toString();
     }
 
+    /**
+     * Parses a replacement string once, so that it can be used with
+     * {@link Matcher2#replaceAll(Replacement)},
+     * {@link Matcher2#replaceFirst(Replacement)} and
+     * {@link Matcher2#appendReplacement(StringBuilder, Replacement)} on
+     * matchers of this pattern without being parsed for each match.
+     *
+     * <p>Named references (e.g., <b><code>${named}</code></b>) are resolved
+     * to the first group with that name, as in
+     * {@link #replaceProperties(String)}.</p>
+     *
+     * @param replacement the replacement string
+     * @return the compiled replacement
+     * @throws PatternSyntaxException if a group name is unknown
+     * @throws IllegalArgumentException if the replacement string is malformed
+     * @throws IndexOutOfBoundsException if a group number is out of bounds
+     * @since 0.2.5
+     */
+    public Replacement compileReplacement(String replacement) {
+        return Replacement.compile(this, replacement);
+    }
+
     /**
      * Splits the given input sequence around matches of this pattern.
      *
@@ -312,6 +460,80 @@ public class Pattern2 implements Serializable {
         return pattern.split(input);
     }
 
+    /**
+     * Splits the given input sequence around matches of this pattern,
+     * passing the offsets of each segment to a consumer instead of
+     * collecting the segments. The segments are the same as those returned
+     * by {@link #split(CharSequence, int)}.
+     *
+     * @param input The character sequence to be split
+     * @param limit The result threshold (see {@link #split(CharSequence, int)})
+     * @param consumer receives the start and end offsets of each segment
+     * @since 0.2.5
+     */
+    public void split(CharSequence input, int limit, SplitConsumer consumer) {
+        Splitter splitter = new Splitter(pattern, input, limit);
+        while (splitter.next()) {
+            consumer.accept(splitter.start(), splitter.end());
+        }
+    }
+
+    /**
+     * Lazily splits the given input sequence around matches of this
+     * pattern. The segments are the same as those returned by
+     * {@link #split(CharSequence)}, but each is found only when the
+     * iterator is advanced.
+     *
+     * @param input The character sequence to be split
+     * @return an iterator over the segments
+     * @since 0.2.5
+     */
+    public Iterator<CharSequence> splitIterator(CharSequence input) {
+        return splitIterator(input, 0);
+    }
+
+    /**
+     * Lazily splits the given input sequence around matches of this
+     * pattern. The segments are the same as those returned by
+     * {@link #split(CharSequence, int)}, but each is found only when the
+     * iterator is advanced.
+     *
+     * @param input The character sequence to be split
+     * @param limit The result threshold (see {@link #split(CharSequence, int)})
+     * @return an iterator over the segments
+     * @since 0.2.5
+     */
+    public Iterator<CharSequence> splitIterator(final CharSequence input, int limit) {
+        final Splitter splitter = new Splitter(pattern, input, limit);
+        return new Iterator<CharSequence>() {
+            private boolean ready;
+            private boolean more;
+
+            @Override
+            public boolean hasNext() {
+                if (!ready) {
+                    more = splitter.next();
+                    ready = true;
+                }
+                return more;
+            }
+
+            @Override
+            public CharSequence next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ready = false;
+                return input.subSequence(splitter.start(), splitter.end());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     /**
      * Returns a string representation of this pattern
      *
@@ -391,160 +613,221 @@ public class Pattern2 implements Serializable {
     }
 
     /**
-     * Determines if a string's character is within a regex character class
+     * Parses info on named capture groups from a pattern
      *
-     * @param s string to evaluate
-     * @param pos the position of the character to evaluate
-     * @return true if the character is inside a character class; otherwise false
+     * @param namedPattern regex the regular expression pattern to parse
+     * @return list of group info for all named groups
      */
-    static private boolean isInsideCharClass(String s, int pos) {
-
-        boolean openBracketFound = false;
-        boolean closeBracketFound = false;
+    static public Map<String,List<GroupInfo> > extractGroupInfo(String namedPattern) {
+        Map<String,List<GroupInfo> > groupInfo = new LinkedHashMap<String,List<GroupInfo> >();
+        parseNamedPattern(namedPattern, groupInfo, null);
+        return groupInfo;
+    }
 
-        // find last non-escaped open-bracket
-        String s2 = s.substring(0, pos);
-        int posOpen = pos;
-        while ((posOpen = s2.lastIndexOf('[', posOpen - 1)) != -1) {
-            if (!isEscapedChar(s2, posOpen)) {
-                openBracketFound = true;
-                break;
+    /**
+     * Scans a named pattern once from left to right, collecting the info
+     * of its named capture groups and (optionally) writing the equivalent
+     * standard pattern, in which the named-group construct is replaced with
+     * a left-paren and each named back-reference (e.g.,
+     * <b><code>\k&lt;named></code></b>) is replaced with the numbered
+     * back-reference of the first group with that name.
+     *
+     * <p>The scanner tracks slash-escapes, quotes (between \\Q and \\E)
+     * and character classes as it goes, so the whole pattern is processed in
+     * linear time. Back-references to groups that are defined later in the
+     * pattern are resolved after the scan.</p>
+     *
+     * @param s the named pattern to parse
+     * @param groupInfo the map that receives the group info
+     * @param out the buffer that receives the standard pattern, or
+     * {@code null} if only the group info is needed
+     * @throws PatternSyntaxException a back-reference names an unknown group
+     */
+    static private void parseNamedPattern(String s, Map<String,List<GroupInfo> > groupInfo, StringBuilder out) {
+        final int len = s.length();
+        int groupIndex = 0;     // number of capture groups seen so far
+        int classDepth = 0;     // nesting level of character classes
+        int classStart = -1;    // position just past the last "[" or "[^"
+        boolean inQuote = false;
+
+        // output positions of back-references whose group was not yet defined
+        int[] pending = null;
+        int numPending = 0;
+
+        int copied = 0;         // input position up to which out has been filled
+        int i = 0;
+        while (i < len) {
+            char c = s.charAt(i);
+            if (inQuote) {
+                if (c == '\\' && i + 1 < len && s.charAt(i + 1) == 'E') {
+                    inQuote = false;
+                    i += 2;
+                } else {
+                    i++;
+                }
+                continue;
             }
-        }
 
-        if (openBracketFound) {
-            // search remainder of string (after open-bracket) for a close-bracket
-            String s3 = s.substring(posOpen, pos);
-            int posClose = -1;
-            while ((posClose = s3.indexOf(']', posClose + 1)) != -1) {
-                if (!isEscapedChar(s3, posClose)) {
-                    closeBracketFound = true;
+            if (c == '\\') {
+                if (i + 1 >= len) {
                     break;
                 }
+                char e = s.charAt(i + 1);
+                if (e == 'Q') {
+                    inQuote = true;
+                } else if (e == 'k' && classDepth == 0 && out != null) {
+                    int nameEnd = indexOfName(s, i + 3);
+                    if (nameEnd > 0) {
+                        out.append(s, copied, i);
+                        List<GroupInfo> list = groupInfo.get(s.substring(i + 3, nameEnd));
+                        if (list != null) {
+                            out.append('\\').append(list.get(0).groupIndex() + 1);
+                        } else {
+                            // copy the reference as is; it's resolved
+                            // once all group names are known
+                            if (pending == null) {
+                                pending = new int[8];
+                            } else if (numPending == pending.length) {
+                                pending = Arrays.copyOf(pending, numPending * 2);
+                            }
+                            pending[numPending++] = out.length();
+                            out.append(s, i, nameEnd + 1);
+                        }
+                        i = copied = nameEnd + 1;
+                        continue;
+                    }
+                }
+                i += 2;
+                continue;
             }
-        }
-
-        return openBracketFound && !closeBracketFound;
-    }
 
-    /**
-     * Determines if the parenthesis at the specified position
-     * of a string is for a non-capturing group, which is one of
-     * the flag specifiers (e.g., (?s) or (?m) or (?:pattern).
-     * If the parenthesis is followed by "?", it must be a non-
-     * capturing group unless it's a named group (which begins
-     * with "?<"). Make sure not to confuse it with the lookbehind
-     * construct ("?<=" or "?<!").
-     *
-     * @param s string to evaluate
-     * @param pos the position of the parenthesis to evaluate
-     * @return true if the parenthesis is non-capturing; otherwise false
-     */
-    static private boolean isNoncapturingParen(String s, int pos) {
+            if (classDepth > 0) {
+                if (c == '[') {
+                    classDepth++;
+                    classStart = skipClassNegation(s, i + 1, len);
+                    i = classStart;
+                    continue;
+                }
+                // a "]" that immediately follows the open-bracket is a literal
+                if (c == ']' && i != classStart) {
+                    classDepth--;
+                }
+                i++;
+                continue;
+            }
 
-        //int len = s.length();
-        boolean isLookbehind = false;
+            if (c == '[') {
+                classDepth = 1;
+                classStart = skipClassNegation(s, i + 1, len);
+                i = classStart;
+                continue;
+            }
 
-        // code-coverage reports show that pos and the text to
-        // check never exceed len in this class, so it's safe
-        // to not test for it, which resolves uncovered branches
-        // in Cobertura
+            if (c == '(') {
+                if (i + 1 < len && s.charAt(i + 1) == '?') {
+                    // "(?<name>" is a named group unless it's the
+                    // lookbehind construct ("(?<=" or "(?<!")
+                    int nameEnd = indexOfName(s, i + 3);
+                    if (nameEnd > 0) {
+                        String name = s.substring(i + 3, nameEnd);
+                        List<GroupInfo> list = groupInfo.get(name);
+                        if (list == null) {
+                            list = new ArrayList<GroupInfo>(1);
+                            groupInfo.put(name, list);
+                        }
+                        list.add(new GroupInfo(groupIndex++, i));
+                        if (out != null) {
+                            out.append(s, copied, i).append('(');
+                        }
+                        i = copied = nameEnd + 1;
+                        continue;
+                    }
+                    if (i + 2 < len && s.charAt(i + 2) == '<') {
+                        char next = i + 3 < len ? s.charAt(i + 3) : 0;
+                        if (next != '=' && next != '!') {
+                            // unterminated name; still counts as a group
+                            groupIndex++;
+                        }
+                    }
+                } else {
+                    groupIndex++;
+                }
+            }
+            i++;
+        }
 
-        /*if (pos >= 0 && pos + 4 < len)*/ {
-            String pre = s.substring(pos, pos+4);
-            isLookbehind = pre.equals("(?<=") || pre.equals("(?<!");
+        if (out != null) {
+            out.append(s, copied, len);
+            if (numPending > 0) {
+                resolveBackrefs(out, pending, numPending, groupInfo);
+            }
         }
-        return /*(pos >= 0 && pos + 2 < len) &&*/
-               s.charAt(pos + 1) == '?' &&
-               (isLookbehind || s.charAt(pos + 2) != '<');
     }
 
     /**
-     * Counts the open-parentheses to the left of a string position,
-     * excluding escaped parentheses
+     * Finds the closing angle-bracket of a group name (as in
+     * <b><code>(?&lt;name></code></b> or <b><code>\k&lt;name></code></b>)
+     * whose first character is at the specified position. The name may not
+     * begin with "!" or "=", and ends at the first closing bracket.
      *
      * @param s string to evaluate
-     * @param pos ending position of string; characters to the left
-     * of this position are evaluated
-     * @return number of open parentheses
+     * @param pos position of the first character of the name
+     * @return the position of the closing bracket, or -1 if there's no name
      */
-    static private int countOpenParens(String s, int pos) {
-        Pattern p = Pattern.compile("\\(");
-        Matcher m = p.matcher(s.subSequence(0, pos));
-
-        int numParens = 0;
-
-        while (m.find()) {
-            // ignore parentheses inside character classes: [0-9()a-f]
-            // which are just literals
-            if (isInsideCharClass(s, m.start())) {
-                continue;
-            }
-
-            // ignore escaped parens
-            if (isEscapedChar(s, m.start())) continue;
-
-            if (!isNoncapturingParen(s, m.start())) {
-                numParens++;
-            }
+    static private int indexOfName(String s, int pos) {
+        if (pos >= s.length() || s.charAt(pos - 1) != '<') {
+            return -1;
+        }
+        char first = s.charAt(pos);
+        if (first == '!' || first == '=') {
+            return -1;
         }
-        return numParens;
+        return s.indexOf('>', pos + 1);
     }
 
     /**
-     * Parses info on named capture groups from a pattern
+     * Skips the negation character (if any) at the beginning of a
+     * character class
      *
-     * @param namedPattern regex the regular expression pattern to parse
-     * @return list of group info for all named groups
+     * @param s string to evaluate
+     * @param pos position just past the open-bracket
+     * @param len length of the string
+     * @return the position of the first class member
      */
-    static public Map<String,List<GroupInfo> > extractGroupInfo(String namedPattern) {
-        Map<String,List<GroupInfo> > groupInfo = new LinkedHashMap<String,List<GroupInfo> >();
-        Matcher matcher = NAMED_GROUP_PATTERN.matcher(namedPattern);
-        while(matcher.find()) {
-
-            int pos = matcher.start();
-
-            // ignore escaped paren
-            if (isEscapedChar(namedPattern, pos)) continue;
-
-            String name = matcher.group(INDEX_GROUP_NAME);
-            int groupIndex = countOpenParens(namedPattern, pos);
-
-            List<GroupInfo> list;
-            if (groupInfo.containsKey(name)) {
-                list = groupInfo.get(name);
-            } else {
-                list = new ArrayList<GroupInfo>();
-            }
-            list.add(new GroupInfo(groupIndex, pos));
-            groupInfo.put(name, list);
-        }
-        return groupInfo;
+    static private int skipClassNegation(String s, int pos, int len) {
+        return (pos < len && s.charAt(pos) == '^') ? pos + 1 : pos;
     }
 
     /**
-     * Replaces strings matching a pattern with another string. If the string
-     * to be replaced is escaped with a slash, it is skipped.
+     * Replaces the forward back-references (e.g.,
+     * <b><code>\k&lt;named></code></b>) left in a standard pattern by the
+     * scan with the reference to the corresponding group index.
      *
-     * @param input the string to evaluate
-     * @param pattern the pattern that matches the string to be replaced
-     * @param replacement the string to replace the target
-     * @return the modified string (original instance of {@code input})
+     * @param out the standard pattern
+     * @param pending positions of the back-references within {@code out}
+     * @param numPending number of back-references
+     * @param groupInfo the info of all named groups
+     * @throws PatternSyntaxException group name was not found
      */
-    static private StringBuilder replace(StringBuilder input, Pattern pattern, String replacement) {
-        Matcher m = pattern.matcher(input);
-        while (m.find()) {
-            if (isEscapedChar(input.toString(), m.start())) {
-                continue;
+    static private void resolveBackrefs(StringBuilder out, int[] pending, int numPending, Map<String,List<GroupInfo> > groupInfo) {
+        StringBuilder resolved = new StringBuilder(out.length());
+        int copied = 0;
+        for (int n = 0; n < numPending; n++) {
+            int pos = pending[n];
+            int nameEnd = out.indexOf(">", pos + 4);
+            resolved.append(out, copied, pos);
+            List<GroupInfo> list = groupInfo.get(out.substring(pos + 3, nameEnd));
+            if (list == null) {
+                int index = resolved.length() + 3;
+                resolved.append(out, pos, out.length());
+                throw new PatternSyntaxException("unknown group name", resolved.toString(), index);
             }
-
-            // since we're replacing the original string being matched,
-            // we have to reset the matcher so that it searches the new
-            // string
-            input.replace(m.start(), m.end(), replacement);
-            m.reset(input);
+            resolved.append('\\').append(list.get(0).groupIndex() + 1);
+            copied = nameEnd + 1;
         }
-        return input;
+        resolved.append(out, copied, out.length());
+        out.setLength(0);
+        out.append(resolved);
     }
 
     /**
@@ -597,18 +880,47 @@ public class Pattern2 implements Serializable {
      *   <li>{@link Pattern#UNIX_LINES}</li>
      *   <li>{@link Pattern#LITERAL}</li>
      *   <li>{@link Pattern#COMMENTS}</li>
+     *   <li>{@link #DIRECT_NAMED_GROUPS}</li>
+     *   <li>{@link #LINEAR_TIME}</li>
      * </ul>
      * @return the standard {@code Pattern}
      */
     private Pattern buildStandardPattern(String namedPattern, Integer flags) {
-        // replace the named-group construct with left-paren but
-        // make sure we're actually looking at the construct (ignore escapes)
-        StringBuilder s = new StringBuilder(namedPattern);
-        s = replace(s, NAMED_GROUP_PATTERN, "(");
-        s = replaceGroupNameWithIndex(s, BACKREF_NAMED_GROUP_PATTERN, "\\");
+        if ((flags & DIRECT_NAMED_GROUPS) != 0) {
+            if ((flags & CANON_EQ) == 0) {
+                Pattern p = Pattern.compile(namedPattern, flags);
+                readGroupTable(p, groupInfo);
+                return p;
+            }
+            flags &= ~DIRECT_NAMED_GROUPS;
+        }
+
+        // replace the named-group construct with left-paren and the named
+        // back-references with numbered ones while collecting the group info
+        StringBuilder s = new StringBuilder(namedPattern.length());
+        parseNamedPattern(namedPattern, groupInfo, s);
         return Pattern.compile(s.toString(), flags);
     }
 
+    /**
+     * Copies the named-group table of a pattern compiled with
+     * {@link #DIRECT_NAMED_GROUPS} into a group-info map
+     *
+     * @param p the compiled pattern
+     * @param groupInfo the map to fill
+     */
+    static private void readGroupTable(Pattern p, Map<String,List<GroupInfo> > groupInfo) {
+        for (int n = 0; n < p.namedGroupCount(); n++) {
+            String name = p.namedGroupName(n);
+            List<GroupInfo> list = groupInfo.get(name);
+            if (list == null) {
+                list = new ArrayList<GroupInfo>(1);
+                groupInfo.put(name, list);
+            }
+            list.add(new GroupInfo(p.namedGroupNumber(n) - 1, p.namedGroupPosition(n)));
+        }
+    }
+
     /**
      * Compares the keys and values of two group-info maps
      *
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.regexp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bogdang.modifications.regex.*;
+
+/**
+ * A set of named patterns that are searched for in an input sequence
+ * together, scanning the input once rather than once per pattern, to tell
+ * which of them have a match. Instances are immutable and thread-safe.
+ *
+ * <p>The groups of the patterns that matched are read through the usual
+ * {@link Matcher2} API, from the matchers returned by
+ * {@link #findMatchers(CharSequence)}.</p>
+ *
+ * @see PatternSet
+ * @since 0.2.5
+ */
+public final class Pattern2Set {
+
+    private final List<String> names;
+    private final Map<String, Pattern2> patterns;
+    private final PatternSet set;
+
+    private Pattern2Set(Map<String, Pattern2> patterns) {
+        this.names = Collections.unmodifiableList(new ArrayList<String>(patterns.keySet()));
+        this.patterns = Collections.unmodifiableMap(new LinkedHashMap<String, Pattern2>(patterns));
+        Pattern[] standard = new Pattern[names.size()];
+        int i = 0;
+        for (Pattern2 p : this.patterns.values()) {
+            if (p == null) {
+                throw new NullPointerException("pattern " + names.get(i) + " is null");
+            }
+            standard[i++] = p.pattern();
+        }
+        this.set = PatternSet.of(standard);
+    }
+
+    /**
+     * Compiles the given regular expressions into a set of patterns, named
+     * by their keys
+     *
+     * @param regexes the expressions to be compiled, by name
+     * @return the set of patterns
+     */
+    public static Pattern2Set compile(Map<String, String> regexes) {
+        return compile(regexes, 0);
+    }
+
+    /**
+     * Compiles the given regular expressions into a set of patterns, named
+     * by their keys, with the given flags
+     *
+     * @param regexes the expressions to be compiled, by name
+     * @param flags Match flags (see {@link Pattern2#compile(String, int)})
+     * @return the set of patterns
+     */
+    public static Pattern2Set compile(Map<String, String> regexes, int flags) {
+        Map<String, Pattern2> patterns = new LinkedHashMap<String, Pattern2>();
+        for (Map.Entry<String, String> e : regexes.entrySet()) {
+            patterns.put(e.getKey(), Pattern2.compile(e.getValue(), flags));
+        }
+        return new Pattern2Set(patterns);
+    }
+
+    /**
+     * Creates a set of already compiled patterns, named by their keys
+     *
+     * @param patterns the patterns, by name
+     * @return the set of patterns
+     */
+    public static Pattern2Set of(Map<String, Pattern2> patterns) {
+        return new Pattern2Set(patterns);
+    }
+
+    /**
+     * Gets the names of the patterns, in the order they were given
+     *
+     * @return the names of the patterns
+     */
+    public List<String> names() {
+        return names;
+    }
+
+    /**
+     * Gets the pattern with the given name
+     *
+     * @param name the name of the pattern
+     * @return the pattern, or null if there is no pattern with that name
+     */
+    public Pattern2 pattern(String name) {
+        return patterns.get(name);
+    }
+
+    /**
+     * Gets the number of patterns in this set
+     *
+     * @return the number of patterns
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Finds the patterns that have a match in the given input sequence
+     *
+     * @param input the input sequence
+     * @return the names of the patterns that have a match, in the order
+     * the patterns were given
+     */
+    public List<String> find(CharSequence input) {
+        int[] found = set.find(input);
+        List<String> result = new ArrayList<String>(found.length);
+        for (int index : found) {
+            result.add(names.get(index));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the patterns that have a match in the given input sequence,
+     * with a matcher for each of them that is positioned on its first
+     * match, so that its groups can be read
+     *
+     * @param input the input sequence
+     * @return the matchers of the patterns that have a match, by name, in
+     * the order the patterns were given
+     */
+    public Map<String, Matcher2> findMatchers(CharSequence input) {
+        Map<String, Matcher2> result = new LinkedHashMap<String, Matcher2>();
+        for (String name : find(input)) {
+            Matcher2 m = patterns.get(name).matcher(input);
+            m.find();
+            result.put(name, m);
+        }
+        return result;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return patterns.toString();
+    }
+}
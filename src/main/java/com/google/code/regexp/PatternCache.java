@@ -0,0 +1,509 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.regexp;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe, size-bounded cache of compiled {@link Pattern2} instances,
+ * keyed on the named pattern and its flags. Compiling is done outside of the
+ * cache's lock, so a slow compile does not block lookups by other threads.
+ *
+ * <p>The eviction policy is chosen when the cache is created:</p>
+ * <ul>
+ *   <li>{@link Policy#LRU} evicts the least recently used pattern.</li>
+ *   <li>{@link Policy#TINY_LFU} (Window TinyLFU) admits a new pattern into
+ *   the main area of the cache only if it has been requested more often
+ *   than the pattern it would evict, which keeps a burst of one-off
+ *   patterns from flushing the popular ones.</li>
+ * </ul>
+ *
+ * @since 0.2.5
+ */
+public class PatternCache {
+
+    /** Eviction policies */
+    public enum Policy {
+        /** least recently used */
+        LRU,
+        /** window TinyLFU (frequency-based admission) */
+        TINY_LFU
+    }
+
+    /** Maximum size of the cache used by {@link Pattern2#compileCached(String)} */
+    public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+
+    private static final PatternCache DEFAULT = new PatternCache(DEFAULT_MAXIMUM_SIZE, Policy.TINY_LFU);
+
+    private final int maximumSize;
+    private final Policy policy;
+    private final Store store;
+
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Constructs an LRU cache that holds up to the given number of patterns
+     *
+     * @param maximumSize the maximum number of patterns in the cache
+     * @throws IllegalArgumentException if {@code maximumSize} is not positive
+     */
+    public PatternCache(int maximumSize) {
+        this(maximumSize, Policy.LRU);
+    }
+
+    /**
+     * Constructs a cache that holds up to the given number of patterns
+     *
+     * @param maximumSize the maximum number of patterns in the cache
+     * @param policy the eviction policy
+     * @throws IllegalArgumentException if {@code maximumSize} is not positive
+     */
+    public PatternCache(int maximumSize, Policy policy) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+        this.maximumSize = maximumSize;
+        this.policy = policy;
+        this.store = (policy == Policy.LRU) ? new LruStore(maximumSize) : new TinyLfuStore(maximumSize);
+    }
+
+    /**
+     * Gets the cache used by {@link Pattern2#compileCached(String)} and
+     * {@link Pattern2#compileCached(String, int)}
+     *
+     * @return the default cache
+     */
+    public static PatternCache defaultCache() {
+        return DEFAULT;
+    }
+
+    /**
+     * Gets the compiled form of the given regular expression, compiling it
+     * if it's not in the cache
+     *
+     * @param regex the expression to be compiled
+     * @return the pattern
+     */
+    public Pattern2 compile(String regex) {
+        return compile(regex, 0);
+    }
+
+    /**
+     * Gets the compiled form of the given regular expression and flags,
+     * compiling it if it's not in the cache
+     *
+     * @param regex the expression to be compiled
+     * @param flags Match flags (see {@link Pattern2#compile(String, int)})
+     * @return the pattern
+     */
+    public Pattern2 compile(String regex, int flags) {
+        Key key = new Key(regex, flags);
+        synchronized (this) {
+            Pattern2 p = store.get(key);
+            if (p != null) {
+                hitCount++;
+                return p;
+            }
+            missCount++;
+        }
+
+        // compile without holding the lock; if another thread raced us
+        // to it, keep the instance that's already cached
+        Pattern2 compiled = Pattern2.compile(regex, flags);
+        synchronized (this) {
+            Pattern2 p = store.putIfAbsent(key, compiled);
+            return (p != null) ? p : compiled;
+        }
+    }
+
+    /**
+     * Compiles the given regular expressions into the cache, e.g., at
+     * startup so that the first requests don't pay for compiling. Patterns
+     * that fail to compile are skipped.
+     *
+     * @param regexes the expressions to be compiled
+     * @return the number of patterns that compiled
+     */
+    public int warmUp(Iterable<String> regexes) {
+        return warmUp(regexes, 0);
+    }
+
+    /**
+     * Compiles the given regular expressions with the given flags into the
+     * cache. Patterns that fail to compile are skipped. Warming up does not
+     * count toward the hit and miss counts.
+     *
+     * @param regexes the expressions to be compiled
+     * @param flags Match flags (see {@link Pattern2#compile(String, int)})
+     * @return the number of patterns that compiled
+     */
+    public int warmUp(Iterable<String> regexes, int flags) {
+        int count = 0;
+        for (String regex : regexes) {
+            Pattern2 compiled;
+            try {
+                compiled = Pattern2.compile(regex, flags);
+            } catch (RuntimeException e) {
+                continue;
+            }
+            synchronized (this) {
+                store.putIfAbsent(new Key(regex, flags), compiled);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of lookups that found the pattern in the cache
+     *
+     * @return the hit count
+     */
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Gets the number of lookups that had to compile the pattern
+     *
+     * @return the miss count
+     */
+    public synchronized long missCount() {
+        return missCount;
+    }
+
+    /**
+     * Gets the number of patterns that were evicted to make room for others
+     *
+     * @return the eviction count
+     */
+    public synchronized long evictionCount() {
+        return store.evictionCount;
+    }
+
+    /**
+     * Gets the number of patterns in the cache
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        return store.size();
+    }
+
+    /**
+     * Gets the maximum number of patterns in the cache
+     *
+     * @return the maximum size
+     */
+    public int maximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Gets the eviction policy of the cache
+     *
+     * @return the policy
+     */
+    public Policy policy() {
+        return policy;
+    }
+
+    /**
+     * Removes all patterns from the cache and resets the counters
+     */
+    public synchronized void clear() {
+        store.clear();
+        store.evictionCount = 0;
+        hitCount = 0;
+        missCount = 0;
+    }
+
+    /**
+     * Cache key: a regular expression and its flags
+     */
+    private static final class Key {
+        final String regex;
+        final int flags;
+        final int hash;
+
+        Key(String regex, int flags) {
+            if (regex == null) {
+                throw new NullPointerException("regex");
+            }
+            this.regex = regex;
+            this.flags = flags;
+            this.hash = regex.hashCode() * 31 + flags;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return flags == other.flags && regex.equals(other.regex);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Storage of the cached patterns; implements the eviction policy.
+     * Callers must hold the cache's lock.
+     */
+    private static abstract class Store {
+        long evictionCount;
+
+        abstract Pattern2 get(Key key);
+
+        /** Adds the pattern unless the key is present; returns the present value */
+        abstract Pattern2 putIfAbsent(Key key, Pattern2 value);
+
+        abstract int size();
+
+        abstract void clear();
+    }
+
+    /**
+     * Least-recently-used storage
+     */
+    private static final class LruStore extends Store {
+        private final LinkedHashMap<Key, Pattern2> map;
+
+        LruStore(final int maximumSize) {
+            map = new LinkedHashMap<Key, Pattern2>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Pattern2> eldest) {
+                    if (size() > maximumSize) {
+                        evictionCount++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Pattern2 get(Key key) {
+            return map.get(key);
+        }
+
+        Pattern2 putIfAbsent(Key key, Pattern2 value) {
+            Pattern2 p = map.get(key);
+            if (p == null) {
+                map.put(key, value);
+            }
+            return p;
+        }
+
+        int size() {
+            return map.size();
+        }
+
+        void clear() {
+            map.clear();
+        }
+    }
+
+    /**
+     * Window TinyLFU storage. New patterns enter a small LRU window; the
+     * pattern pushed out of the window competes with the LRU pattern of the
+     * probation segment of the main area, and the one requested less often
+     * (as estimated by a frequency sketch) is evicted. Patterns hit while on
+     * probation are promoted to the protected segment.
+     */
+    private static final class TinyLfuStore extends Store {
+        private final LinkedHashMap<Key, Pattern2> window = new LinkedHashMap<Key, Pattern2>(16, 0.75f, true);
+        private final LinkedHashMap<Key, Pattern2> probation = new LinkedHashMap<Key, Pattern2>(16, 0.75f, true);
+        private final LinkedHashMap<Key, Pattern2> protect = new LinkedHashMap<Key, Pattern2>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        private final int maxWindow;
+        private final int maxMain;
+        private final int maxProtected;
+
+        TinyLfuStore(int maximumSize) {
+            maxWindow = Math.max(1, maximumSize / 100);
+            maxMain = maximumSize - maxWindow;
+            maxProtected = maxMain * 4 / 5;
+            sketch = new FrequencySketch(maximumSize);
+        }
+
+        Pattern2 get(Key key) {
+            sketch.increment(key.hash);
+            Pattern2 p = window.get(key);
+            if (p != null) {
+                return p;
+            }
+            p = protect.get(key);
+            if (p != null) {
+                return p;
+            }
+            p = probation.remove(key);
+            if (p != null) {
+                // promote, demoting the LRU protected entry if needed
+                protect.put(key, p);
+                if (protect.size() > maxProtected) {
+                    Map.Entry<Key, Pattern2> eldest = removeEldest(protect);
+                    probation.put(eldest.getKey(), eldest.getValue());
+                }
+            }
+            return p;
+        }
+
+        Pattern2 putIfAbsent(Key key, Pattern2 value) {
+            Pattern2 p = window.get(key);
+            if (p == null) {
+                p = protect.get(key);
+            }
+            if (p == null) {
+                p = probation.get(key);
+            }
+            if (p != null) {
+                return p;
+            }
+            window.put(key, value);
+            if (window.size() > maxWindow) {
+                admit(removeEldest(window));
+            }
+            return null;
+        }
+
+        /**
+         * Moves an entry pushed out of the window into the main area if it's
+         * requested more often than the entry it would replace
+         */
+        private void admit(Map.Entry<Key, Pattern2> candidate) {
+            if (maxMain == 0) {
+                evictionCount++;
+                return;
+            }
+            if (probation.size() + protect.size() < maxMain) {
+                probation.put(candidate.getKey(), candidate.getValue());
+                return;
+            }
+            LinkedHashMap<Key, Pattern2> victims = probation.isEmpty() ? protect : probation;
+            Key victim = victims.keySet().iterator().next();
+            if (sketch.frequency(candidate.getKey().hash) > sketch.frequency(victim.hash)) {
+                victims.remove(victim);
+                probation.put(candidate.getKey(), candidate.getValue());
+            }
+            evictionCount++;
+        }
+
+        private static Map.Entry<Key, Pattern2> removeEldest(LinkedHashMap<Key, Pattern2> map) {
+            Iterator<Map.Entry<Key, Pattern2>> it = map.entrySet().iterator();
+            Map.Entry<Key, Pattern2> eldest = it.next();
+            Map.Entry<Key, Pattern2> copy = new AbstractMap.SimpleImmutableEntry<Key, Pattern2>(eldest);
+            it.remove();
+            return copy;
+        }
+
+        int size() {
+            return window.size() + probation.size() + protect.size();
+        }
+
+        void clear() {
+            window.clear();
+            probation.clear();
+            protect.clear();
+            sketch.clear();
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters that estimates how often a key was
+     * requested. All counters are halved periodically so that old
+     * popularity fades.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maximumSize) {
+            int size = Integer.highestOneBit(Math.max(maximumSize, 8) - 1) << 1;
+            table = new long[size];
+            mask = size - 1;
+            sampleSize = 10 * Math.max(maximumSize, 8);
+        }
+
+        int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = counterOffset(hash, i);
+                int count = (int)((table[index] >>> offset) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = counterOffset(hash, i);
+                if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        void clear() {
+            Arrays.fill(table, 0L);
+            additions = 0;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & mask;
+        }
+
+        /** each long holds 16 counters; each hash function uses its own quarter */
+        private static int counterOffset(int hash, int i) {
+            return ((i << 2) + ((hash >>> (i << 3)) & 3)) << 2;
+        }
+    }
+}
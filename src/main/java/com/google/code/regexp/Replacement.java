@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.regexp;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.bogdang.modifications.regex.*;
+
+/**
+ * A replacement string that has been parsed against a {@link Pattern2}
+ * into literal text and group references, so that it can be applied to
+ * many matches without being parsed again. Instances are immutable.
+ *
+ * <p>The syntax is the one accepted by {@link Matcher2#replaceAll(String)}:
+ * <b><code>$n</code></b> refers to a numbered group,
+ * <b><code>${name}</code></b> refers to the first group with that name and
+ * a backslash escapes the next character.</p>
+ *
+ * @since 0.2.5
+ */
+public final class Replacement {
+
+    private final Pattern2 pattern;
+    private final String template;
+
+    /**
+     * The literal text that precedes each group reference, followed by
+     * the literal text after the last group reference
+     */
+    private final String[] literals;
+
+    /** the group number of each group reference */
+    private final int[] groups;
+
+    private Replacement(Pattern2 pattern, String template, String[] literals, int[] groups) {
+        this.pattern = pattern;
+        this.template = template;
+        this.literals = literals;
+        this.groups = groups;
+    }
+
+    /**
+     * Parses a replacement string against a pattern
+     *
+     * @param pattern the pattern whose groups are referenced
+     * @param template the replacement string
+     * @return the parsed replacement
+     * @throws PatternSyntaxException if a group name is unknown
+     * @throws IllegalArgumentException if the replacement string is malformed
+     * @throws IndexOutOfBoundsException if a group number is out of bounds
+     */
+    static Replacement compile(Pattern2 pattern, String template) {
+        return compile(pattern, template, true);
+    }
+
+    /**
+     * Parses a replacement string against a pattern, optionally leaving a
+     * group number that is out of bounds to be reported when the
+     * replacement is applied to a match, as the JDK does
+     *
+     * @param pattern the pattern whose groups are referenced
+     * @param template the replacement string
+     * @param checkGroups whether to check the group numbers now
+     * @return the parsed replacement
+     * @throws PatternSyntaxException if a group name is unknown
+     * @throws IllegalArgumentException if the replacement string is malformed
+     * @throws IndexOutOfBoundsException if a group number is out of bounds
+     * and checkGroups is true
+     */
+    static Replacement compile(Pattern2 pattern, String template, boolean checkGroups) {
+        final int len = template.length();
+        final int groupCount = pattern.pattern().matcher("").groupCount();
+        List<String> literals = new ArrayList<String>();
+        List<Integer> groups = new ArrayList<Integer>();
+        StringBuilder literal = new StringBuilder();
+
+        int i = 0;
+        while (i < len) {
+            char c = template.charAt(i);
+            if (c == '\\') {
+                if (++i >= len) {
+                    throw new IllegalArgumentException(
+                            "character to be escaped is missing");
+                }
+                literal.append(template.charAt(i++));
+            } else if (c == '$') {
+                if (++i >= len) {
+                    throw new IllegalArgumentException(
+                            "Illegal group reference: group index is missing");
+                }
+                int refNum;
+                c = template.charAt(i);
+                if (c == '{') {
+                    int nameStart = i + 1;
+                    int nameEnd = template.indexOf('}', nameStart);
+                    if (nameEnd < 0) {
+                        throw new IllegalArgumentException(
+                                "named capturing group is missing trailing '}'");
+                    }
+                    if (nameEnd == nameStart) {
+                        throw new IllegalArgumentException(
+                                "named capturing group has 0 length name");
+                    }
+                    String name = template.substring(nameStart, nameEnd);
+                    int idx = pattern.indexOf(name);
+                    if (idx < 0) {
+                        throw new PatternSyntaxException("unknown group name", template, nameStart);
+                    }
+                    refNum = idx + 1;
+                    i = nameEnd + 1;
+                } else {
+                    // the first digit is always a group; further digits are
+                    // taken as long as the number is a legal group
+                    refNum = c - '0';
+                    if (refNum < 0 || refNum > 9) {
+                        throw new IllegalArgumentException("Illegal group reference");
+                    }
+                    if (refNum > groupCount && checkGroups) {
+                        throw new IndexOutOfBoundsException("No group " + refNum);
+                    }
+                    i++;
+                    while (i < len) {
+                        int nextDigit = template.charAt(i) - '0';
+                        if (nextDigit < 0 || nextDigit > 9) {
+                            break;
+                        }
+                        int newRefNum = refNum * 10 + nextDigit;
+                        if (newRefNum > groupCount) {
+                            break;
+                        }
+                        refNum = newRefNum;
+                        i++;
+                    }
+                }
+                literals.add(literal.toString());
+                groups.add(refNum);
+                literal.setLength(0);
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        literals.add(literal.toString());
+
+        int[] groupArray = new int[groups.size()];
+        for (int n = 0; n < groupArray.length; n++) {
+            groupArray[n] = groups.get(n);
+        }
+        return new Replacement(pattern, template,
+                literals.toArray(new String[literals.size()]), groupArray);
+    }
+
+    /**
+     * Gets the pattern whose groups this replacement refers to
+     *
+     * @return the pattern
+     */
+    public Pattern2 pattern() {
+        return pattern;
+    }
+
+    /**
+     * Gets the replacement string this replacement was parsed from
+     *
+     * @return the replacement string
+     */
+    public String template() {
+        return template;
+    }
+
+    /**
+     * Appends this replacement for the current match of a matcher
+     *
+     * @param sb the target string builder
+     * @param m the matcher
+     * @return the target string builder
+     */
+    StringBuilder appendTo(StringBuilder sb, Matcher2 m) {
+        for (int n = 0; n < groups.length; n++) {
+            sb.append(literals[n]);
+            m.appendGroup(sb, groups[n]);
+        }
+        return sb.append(literals[groups.length]);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return template;
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.regexp;
+
+/**
+ * Computes the replacement text of a match, for use with
+ * {@link Matcher2#replaceAll(Replacer)} and
+ * {@link Matcher2#replaceFirst(Replacer)}.
+ *
+ * @since 0.2.5
+ */
+public interface Replacer {
+
+    /**
+     * Returns the text that replaces a match. The text is used as is;
+     * group references (e.g., <b><code>$1</code></b>) are not expanded.
+     *
+     * <p>The match result is a read-only view of the matcher that is
+     * reused for every match, so it must not be kept after this method
+     * returns. Likewise, the returned sequence is only read before the next
+     * call, so it may be a {@link Matcher2#groupView(int) group view}.</p>
+     *
+     * @param match the current match
+     * @return the replacement text
+     */
+    public CharSequence replace(MatchView match);
+
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.regexp;
+
+/**
+ * Receives the segments of an input sequence split around the matches of
+ * a pattern, as offsets into the input, from
+ * {@link Pattern2#split(CharSequence, int, SplitConsumer)}.
+ *
+ * @since 0.2.5
+ */
+public interface SplitConsumer {
+
+    /**
+     * Accepts the next segment of the input
+     *
+     * @param start the index of the first character of the segment
+     * @param end the index after the last character of the segment
+     */
+    public void accept(int start, int end);
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.regexp;
+
+import java.util.Arrays;
+import org.bogdang.modifications.regex.*;
+
+/**
+ * Splits an input sequence around the matches of a pattern one segment at
+ * a time, with the same results as {@link Pattern#split(CharSequence, int)}
+ * but without collecting the segments.
+ *
+ * <p>Empty segments are held back until it's known whether they are
+ * kept: with a limit of zero, trailing empty segments are discarded, and a
+ * leading empty segment is discarded when the only match is an empty match
+ * at the start of the input.</p>
+ */
+final class Splitter {
+
+    private final CharSequence input;
+    private final Matcher matcher;
+    private final int limit;
+
+    /** start of the next segment */
+    private int index = 0;
+
+    /** the number of segments found so far */
+    private int count = 0;
+
+    /** whether all the segments have been found */
+    private boolean finished = false;
+
+    /** positions of the empty segments held back */
+    private int[] empties = new int[4];
+    private int numEmpties = 0;
+
+    /** whether the held back segments are being released */
+    private boolean flushing = false;
+    private int flushed = 0;
+
+    /** the non-empty segment to release after the held back ones */
+    private boolean hasSegment = false;
+    private int segmentStart;
+    private int segmentEnd;
+
+    /** the current segment */
+    private int start;
+    private int end;
+
+    Splitter(Pattern pattern, CharSequence input, int limit) {
+        this.input = input;
+        this.matcher = pattern.matcher(input);
+        this.limit = limit;
+    }
+
+    /**
+     * Moves to the next segment
+     *
+     * @return {@code true} if there is a next segment; {@code false} otherwise
+     */
+    boolean next() {
+        for (;;) {
+            if (flushing) {
+                if (flushed < numEmpties) {
+                    start = end = empties[flushed++];
+                    return true;
+                }
+                flushing = false;
+                flushed = 0;
+                numEmpties = 0;
+                if (hasSegment) {
+                    hasSegment = false;
+                    start = segmentStart;
+                    end = segmentEnd;
+                    return true;
+                }
+            }
+            if (finished) {
+                return false;
+            }
+            advance();
+        }
+    }
+
+    /**
+     * Gets the start of the current segment
+     *
+     * @return the index of the first character of the segment
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * Gets the end of the current segment
+     *
+     * @return the index after the last character of the segment
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * Finds the next segment, or the end of the segments
+     */
+    private void advance() {
+        boolean matchLimited = limit > 0;
+        int len = input.length();
+        if (matcher.find()) {
+            if (!matchLimited || count < limit - 1) {
+                add(index, matcher.start());
+            } else {
+                // last one; further matches cannot change the result
+                add(index, len);
+                finished = true;
+            }
+            index = matcher.end();
+            count++;
+            if (!finished) {
+                return;
+            }
+        }
+        finished = true;
+
+        if (index == 0) {
+            // no match found (or only an empty one at the start)
+            numEmpties = 0;
+            hasSegment = true;
+            segmentStart = 0;
+            segmentEnd = len;
+            flushing = true;
+            return;
+        }
+
+        // add remaining segment
+        if (!matchLimited || count < limit) {
+            add(index, len);
+        }
+        if (!flushing) {
+            if (limit == 0) {
+                // trailing empty segments are discarded
+                numEmpties = 0;
+            } else {
+                flushing = true;
+            }
+        }
+    }
+
+    /**
+     * Adds a segment, holding it back if it's empty and might be discarded
+     *
+     * @param s the start of the segment
+     * @param e the end of the segment
+     */
+    private void add(int s, int e) {
+        if (s == e && (limit == 0 || s == 0)) {
+            if (numEmpties == empties.length) {
+                empties = Arrays.copyOf(empties, numEmpties * 2);
+            }
+            empties[numEmpties++] = s;
+        } else {
+            hasSegment = true;
+            segmentStart = s;
+            segmentEnd = e;
+            flushing = true;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bogdang.modifications.regex;
+
+/**
+ * Unchecked exception thrown when a match operation runs out of the step
+ * budget or past the deadline of its matcher.
+ *
+ * @see Matcher#useStepBudget(long)
+ * @see Matcher#useDeadline(long, java.util.concurrent.TimeUnit)
+ * @since 0.2.5
+ */
+public class MatchBudgetExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 4207426409163954718L;
+
+    private final long steps;
+    private final boolean deadline;
+
+    /**
+     * Constructs a new instance of this class.
+     *
+     * @param  steps
+     *         The number of steps the match operation took
+     *
+     * @param  deadline
+     *         Whether the operation was stopped by the deadline rather than
+     *         by the step budget
+     */
+    public MatchBudgetExceededException(long steps, boolean deadline) {
+        this.steps = steps;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the number of steps the match operation took before it was
+     * stopped.
+     *
+     * @return  The number of steps
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * Tells whether the match operation was stopped by the deadline of its
+     * matcher rather than by its step budget.
+     *
+     * @return  <tt>true</tt> if the deadline had passed
+     */
+    public boolean isDeadlineExceeded() {
+        return deadline;
+    }
+
+    /**
+     * Returns a message that tells why and when the operation was stopped.
+     *
+     * @return  The message
+     */
+    @Override
+    public String getMessage() {
+        return (deadline ? "Match deadline passed" : "Match step budget exceeded")
+            + " after " + steps + " steps";
+    }
+}
@@ -25,6 +25,7 @@
 
 package org.bogdang.modifications.regex;
 
+import java.util.concurrent.TimeUnit;
 
 /**
  * An engine that performs match operations on a {@link java.lang.CharSequence
@@ -166,6 +167,57 @@ public final class Matcher implements MatchResult {
      */
     int[] locals;
 
+    /**
+     * Storage used by the linear time matcher of the pattern, if any,
+     * allocated on first use.
+     */
+    Pattern.PikeVM.Scratch pikeScratch;
+
+    /**
+     * The number of loop iterations being matched by recursion, past which
+     * loops are run by their backtrackers.
+     */
+    int loopDepth;
+
+    /**
+     * The choice points of the loops being run by backtrackers, which
+     * grows as needed, and how much of it is in use.
+     */
+    int[] backtrackStack;
+    int backtrackTop;
+
+    /**
+     * The steps the current match operation can take before the budget
+     * and the deadline are checked again. The nodes that backtrack count
+     * their steps down with {@link #step}.
+     */
+    int stepsLeft = Integer.MAX_VALUE;
+
+    /**
+     * The steps the current match operation took before the current
+     * count, and the number of steps the count started from.
+     */
+    private long stepsTaken;
+    private int stepsCounted;
+
+    /**
+     * The largest number of steps of a match operation, or -1 if there is
+     * no limit.
+     */
+    private long stepBudget = -1;
+
+    /**
+     * The value of System.nanoTime() past which match operations are
+     * stopped, if hasDeadline is true.
+     */
+    private long deadline;
+    private boolean hasDeadline;
+
+    /**
+     * The number of steps between two readings of the clock.
+     */
+    private static final int DEADLINE_STEPS = 1 << 10;
+
     /**
      * Boolean indicating whether or not more input could change
      * the results of the last match.
@@ -206,6 +258,12 @@ public final class Matcher implements MatchResult {
      */
     boolean anchoringBounds = true;
 
+    /**
+     * The window over the input returned by groupView, created on first
+     * use and reused afterwards.
+     */
+    private GroupView groupView;
+
     /**
      * No default constructor.
      */
@@ -490,6 +548,135 @@ public final class Matcher implements MatchResult {
         return getSubSequence(groups[group * 2], groups[group * 2 + 1]).toString();
     }
 
+    /**
+     * Returns a view of the input subsequence captured by the given group
+     * during the previous match operation, without copying it.
+     *
+     * <p> The same view object is returned by every call on this matcher
+     * and it is repositioned by each call, so the view is only valid until
+     * the next call to this method. It reads the input sequence directly,
+     * so the input must not be modified while the view is in use.  </p>
+     *
+     * @param  group
+     *         The index of a capturing group in this matcher's pattern
+     *
+     * @return  The (possibly empty) subsequence captured by the group
+     *          during the previous match, or <tt>null</tt> if the group
+     *          failed to match part of the input
+     *
+     * @throws  IllegalStateException
+     *          If no match has yet been attempted,
+     *          or if the previous match operation failed
+     *
+     * @throws  IndexOutOfBoundsException
+     *          If there is no capturing group in the pattern
+     *          with the given index
+     */
+    public CharSequence groupView(int group) {
+        checkGroup(group);
+        int start = groups[group * 2];
+        int end = groups[group * 2 + 1];
+        if (start == -1 || end == -1)
+            return null;
+        if (groupView == null)
+            groupView = new GroupView();
+        groupView.set(text, start, end);
+        return groupView;
+    }
+
+    /**
+     * Returns the start and end indices of the input subsequence captured by
+     * the given group during the previous match operation, packed in a long.
+     *
+     * <p> The start index is stored in the high 32 bits and the end index in
+     * the low 32 bits; use {@link #spanStart} and {@link #spanEnd} to unpack
+     * them. If the group failed to match part of the input, -1 is
+     * returned.  </p>
+     *
+     * @param  group
+     *         The index of a capturing group in this matcher's pattern
+     *
+     * @return  The packed span of the group, or -1
+     *
+     * @throws  IllegalStateException
+     *          If no match has yet been attempted,
+     *          or if the previous match operation failed
+     *
+     * @throws  IndexOutOfBoundsException
+     *          If there is no capturing group in the pattern
+     *          with the given index
+     */
+    public long groupSpan(int group) {
+        checkGroup(group);
+        int start = groups[group * 2];
+        int end = groups[group * 2 + 1];
+        if (start == -1 || end == -1)
+            return -1L;
+        return ((long)start << 32) | end;
+    }
+
+    /**
+     * Returns the start index of a span returned by {@link #groupSpan}.
+     *
+     * @param  span
+     *         The packed span
+     *
+     * @return  The start index, or -1 if the span is -1
+     */
+    public static int spanStart(long span) {
+        return (int)(span >> 32);
+    }
+
+    /**
+     * Returns the end index of a span returned by {@link #groupSpan}.
+     *
+     * @param  span
+     *         The packed span
+     *
+     * @return  The end index, or -1 if the span is -1
+     */
+    public static int spanEnd(long span) {
+        return (int)span;
+    }
+
+    /**
+     * Appends the input subsequence captured by the given group during the
+     * previous match operation to a string builder, without creating an
+     * intermediate string. Nothing is appended if the group failed to match
+     * part of the input.
+     *
+     * @param  sb
+     *         The target string builder
+     *
+     * @param  group
+     *         The index of a capturing group in this matcher's pattern
+     *
+     * @return  The target string builder
+     *
+     * @throws  IllegalStateException
+     *          If no match has yet been attempted,
+     *          or if the previous match operation failed
+     *
+     * @throws  IndexOutOfBoundsException
+     *          If there is no capturing group in the pattern
+     *          with the given index
+     */
+    public StringBuilder appendGroup(StringBuilder sb, int group) {
+        checkGroup(group);
+        int start = groups[group * 2];
+        int end = groups[group * 2 + 1];
+        if (start != -1 && end != -1)
+            sb.append(text, start, end);
+        return sb;
+    }
+
+    private void checkGroup(int group) {
+        if (first < 0)
+            throw new IllegalStateException("No match found");
+        if (group < 0 || group > groupCount())
+            throw new IndexOutOfBoundsException("No group " + group);
+    }
+
     /**
      * Returns the input subsequence captured by the given
      * <a href="Pattern.html#groupname">named-capturing group</a> during the previous
@@ -844,6 +1031,34 @@ public final class Matcher implements MatchResult {
         return this;
     }
 
+    /**
+     * Implements the first half of a non-terminal append-and-replace step,
+     * leaving the replacement to the caller.
+     *
+     * <p> This method reads characters from the input sequence, starting at
+     * the append position, and appends them to the given string builder. It
+     * stops after reading the last character preceding the previous match,
+     * and sets the append position to the index of the last character
+     * matched, plus one. The caller may then append any replacement text
+     * before the next append step.  </p>
+     *
+     * @param  sb
+     *         The target string builder
+     *
+     * @return  The target string builder
+     *
+     * @throws  IllegalStateException
+     *          If no match has yet been attempted,
+     *          or if the previous match operation failed
+     */
+    public StringBuilder appendInterveningText(StringBuilder sb) {
+        if (first < 0)
+            throw new IllegalStateException("No match available");
+        sb.append(text, lastAppendPosition, first);
+        lastAppendPosition = last;
+        return sb;
+    }
+
     /**
      * Implements a terminal append-and-replace step.
      *
@@ -1119,6 +1334,120 @@ public final class Matcher implements MatchResult {
         return this;
     }
 
+    /**
+     * Limits the number of steps each match operation of this matcher can
+     * take.
+     *
+     * <p> A step is taken for each position a match is tried at, each
+     * alternative or repetition that is tried, and each backing off from
+     * a repetition, so the number of steps grows with the amount of
+     * backtracking rather than with the length of the input. A match
+     * operation that runs out of steps throws a
+     * {@link MatchBudgetExceededException}, and leaves this matcher
+     * without a match. The operations that don't need to backtrack take
+     * no steps.
+     *
+     * <p> The budget applies to each invocation of {@link #matches},
+     * {@link #lookingAt} and {@link #find}, including those made by the
+     * replace methods. It is not affected by {@link #reset}. By default
+     * there is no limit.
+     *
+     * @param  steps
+     *         The largest number of steps of a match operation, or a
+     *         negative number for no limit
+     * @return  This matcher
+     * @see #stepBudget
+     * @since 0.2.5
+     */
+    public Matcher useStepBudget(long steps) {
+        stepBudget = steps < 0 ? -1 : steps;
+        return this;
+    }
+
+    /**
+     * Returns the largest number of steps each match operation of this
+     * matcher can take.
+     *
+     * @return  The step budget, or -1 if there is no limit
+     * @see #useStepBudget
+     * @since 0.2.5
+     */
+    public long stepBudget() {
+        return stepBudget;
+    }
+
+    /**
+     * Sets a deadline for the match operations of this matcher, the given
+     * amount of time from now. A match operation that is still running at
+     * the deadline, or that is started after it, throws a
+     * {@link MatchBudgetExceededException} and leaves this matcher
+     * without a match.
+     *
+     * <p> The clock is read when a match operation starts, and then every
+     * thousand or so steps, as counted by {@link #useStepBudget}. So an
+     * operation that was started before the deadline and takes few steps
+     * runs to its end. The deadline is not affected by {@link #reset}.
+     * By default there is none.
+     *
+     * @param  timeout
+     *         The time from now to the deadline, or a negative number for
+     *         no deadline
+     * @param  unit
+     *         The unit of the timeout
+     * @return  This matcher
+     * @since 0.2.5
+     */
+    public Matcher useDeadline(long timeout, TimeUnit unit) {
+        hasDeadline = timeout >= 0;
+        if (hasDeadline)
+            deadline = System.nanoTime() + unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * Takes a step of the current match operation.
+     */
+    void step() {
+        if (--stepsLeft < 0)
+            checkBudget();
+    }
+
+    /**
+     * Starts counting the steps of a match operation, once the deadline
+     * is checked.
+     */
+    private void startSteps() {
+        stepsTaken = 0;
+        if (hasDeadline && System.nanoTime() - deadline >= 0)
+            throw new MatchBudgetExceededException(0, true);
+        countSteps();
+    }
+
+    /**
+     * Starts a count of the steps that can be taken before the next check.
+     */
+    private void countSteps() {
+        long n = hasDeadline ? DEADLINE_STEPS : Integer.MAX_VALUE;
+        if (stepBudget >= 0)
+            n = Math.min(n, stepBudget + 1 - stepsTaken);
+        stepsCounted = (int) n;
+        stepsLeft = (int) n - 1;
+    }
+
+    /**
+     * Checks the budget and the deadline once a count of steps is used up,
+     * before taking one more step.
+     */
+    private void checkBudget() {
+        long steps = stepsTaken + stepsCounted - 1;
+        if (stepBudget >= 0 && steps >= stepBudget)
+            throw new MatchBudgetExceededException(steps, false);
+        if (hasDeadline && System.nanoTime() - deadline >= 0)
+            throw new MatchBudgetExceededException(steps, true);
+        stepsTaken = steps + 1;
+        countSteps();
+    }
+
     /**
      * <p>Returns the string representation of this matcher. The
      * string representation of a <code>Matcher</code> contains information
@@ -1174,6 +1503,16 @@ public final class Matcher implements MatchResult {
         return requireEnd;
     }
 
+    /**
+     * Returns true if this matcher contains a valid match from a previous
+     * match or find operation.
+     *
+     * @return  true iff the matcher has a valid match; false otherwise
+     */
+    public boolean hasMatch() {
+        return first >= 0;
+    }
+
     /**
      * Initiates a search to find a Pattern within the given bounds.
      * The groups are filled with default values and the match of the root
@@ -1196,18 +1535,53 @@ public final class Matcher implements MatchResult {
         for (int i = 0; i < groups.length; i++)
             groups[i] = -1;
         acceptMode = NOANCHOR;
-        boolean result = parentPattern.root.match(this, from, text);
+        loopDepth = 0;
+        backtrackTop = 0;
+        boolean result;
+        try {
+            startSteps();
+            if (parentPattern.root.getClass() == Pattern.Start.class &&
+                rejectedByDfa(from)) {
+                // Same outcome as the Start node failing
+                this.hitEnd = true;
+                result = false;
+            } else {
+                result = parentPattern.root.match(this, from, text);
+            }
+        } catch (MatchBudgetExceededException e) {
+            this.first = -1;
+            throw e;
+        }
         if (!result)
             this.first = -1;
         this.oldLast = this.last;
         return result;
     }
 
+    /**
+     * Tells whether the lazy DFA of the pattern finds that there is no
+     * match in the region from the given index on, so that the search
+     * does not need to try each position with the backtracking matcher.
+     * Patterns with a $ are always searched with the backtracking matcher,
+     * which sets requireEnd as the DFA can't.
+     */
+    private boolean rejectedByDfa(int from) {
+        Pattern.LazyDfa dfa = parentPattern.dfa(false);
+        if (dfa == null || dfa.hasDollar())
+            return false;
+        int beginIndex = anchoringBounds ? this.from : 0;
+        int endIndex = anchoringBounds ? to : getTextLength();
+        return dfa.match(text, from, to, beginIndex, endIndex, false)
+            == Pattern.LazyDfa.NO_MATCH;
+    }
+
     /**
      * Initiates a search for an anchored match to a Pattern within the given
      * bounds. The groups are filled with default values and the match of the
      * root of the state machine is called. The state machine will hold the
-     * state of the match as it proceeds in this matcher.
+     * state of the match as it proceeds in this matcher. A match of the
+     * whole region is first tried with the one-pass matcher of the
+     * pattern, if it has one, which needs no backtracking.
      */
     boolean match(int from, int anchor) {
         this.hitEnd = false;
@@ -1218,7 +1592,24 @@ public final class Matcher implements MatchResult {
         for (int i = 0; i < groups.length; i++)
             groups[i] = -1;
         acceptMode = anchor;
-        boolean result = parentPattern.matchRoot.match(this, from, text);
+        loopDepth = 0;
+        backtrackTop = 0;
+        boolean result;
+        try {
+            startSteps();
+            Pattern.OnePass onePass =
+                anchor == ENDANCHOR ? parentPattern.onePass() : null;
+            if (onePass != null && onePass.matches(this, from, text)) {
+                result = true;
+            } else {
+                // A failure is confirmed by the tree, which sets hitEnd the
+                // way it always has
+                result = parentPattern.matchRoot.match(this, from, text);
+            }
+        } catch (MatchBudgetExceededException e) {
+            this.first = -1;
+            throw e;
+        }
         if (!result)
             this.first = -1;
         this.oldLast = this.last;
@@ -1254,4 +1645,39 @@ public final class Matcher implements MatchResult {
         return text.charAt(i);
     }
 
+    /**
+     * A window over a range of the input, returned by groupView.
+     */
+    private static final class GroupView implements CharSequence {
+        private CharSequence text;
+        private int start;
+        private int end;
+
+        void set(CharSequence text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int length() {
+            return end - start;
+        }
+
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start)
+                throw new IndexOutOfBoundsException("index " + index);
+            return text.charAt(start + index);
+        }
+
+        public CharSequence subSequence(int beginIndex, int endIndex) {
+            if (beginIndex < 0 || endIndex > end - start || beginIndex > endIndex)
+                throw new IndexOutOfBoundsException(
+                    "begin " + beginIndex + ", end " + endIndex);
+            return text.subSequence(start + beginIndex, start + endIndex);
+        }
+
+        public String toString() {
+            return text.subSequence(start, end).toString();
+        }
+    }
 }
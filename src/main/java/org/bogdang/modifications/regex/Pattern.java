@@ -33,7 +33,11 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.TreeMap;
 import java.util.Arrays;
+import java.util.BitSet;
 
 
 /**
@@ -911,6 +915,41 @@ public final class Pattern
      */
     public static final int UNICODE_CHARACTER_CLASS = 0x100;
 
+    /**
+     * Enables extended group names.
+     *
+     * <p> In this mode, the name of a named-capturing group (and of a named
+     * back-reference) may contain any characters. It may not begin with
+     * <tt>=</tt> or <tt>!</tt> (which denote look-behind) and it ends at
+     * the first <tt>&gt;</tt>. The same name may be given to several
+     * groups; a back-reference to such a name refers to the first of them.
+     * A back-reference may also refer to a group defined later in the
+     * pattern.
+     *
+     * <p> There is no embedded flag character for enabling extended group
+     * names.
+     */
+    public static final int EXTENDED_GROUP_NAMES = 0x200;
+
+    /**
+     * Enables linear time matching.
+     *
+     * <p> In this mode, a pattern that uses only characters, character
+     * classes, alternations, groups, greedy and reluctant quantifiers, and
+     * the <tt>^</tt>, <tt>$</tt>, <tt>\A</tt>, <tt>\Z</tt> and <tt>\z</tt>
+     * anchors outside of multiline mode is matched by simulating all of its
+     * alternatives at once, so that a match takes a time proportional to
+     * the length of the input times the size of the pattern, whatever the
+     * input. The groups are the same as without this flag. Other patterns,
+     * such as those with back references, lookaround or possessive
+     * quantifiers, are matched by backtracking as usual; use
+     * {@link #isLinearTime} to tell which way a pattern is matched.
+     *
+     * <p> There is no embedded flag character for enabling linear time
+     * matching.
+     */
+    public static final int LINEAR_TIME = 0x400;
+
     /* Pattern has only two serialized components: The pattern string
      * and the flags, which are all that is needed to recompile the pattern
      * when it is deserialized.
@@ -957,6 +996,32 @@ public final class Pattern
      */
     transient Node matchRoot;
 
+    /**
+     * The string this pattern matches if it is a plain literal (a single
+     * case sensitive BMP character or slice), otherwise null. Used by split
+     * to find the delimiters without running the state machine.
+     */
+    transient String literal;
+
+    /**
+     * The anchored and the unanchored lazy DFA, built on first use, or an
+     * empty array if the pattern can't be matched by a DFA.
+     */
+    private transient volatile LazyDfa[] dfas;
+
+    /**
+     * The one-pass matcher of the whole input, built on first use, or an
+     * empty array if the pattern is not one-pass.
+     */
+    private transient volatile OnePass[] onePass;
+
+    /**
+     * The program the lazy DFA and the one-pass matcher are built from,
+     * once programCompiled is set; guarded by this pattern.
+     */
+    private transient Program program;
+    private transient boolean programCompiled;
+
     /**
      * Temporary storage used by parsing pattern slice.
      */
@@ -968,11 +1033,82 @@ public final class Pattern
      */
     transient volatile Map<String, Integer> namedGroups;
 
+    /**
+     * Names of the named capturing groups, in the order they appear in the
+     * pattern (including duplicate names).
+     */
+    transient String[] groupTableNames;
+
+    /**
+     * Group number and string position of each named capturing group in
+     * {@link #groupTableNames}, stored in pairs.
+     */
+    transient int[] groupTableData;
+
+    /**
+     * The number of entries in the named capturing group table.
+     */
+    transient int groupTableSize;
+
     /**
      * Temporary storage used while parsing group references.
      */
     transient GroupHead[] groupNodes;
 
+    /**
+     * Temporary map from the index of a code point in temp to its index in
+     * the normalized pattern string. It is null when both are the same.
+     */
+    private transient int[] tempPositions;
+
+    /**
+     * Temporary storage of the back-references to named groups that were
+     * not yet defined when parsed (extended group names only), with
+     * their names.
+     */
+    private transient ArrayList<Node> forwardRefs;
+    private transient ArrayList<String> forwardRefNames;
+
+    /**
+     * Temporary storage of the Branch nodes, which are set up for first
+     * character dispatch once the whole tree is built.
+     */
+    private transient ArrayList<Branch> branches;
+
+    /**
+     * Temporary storage of the Loop nodes, which are given a backtracker
+     * once the whole tree is built.
+     */
+    private transient ArrayList<Loop> loops;
+
+    /**
+     * Temporary storage of the Curly and GroupCurly nodes, which are made
+     * possessive where backing off can't help once the whole tree is
+     * built.
+     */
+    private transient ArrayList<Node> quantifiers;
+
+    /**
+     * Whether the pattern being compiled has back references, after which
+     * the same position can match differently depending on the groups.
+     */
+    private transient boolean hasBackRefs;
+
+    /**
+     * Whether the pattern being compiled has a capturing group that a
+     * failed match can leave set: one inside a lookaround, an independent
+     * group, a possessive quantifier or a GroupCurly, which don't put the
+     * groups of their atom back when what follows them fails.
+     */
+    private transient boolean leavesGroups;
+
+    /**
+     * Whether the pattern being compiled has $, \Z, \z, \b, \B or a
+     * lookaround, which can look at the chars after a position and set
+     * hitEnd or requireEnd even where no match is found.
+     */
+    private transient boolean hasEndChecks;
+
     /**
      * Temporary null terminated code point array used by pattern compiling.
      */
@@ -1079,12 +1215,7 @@ public final class Pattern
      * @return  A new matcher for this pattern
      */
     public Matcher matcher(CharSequence input) {
-        if (!compiled) {
-            synchronized(this) {
-                if (!compiled)
-                    compile();
-            }
-        }
+        ensureCompiled();
         Matcher m = new Matcher(this, input);
         return m;
     }
@@ -1126,8 +1257,178 @@ public final class Pattern
      */
     public static boolean matches(String regex, CharSequence input) {
         Pattern p = Pattern.compile(regex);
-        Matcher m = p.matcher(input);
-        return m.matches();
+        return p.matches(input);
+    }
+
+    /**
+     * Tells whether the entire input sequence matches this pattern.
+     *
+     * <p> An invocation of this convenience method of the form
+     *
+     * <blockquote><pre>
+     * p.matches(input);</pre></blockquote>
+     *
+     * behaves in exactly the same way as the expression
+     *
+     * <blockquote><pre>
+     * p.matcher(input).matches()</pre></blockquote>
+     *
+     * but it doesn't need the bounds of the match, so if the pattern has
+     * no back references, lookaround or possessive quantifiers it is
+     * matched by a lazily built DFA, in linear time.  </p>
+     *
+     * @param  input
+     *         The character sequence to be matched
+     *
+     * @return  <tt>true</tt> if, and only if, the entire input sequence
+     *          matches this pattern
+     */
+    public boolean matches(CharSequence input) {
+        LazyDfa dfa = dfa(true);
+        if (dfa != null) {
+            int len = input.length();
+            int result = dfa.match(input, 0, len, 0, len, true);
+            if (result != LazyDfa.UNKNOWN)
+                return result == LazyDfa.MATCH;
+        }
+        return matcher(input).matches();
+    }
+
+    /**
+     * Tells whether some subsequence of the input sequence matches this
+     * pattern.
+     *
+     * <p> An invocation of this convenience method of the form
+     *
+     * <blockquote><pre>
+     * p.find(input);</pre></blockquote>
+     *
+     * behaves in exactly the same way as the expression
+     *
+     * <blockquote><pre>
+     * p.matcher(input).find()</pre></blockquote>
+     *
+     * and is matched by a lazily built DFA when possible, as described
+     * for {@link #matches(CharSequence)}.  </p>
+     *
+     * @param  input
+     *         The character sequence to be searched
+     *
+     * @return  <tt>true</tt> if, and only if, a subsequence of the input
+     *          sequence matches this pattern
+     */
+    public boolean find(CharSequence input) {
+        LazyDfa dfa = dfa(false);
+        if (dfa != null) {
+            int len = input.length();
+            int result = dfa.match(input, 0, len, 0, len, false);
+            if (result != LazyDfa.UNKNOWN)
+                return result == LazyDfa.MATCH;
+        }
+        return matcher(input).find();
+    }
+
+    /**
+     * Tells whether this pattern is matched in linear time, which is the
+     * case if it was compiled with the {@link #LINEAR_TIME} flag and only
+     * uses the constructs that flag supports.
+     *
+     * @return  <tt>true</tt> if, and only if, this pattern is matched in
+     *          linear time
+     */
+    public boolean isLinearTime() {
+        ensureCompiled();
+        return matchRoot instanceof PikeVM;
+    }
+
+    /**
+     * Analyzes how the time a failing match of this pattern takes grows
+     * with the length of the input, to tell up front whether the pattern
+     * can backtrack catastrophically, as nested quantifiers over the same
+     * chars and overlapping alternatives under a quantifier do. A pattern
+     * that is matched in linear time is always {@link
+     * PatternAnalysis.Complexity#LINEAR linear}.
+     *
+     * @return  The complexity of this pattern, with an input that shows it
+     * @see PatternAnalysis
+     * @since 0.2.5
+     */
+    public PatternAnalysis analyze() {
+        ensureCompiled();
+        if (matchRoot instanceof PikeVM)
+            return PatternAnalysis.LINEAR;
+        return PatternAnalysis.of(Program.compileForAnalysis(matchRoot));
+    }
+
+    /**
+     * Returns the lazy DFA that matches this pattern at the first position
+     * if anchored is true, or at any position otherwise, or null if the
+     * pattern can't be matched by a DFA.
+     */
+    LazyDfa dfa(boolean anchored) {
+        LazyDfa[] d = dfas;
+        if (d == null) {
+            ensureCompiled();
+            synchronized (this) {
+                d = dfas;
+                if (d == null) {
+                    Program prog = program();
+                    if (prog == null) {
+                        d = new LazyDfa[0];
+                    } else {
+                        d = new LazyDfa[] { new LazyDfa(prog, true),
+                                            new LazyDfa(prog, false) };
+                    }
+                    dfas = d;
+                }
+            }
+        }
+        return d.length == 0 ? null : d[anchored ? 0 : 1];
+    }
+
+    /**
+     * Returns the one-pass matcher of this pattern, or null if the pattern
+     * is not one-pass.
+     */
+    OnePass onePass() {
+        OnePass[] p = onePass;
+        if (p == null) {
+            ensureCompiled();
+            synchronized (this) {
+                p = onePass;
+                if (p == null) {
+                    Program prog = program();
+                    OnePass m = prog == null ? null : OnePass.of(prog);
+                    p = m == null ? new OnePass[0] : new OnePass[] { m };
+                    onePass = p;
+                }
+            }
+        }
+        return p.length == 0 ? null : p[0];
+    }
+
+    /**
+     * Returns a literal that every match of this pattern contains, or null
+     * if none is known.
+     */
+    String requiredLiteral() {
+        ensureCompiled();
+        Node lit = requiredLiteral(matchRoot);
+        return lit == null ? null : literalOf(lit);
+    }
+
+    /**
+     * Returns the program of this pattern, compiling it on first use, or
+     * null if the pattern can't be compiled to a program.
+     */
+    synchronized Program program() {
+        ensureCompiled();
+        if (!programCompiled) {
+            program = matchRoot instanceof PikeVM ?
+                ((PikeVM) matchRoot).prog : Program.compile(matchRoot);
+            programCompiled = true;
+        }
+        return program;
     }
 
     /**
@@ -1191,6 +1492,10 @@ public final class Pattern
      *          around matches of this pattern
      */
     public String[] split(CharSequence input, int limit) {
+        ensureCompiled();
+        if (literal != null)
+            return literalSplit(input, limit);
+
         int index = 0;
         boolean matchLimited = limit > 0;
         ArrayList<String> matchList = new ArrayList<>();
@@ -1227,6 +1532,52 @@ public final class Pattern
         return matchList.subList(0, resultSize).toArray(result);
     }
 
+    /**
+     * Splits the given input sequence around the occurrences of the
+     * literal this pattern matches, with the same result as the general
+     * split. The delimiters are found with String.indexOf instead of
+     * the state machine.
+     */
+    private String[] literalSplit(CharSequence input, int limit) {
+        String s = input.toString();
+        String lit = literal;
+        int litLength = lit.length();
+        char ch = lit.charAt(0);
+        int index = 0;
+        boolean matchLimited = limit > 0;
+        ArrayList<String> matchList = new ArrayList<>();
+
+        // Add segments before each delimiter found
+        int pos = (litLength == 1) ? s.indexOf(ch) : s.indexOf(lit);
+        while (pos >= 0) {
+            if (!matchLimited || matchList.size() < limit - 1) {
+                matchList.add(s.substring(index, pos));
+                index = pos + litLength;
+            } else { // last one
+                matchList.add(s.substring(index));
+                index = pos + litLength;
+                break;
+            }
+            pos = (litLength == 1) ? s.indexOf(ch, index) : s.indexOf(lit, index);
+        }
+
+        // If no match was found, return this
+        if (index == 0)
+            return new String[] {s};
+
+        // Add remaining segment
+        if (!matchLimited || matchList.size() < limit)
+            matchList.add(s.substring(index));
+
+        // Construct result
+        int resultSize = matchList.size();
+        if (limit == 0)
+            while (resultSize > 0 && matchList.get(resultSize-1).isEmpty())
+                resultSize--;
+        String[] result = new String[resultSize];
+        return matchList.subList(0, resultSize).toArray(result);
+    }
+
     /**
      * Splits the given input sequence around matches of this pattern.
      *
@@ -1586,20 +1937,34 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         int[] newtemp = new int[j + 2*(pLen-i) + 2];
         System.arraycopy(temp, 0, newtemp, 0, j);
 
+        // Keep track of the string position of each code point
+        int[] oldpos = tempPositions;
+        int[] newpos = new int[newtemp.length];
+        for (int k = 0; k < j; k++)
+            newpos[k] = (oldpos == null) ? k : oldpos[k];
+
         boolean inQuote = true;
         while (i < pLen) {
+            int pos = (oldpos == null) ? i : oldpos[i];
             int c = temp[i++];
             if (! ASCII.isAscii(c) || ASCII.isAlnum(c)) {
+                newpos[j] = pos;
                 newtemp[j++] = c;
             } else if (c != '\\') {
-                if (inQuote) newtemp[j++] = '\\';
+                if (inQuote) {
+                    newpos[j] = pos;
+                    newtemp[j++] = '\\';
+                }
+                newpos[j] = pos;
                 newtemp[j++] = c;
             } else if (inQuote) {
                 if (temp[i] == 'E') {
                     i++;
                     inQuote = false;
                 } else {
+                    newpos[j] = pos;
                     newtemp[j++] = '\\';
+                    newpos[j] = pos;
                     newtemp[j++] = '\\';
                 }
             } else {
@@ -1607,15 +1972,21 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     i++;
                     inQuote = true;
                 } else {
+                    newpos[j] = pos;
                     newtemp[j++] = c;
-                    if (i != pLen)
+                    if (i != pLen) {
+                        newpos[j] = (oldpos == null) ? i : oldpos[i];
                         newtemp[j++] = temp[i++];
+                    }
                 }
             }
         }
 
+        int end = (oldpos == null) ? pLen : oldpos[pLen];
+        newpos[j] = newpos[j + 1] = end;
         patternLength = j;
         temp = Arrays.copyOf(newtemp, j + 2); // double zero termination
+        tempPositions = Arrays.copyOf(newpos, j + 2);
     }
 
     /**
@@ -1646,6 +2017,16 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             temp[count++] = c;
         }
 
+        // Remember where each code point was in the string so that the
+        // group table reports string positions
+        tempPositions = null;
+        if (count != patternLength) {
+            tempPositions = new int[count + 2];
+            for (int x = 0, i = 0; i < count; x += Character.charCount(temp[i++]))
+                tempPositions[i] = x;
+            tempPositions[count] = tempPositions[count + 1] = patternLength;
+        }
+
         patternLength = count;   // patternLength now in code points
 
         if (! has(LITERAL))
@@ -1655,6 +2036,17 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         buffer = new int[32];
         groupNodes = new GroupHead[10];
         namedGroups = null;
+        groupTableNames = null;
+        groupTableData = null;
+        groupTableSize = 0;
+        forwardRefs = null;
+        forwardRefNames = null;
+        branches = new ArrayList<>();
+        loops = new ArrayList<>();
+        quantifiers = new ArrayList<>();
+        hasBackRefs = false;
+        leavesGroups = false;
+        hasEndChecks = false;
 
         if (has(LITERAL)) {
             // Literal pattern handling
@@ -1671,22 +2063,58 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     throw error("Unexpected internal error");
                 }
             }
+            if (forwardRefs != null)
+                resolveForwardRefs();
+            possessify();
+            // A skipped alternative could have left groups set
+            if (!hasBackRefs && !leavesGroups) {
+                for (Branch branch : branches)
+                    branch.initDispatch();
+            }
+            for (Loop loop : loops)
+                loop.backtracker = Backtracker.of(loop);
+        }
+
+        // Remember a plain literal for the split fast path
+        literal = null;
+        if (matchRoot.next == lastAccept) {
+            if (matchRoot instanceof Single) {
+                literal = String.valueOf((char)((Single)matchRoot).c);
+            } else if (matchRoot instanceof Slice) {
+                int[] buf = ((Slice)matchRoot).buffer;
+                literal = new String(buf, 0, buf.length);
+            }
         }
 
         // Peephole optimization
-        if (matchRoot instanceof Slice) {
+        if (matchRoot instanceof SliceNode) {
             root = BnM.optimize(matchRoot);
             if (root == matchRoot) {
-                root = hasSupplementary ? new StartS(matchRoot) : new Start(matchRoot);
+                root = hasSupplementary ? new StartS(matchRoot) : newStart(matchRoot);
             }
         } else if (matchRoot instanceof Begin || matchRoot instanceof First) {
             root = matchRoot;
         } else {
-            root = hasSupplementary ? new StartS(matchRoot) : new Start(matchRoot);
+            root = hasSupplementary ? new StartS(matchRoot) : newStart(matchRoot);
+        }
+
+        // Simulate the tree instead of backtracking if asked to
+        if (has(LINEAR_TIME)) {
+            Program prog = Program.compile(matchRoot);
+            if (prog != null && prog.loopDepth <= PikeVM.MAX_LOOP_DEPTH) {
+                root = new PikeVM(prog, false, capturingGroupCount, matchRoot);
+                matchRoot = new PikeVM(prog, true, capturingGroupCount, matchRoot);
+            }
         }
 
         // Release temporary storage
         temp = null;
+        tempPositions = null;
+        forwardRefs = null;
+        forwardRefNames = null;
+        branches = null;
+        loops = null;
+        quantifiers = null;
         buffer = null;
         groupNodes = null;
         patternLength = 0;
@@ -1699,6 +2127,104 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         return namedGroups;
     }
 
+    /**
+     * Returns the number of named capturing groups in this pattern,
+     * counting each group with a duplicate name.
+     *
+     * @return  The number of named capturing groups
+     */
+    public int namedGroupCount() {
+        ensureCompiled();
+        return groupTableSize;
+    }
+
+    /**
+     * Returns the name of a named capturing group.
+     *
+     * @param  n
+     *         The index of the named group, in the order the named groups
+     *         appear in the pattern
+     *
+     * @return  The name of the group
+     *
+     * @throws  IndexOutOfBoundsException
+     *          If there is no such named group
+     */
+    public String namedGroupName(int n) {
+        checkNamedGroup(n);
+        return groupTableNames[n];
+    }
+
+    /**
+     * Returns the capturing group number of a named capturing group, as
+     * used by {@link Matcher#group(int)}.
+     *
+     * @param  n
+     *         The index of the named group, in the order the named groups
+     *         appear in the pattern
+     *
+     * @return  The group number
+     *
+     * @throws  IndexOutOfBoundsException
+     *          If there is no such named group
+     */
+    public int namedGroupNumber(int n) {
+        checkNamedGroup(n);
+        return groupTableData[2 * n];
+    }
+
+    /**
+     * Returns the index of the opening parenthesis of a named capturing
+     * group within the pattern string (or within its canonical
+     * decomposition if {@link #CANON_EQ} is set).
+     *
+     * @param  n
+     *         The index of the named group, in the order the named groups
+     *         appear in the pattern
+     *
+     * @return  The string position of the group
+     *
+     * @throws  IndexOutOfBoundsException
+     *          If there is no such named group
+     */
+    public int namedGroupPosition(int n) {
+        checkNamedGroup(n);
+        return groupTableData[2 * n + 1];
+    }
+
+    private void checkNamedGroup(int n) {
+        ensureCompiled();
+        if (n < 0 || n >= groupTableSize)
+            throw new IndexOutOfBoundsException("No named group " + n);
+    }
+
+    private void ensureCompiled() {
+        if (!compiled) {
+            synchronized(this) {
+                if (!compiled)
+                    compile();
+            }
+        }
+    }
+
+    /**
+     * Adds a named capturing group to the group table.
+     */
+    private void addNamedGroup(String name, int group, int cursorPos) {
+        if (groupTableNames == null) {
+            groupTableNames = new String[4];
+            groupTableData = new int[8];
+        } else if (groupTableSize == groupTableNames.length) {
+            groupTableNames = Arrays.copyOf(groupTableNames, groupTableSize * 2);
+            groupTableData = Arrays.copyOf(groupTableData, groupTableSize * 4);
+        }
+        groupTableNames[groupTableSize] = name;
+        groupTableData[2 * groupTableSize] = group;
+        groupTableData[2 * groupTableSize + 1] =
+            (tempPositions == null) ? cursorPos : tempPositions[cursorPos];
+        groupTableSize++;
+    }
+
     /**
      * Used to print out a subtree of the Pattern to help with debugging.
      */
@@ -1958,6 +2484,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
     private Node expr(Node end) {
         Node prev = null;
         Node firstTail = null;
+        Branch branch = null;
         Node branchConn = null;
 
         for (;;) {
@@ -1981,8 +2508,11 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     // the "tail.next" of each atom goes to branchConn
                     nodeTail.next = branchConn;
                 }
-                if (prev instanceof Branch) {
-                    ((Branch)prev).add(node);
+                // Every alternative goes into the branch of this expr. JDK 7
+                // added it to the first alternative instead if that started
+                // with a Branch, so (a)?x| did not match the empty string.
+                if (branch != null) {
+                    branch.add(node);
                 } else {
                     if (prev == end) {
                         prev = null;
@@ -1991,16 +2521,269 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                         // when put the "prev" into the branch as the first atom.
                         firstTail.next = branchConn;
                     }
-                    prev = new Branch(prev, node, branchConn);
+                    prev = branch = newBranch(prev, node, branchConn);
                 }
             }
             if (peek() != '|') {
+                if (branch != null) {
+                    root = branchConn;  //double return
+                    CharProperty union = unionOf(branch);
+                    if (union != null) {
+                        branches.remove(branch);
+                        union.next = end;
+                        root = prev = union;
+                    } else {
+                        prev = factor(branch);
+                    }
+                }
                 return prev;
             }
             next();
         }
     }
 
+    /**
+     * Returns a char class that matches what a branch does if each of its
+     * alternatives matches a single char, or null. A class of chars below
+     * 256 is a BitClass. The class studies as non-deterministic, like the
+     * branch, so that a quantified group around it still loops with a Loop
+     * and keeps its nested captures the same way.
+     */
+    private static CharProperty unionOf(Branch branch) {
+        final CharProperty[] alts = new CharProperty[branch.size];
+        boolean bmp = true;
+        boolean latin1 = true;
+        for (int n = 0; n < branch.size; n++) {
+            Node atom = branch.atoms[n];
+            if (!(atom instanceof CharProperty) || atom.next != branch.conn)
+                return null;
+            alts[n] = (CharProperty)atom;
+            if (atom instanceof Single)
+                latin1 &= ((Single)atom).c < 256;
+            else if (!(atom instanceof BitClass || atom instanceof Ctype ||
+                       atom instanceof SingleI))
+                latin1 = false;
+            if (!(atom instanceof BmpCharProperty))
+                bmp = false;
+        }
+        if (latin1) {
+            BitClass bits = new BitClass();
+            bits.alternation = true;
+            for (int ch = 0; ch < 256; ch++) {
+                for (CharProperty alt : alts)
+                    bits.bits[ch] |= alt.isSatisfiedBy(ch);
+            }
+            return bits;
+        }
+        if (bmp) {
+            return new BmpCharProperty() {
+                    boolean isSatisfiedBy(int ch) {
+                        for (CharProperty alt : alts) {
+                            if (alt.isSatisfiedBy(ch))
+                                return true;
+                        }
+                        return false;
+                    }
+                    boolean study(TreeInfo info) {
+                        info.deterministic = false;
+                        return super.study(info);
+                    }};
+        }
+        // Matched by code point, a surrogate char could no longer match
+        for (CharProperty alt : alts) {
+            if (alt instanceof Single &&
+                Character.isSurrogate((char)((Single)alt).c))
+                return null;
+        }
+        return new CharProperty() {
+                boolean isSatisfiedBy(int ch) {
+                    for (CharProperty alt : alts) {
+                        if (alt.isSatisfiedBy(ch))
+                            return true;
+                    }
+                    return false;
+                }
+                boolean study(TreeInfo info) {
+                    info.deterministic = false;
+                    return super.study(info);
+                }};
+    }
+
+    /**
+     * Factors the literal suffix that all the alternatives of a branch end
+     * with, and the literal prefixes that consecutive alternatives start
+     * with, out of the branch: "xa|ya" becomes "(?:x|y)a" and "ab|ac|d"
+     * becomes "a(?:b|c)|d", so that a shared prefix is matched once. The
+     * alternatives are tried in the same order, and only literals move,
+     * so the matches and the groups stay the same. Alternations that are
+     * matched through a LiteralTrie are left alone. Returns the first node
+     * of what replaces the branch, and its last node in root.
+     */
+    private Node factor(Branch branch) {
+        if (LiteralTrie.of(branch) != null) {
+            root = branch.conn;
+            return branch;
+        }
+        Node suffix = factorSuffix(branch);
+        Node head = factorPrefixes(branch);
+        if (suffix != null)
+            root = suffix;
+        return head;
+    }
+
+    /**
+     * Moves the longest literal suffix of all the alternatives of a branch
+     * after its connection node. Returns the suffix, or null if there is
+     * none.
+     */
+    private static Node factorSuffix(Branch branch) {
+        Node conn = branch.conn;
+        Node[] tails = new Node[branch.size];
+        int[] suffix = null;
+        int fold = -1;
+        int common = 0;
+        for (int n = 0; n < branch.size; n++) {
+            Node tail = branch.atoms[n] == null ? null :
+                predecessor(branch.atoms[n], conn);
+            int f = tail == null ? -1 : foldOf(tail);
+            if (f < 0 || (n > 0 && f != fold))
+                return null;
+            fold = f;
+            int[] chars = charsOf(tail);
+            if (n == 0) {
+                suffix = chars;
+                common = chars.length;
+            } else {
+                int k = 0;
+                while (k < common && k < chars.length &&
+                       chars[chars.length - 1 - k] == suffix[suffix.length - 1 - k])
+                    k++;
+                common = k;
+            }
+            if (common == 0)
+                return null;
+            tails[n] = tail;
+        }
+        for (int n = 0; n < branch.size; n++) {
+            Node tail = tails[n];
+            int[] chars = charsOf(tail);
+            Node rest = conn;
+            if (common < chars.length) {
+                rest = literal(fold, Arrays.copyOf(chars, chars.length - common));
+                rest.next = conn;
+            }
+            if (branch.atoms[n] == tail)
+                branch.atoms[n] = rest == conn ? null : rest;
+            else
+                predecessor(branch.atoms[n], tail).next = rest;
+        }
+        Node node = literal(fold, Arrays.copyOfRange(suffix, suffix.length - common,
+                                                     suffix.length));
+        node.next = conn.next;
+        conn.next = node;
+        return node;
+    }
+
+    /**
+     * Factors the longest literal prefix of each run of consecutive
+     * alternatives that start with the same char out of a branch, and
+     * makes the rest of the run a branch of its own, which is factored in
+     * turn. Returns the first node of what replaces the branch, and in
+     * root the node that now stands for its connection node.
+     */
+    private Node factorPrefixes(Branch branch) {
+        Node conn = branch.conn;
+        List<Node> alts = new ArrayList<>();
+        for (int n = 0; n < branch.size; ) {
+            Node atom = branch.atoms[n];
+            int fold = atom == null ? -1 : foldOf(atom);
+            int[] chars = fold < 0 ? null : charsOf(atom);
+            int common = chars == null ? 0 : chars.length;
+            int m = n + 1;
+            for (; m < branch.size && common > 0; m++) {
+                Node other = branch.atoms[m];
+                if (other == null || foldOf(other) != fold ||
+                    predecessor(other, conn) == null)
+                    break;
+                int[] next = charsOf(other);
+                int k = 0;
+                while (k < common && k < next.length && next[k] == chars[k])
+                    k++;
+                if (k == 0)
+                    break;
+                common = k;
+            }
+            if (m - n < 2 || predecessor(atom, conn) == null) {
+                alts.add(atom);
+                n++;
+                continue;
+            }
+            Node prefix = literal(fold, Arrays.copyOf(chars, common));
+            if (m - n == branch.size) {
+                for (int k = 0; k < branch.size; k++)
+                    branch.atoms[k] = strip(branch.atoms[k], common, conn);
+                prefix.next = factorPrefixes(branch);
+                return prefix;
+            }
+            Node innerConn = new BranchConn();
+            innerConn.next = conn;
+            for (int k = n; k < m; k++)
+                predecessor(branch.atoms[k], conn).next = innerConn;
+            Branch inner = newBranch(strip(branch.atoms[n], common, innerConn),
+                                     strip(branch.atoms[n + 1], common, innerConn),
+                                     innerConn);
+            for (int k = n + 2; k < m; k++)
+                inner.add(strip(branch.atoms[k], common, innerConn));
+            prefix.next = factorPrefixes(inner);
+            alts.add(prefix);
+            n = m;
+        }
+        if (alts.size() < branch.size) {
+            branch.atoms = alts.toArray(new Node[alts.size()]);
+            branch.size = alts.size();
+        }
+        root = conn;
+        CharProperty union = unionOf(branch);
+        if (union != null) {
+            branches.remove(branch);
+            union.next = conn.next;
+            root = union;
+            return union;
+        }
+        return branch;
+    }
+
+    /**
+     * Returns the alternative that is left of the given one, which starts
+     * with a literal, once its first count chars are taken away.
+     */
+    private static Node strip(Node atom, int count, Node conn) {
+        int[] chars = charsOf(atom);
+        if (count < chars.length) {
+            Node rest = literal(foldOf(atom),
+                                Arrays.copyOfRange(chars, count, chars.length));
+            rest.next = atom.next;
+            return rest;
+        }
+        return atom.next == conn ? null : atom.next;
+    }
+
+    /**
+     * Returns the node that the target follows in the sequence that starts
+     * with the given node, stepping over alternations and loops, or null
+     * if the sequence does not reach it.
+     */
+    private static Node predecessor(Node node, Node target) {
+        while (node != null) {
+            Node after = node instanceof Branch ? ((Branch)node).conn :
+                node instanceof Prolog ? ((Prolog)node).loop : node.next;
+            if (after == target)
+                return node;
+            node = after;
+        }
+        return null;
+    }
+
     /**
      * Parsing of sequences between alternations.
      */
@@ -2063,6 +2846,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     node = new UnixDollar(has(MULTILINE));
                 else
                     node = new Dollar(has(MULTILINE));
+                hasEndChecks = true;
                 break;
             case '.':
                 next();
@@ -2099,6 +2883,8 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             }
 
             node = closure(node);
+            if (node instanceof Curly)
+                quantifiers.add(node);
 
             if (head == null) {
                 head = tail = node;
@@ -2111,17 +2897,114 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             return end;
         }
         tail.next = end;
-        root = tail;      //double return
+        return mergeLiterals(head, end);
+    }
+
+    /**
+     * Merges the adjacent literals of the same kind in a sequence, such as
+     * the ones of groups that were left out, into one slice. Returns the
+     * head of the sequence, and its last node in root.
+     */
+    private Node mergeLiterals(Node head, Node end) {
+        Node prev = null;
+        Node node = head;
+        Node last = head;
+        while (node != end && node != null) {
+            // Step over the alternatives and the loop bodies
+            Node after = node instanceof Branch ? ((Branch)node).conn :
+                node instanceof Prolog ? ((Prolog)node).loop : node.next;
+            Node merged = after == end ? null : concat(node, after);
+            if (merged != null) {
+                merged.next = after.next;
+                if (prev == null)
+                    head = merged;
+                else
+                    prev.next = merged;
+                node = merged;
+                continue;
+            }
+            prev = last = node;
+            node = after;
+        }
+        root = last;      //double return
         return head;
     }
 
     /**
-     * Parse and add a new Single or Slice.
+     * Returns a slice that matches what the literal a followed by the
+     * literal b do, or null if they are not literals of the same kind.
      */
-    private Node atom() {
-        int first = 0;
-        int prev = -1;
-        boolean hasSupplementary = false;
+    private static Node concat(Node a, Node b) {
+        int fold = foldOf(a);
+        if (fold < 0 || fold != foldOf(b))
+            return null;
+        int[] first = charsOf(a);
+        int[] second = charsOf(b);
+        int[] buf = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, buf, first.length, second.length);
+        return literal(fold, buf);
+    }
+
+    /**
+     * Returns a literal that matches the given chars, folding the input as
+     * foldOf says.
+     */
+    private static Node literal(int fold, int[] buf) {
+        if (buf.length == 1) {
+            int c = buf[0];
+            if (fold == LiteralSearch.UNICODE_CASE)
+                return new SingleU(c);
+            if (fold == LiteralSearch.ASCII_CASE && ASCII.isAscii(c) &&
+                ASCII.toUpper(c) != c)
+                return new SingleI(c, ASCII.toUpper(c));
+            return new Single(c);
+        }
+        if (fold == LiteralSearch.EXACT)
+            return new Slice(buf);
+        if (fold == LiteralSearch.ASCII_CASE)
+            return new SliceI(buf);
+        return new SliceU(buf);
+    }
+
+    /**
+     * Returns how a literal that matches one BMP char at a time folds the
+     * input, or -1 if the node is not one.
+     */
+    private static int foldOf(Node node) {
+        Class<?> type = node.getClass();
+        if (type == Single.class || type == Slice.class)
+            return LiteralSearch.EXACT;
+        if (type == SingleI.class || type == SliceI.class)
+            return LiteralSearch.ASCII_CASE;
+        if (type == SliceU.class)
+            return LiteralSearch.UNICODE_CASE;
+        if (type == SingleU.class) {
+            // a supplementary or surrogate char is matched by code point
+            int c = ((SingleU)node).lower;
+            if (c < Character.MIN_SURROGATE ||
+                (c > Character.MAX_SURROGATE && c < Character.MIN_SUPPLEMENTARY_CODE_POINT))
+                return LiteralSearch.UNICODE_CASE;
+        }
+        return -1;
+    }
+
+    private static int[] charsOf(Node node) {
+        if (node instanceof SliceNode)
+            return ((SliceNode)node).buffer;
+        if (node instanceof Single)
+            return new int[] { ((Single)node).c };
+        if (node instanceof SingleI)
+            return new int[] { ((SingleI)node).lower };
+        return new int[] { ((SingleU)node).lower };
+    }
+
+    /**
+     * Parse and add a new Single or Slice.
+     */
+    private Node atom() {
+        int first = 0;
+        int prev = -1;
+        boolean hasSupplementary = false;
         int ch = peek();
         for (;;) {
             switch (ch) {
@@ -2245,6 +3128,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 break;
             }
         }
+        hasBackRefs = true;
         if (has(CASE_INSENSITIVE))
             return new CIBackRef(refNum, has(UNICODE_CASE));
         else
@@ -2284,7 +3168,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             return -1;
         case 'B':
             if (inclass) break;
-            if (create) root = new Bound(Bound.NONE, has(UNICODE_CHARACTER_CLASS));
+            if (create) {
+                root = new Bound(Bound.NONE, has(UNICODE_CHARACTER_CLASS));
+                hasEndChecks = true;
+            }
             return -1;
         case 'C':
             break;
@@ -2336,13 +3223,17 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     root = new UnixDollar(false);
                 else
                     root = new Dollar(false);
+                hasEndChecks = true;
             }
             return -1;
         case 'a':
             return '\007';
         case 'b':
             if (inclass) break;
-            if (create) root = new Bound(Bound.BOTH, has(UNICODE_CHARACTER_CLASS));
+            if (create) {
+                root = new Bound(Bound.BOTH, has(UNICODE_CHARACTER_CLASS));
+                hasEndChecks = true;
+            }
             return -1;
         case 'c':
             return c();
@@ -2365,14 +3256,26 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 break;
             if (read() != '<')
                 throw error("\\k is not followed by '<' for named capturing group");
-            String name = groupname(read());
-            if (!namedGroups().containsKey(name))
+            String name = groupname(has(EXTENDED_GROUP_NAMES) ? readEscaped() : read());
+            Integer group = namedGroups().get(name);
+            if (group == null && !has(EXTENDED_GROUP_NAMES))
                 throw error("(named capturing group <"+ name+"> does not exit");
             if (create) {
+                // the group of a forward reference is set once it's known
+                int refNum = (group == null) ? 0 : group;
+                hasBackRefs = true;
                 if (has(CASE_INSENSITIVE))
-                    root = new CIBackRef(namedGroups().get(name), has(UNICODE_CASE));
+                    root = new CIBackRef(refNum, has(UNICODE_CASE));
                 else
-                    root = new BackRef(namedGroups().get(name));
+                    root = new BackRef(refNum);
+                if (group == null) {
+                    if (forwardRefs == null) {
+                        forwardRefs = new ArrayList<>();
+                        forwardRefNames = new ArrayList<>();
+                    }
+                    forwardRefs.add(root);
+                    forwardRefNames.add(name);
+                }
             }
             return -1;
         case 'l':
@@ -2408,7 +3311,10 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             break;
         case 'z':
             if (inclass) break;
-            if (create) root = new End();
+            if (create) {
+                root = new End();
+                hasEndChecks = true;
+            }
             return -1;
         default:
             return ch;
@@ -2736,6 +3642,8 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      * ">" is consumed after parsing.
      */
     private String groupname(int ch) {
+        if (has(EXTENDED_GROUP_NAMES))
+            return extendedGroupname(ch);
         StringBuilder sb = new StringBuilder();
         sb.append(Character.toChars(ch));
         while (ASCII.isLower(ch=read()) || ASCII.isUpper(ch) ||
@@ -2749,6 +3657,91 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         return sb.toString();
     }
 
+    /**
+     * Parses and returns an extended group name (see
+     * {@link #EXTENDED_GROUP_NAMES}), which takes all characters up to the
+     * first ">". The trailing ">" is consumed after parsing.
+     */
+    private String extendedGroupname(int ch) {
+        int start = cursor - 1;
+        if (ch == '=' || ch == '!' || ch == '>' || start >= patternLength)
+            throw error("named capturing group has 0 length name");
+        while ((ch = temp[cursor]) != '>') {
+            if (cursor >= patternLength)
+                throw error("named capturing group is missing trailing '>'");
+            cursor++;
+        }
+        String name = new String(temp, start, cursor - start);
+        cursor++;
+        return name;
+    }
+
+    /**
+     * Resolves the back-references to groups that were defined after them
+     * (extended group names only).
+     */
+    private void resolveForwardRefs() {
+        for (int n = 0; n < forwardRefs.size(); n++) {
+            String name = forwardRefNames.get(n);
+            Integer group = namedGroups().get(name);
+            if (group == null)
+                throw new PatternSyntaxException("named capturing group <"
+                    + name + "> does not exist", normalizedPattern, -1);
+            Node ref = forwardRefs.get(n);
+            if (ref instanceof CIBackRef)
+                ((CIBackRef)ref).groupIndex = group + group;
+            else
+                ((BackRef)ref).groupIndex = group + group;
+        }
+    }
+
+    /**
+     * Makes the greedy quantifiers possessive where backing off can't lead
+     * to a match: the nodes after them can't match an empty string, nor
+     * start with a char that an iteration can start with, so they fail at
+     * every position the quantifier would back off to. A Loop qualifies
+     * only if its body always matches the same length, so that it can back
+     * off to the starts of its iterations only, and if the pattern has no
+     * back references, for which another way to the same position could
+     * make a difference.
+     */
+    private void possessify() {
+        for (Node node : quantifiers) {
+            if (node instanceof Curly) {
+                Curly curly = (Curly)node;
+                if (curly.type == GREEDY && cannotFollow(curly.atom, curly.next)) {
+                    curly.type = POSSESSIVE;
+                    curly.auto = true;
+                }
+            } else {
+                GroupCurly curly = (GroupCurly)node;
+                if (curly.type == GREEDY && cannotFollow(curly.atom, curly.next)) {
+                    curly.type = POSSESSIVE;
+                    curly.auto = true;
+                }
+            }
+        }
+        if (hasBackRefs)
+            return;
+        for (Loop loop : loops) {
+            if (!(loop instanceof LazyLoop) && loop.bodyLength > 0 &&
+                cannotFollow(loop.body, loop.next))
+                loop.cutIndex = localCount++;
+        }
+    }
+
+    /**
+     * Returns whether the chain after a quantifier must consume a char,
+     * and can't start with a char that its atom can start with.
+     */
+    private static boolean cannotFollow(Node atom, Node after) {
+        FirstChars first = FirstChars.of(atom);
+        if (first == null)
+            return false;
+        FirstChars follow = FirstChars.of(after);
+        return follow != null && !first.intersects(follow);
+    }
+
     /**
      * Parses a group and returns the head node of a set of nodes that process
      * the group. Sometimes a double return system is used where the tail is
@@ -2756,9 +3749,13 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      */
     private Node group0() {
         boolean capturingGroup = false;
+        boolean pure = false;
         Node head = null;
         Node tail = null;
+        Node last = null;
         int save = flags;
+        int groupPos = cursor;
+        int groupCount = capturingGroupCount;
         root = null;
         int ch = next();
         if (ch == '?') {
@@ -2768,6 +3765,8 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 head = createGroup(true);
                 tail = root;
                 head.next = expr(tail);
+                pure = true;
+                last = root;
                 break;
             case '=':   // (?=xxx) and (?!xxx) lookahead
             case '!':
@@ -2787,17 +3786,21 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 head = tail = new Ques(head, INDEPENDENT);
                 break;
             case '<':   // (?<xxx)  look behind
-                ch = read();
-                if (ASCII.isLower(ch) || ASCII.isUpper(ch)) {
+                ch = has(EXTENDED_GROUP_NAMES) ? readEscaped() : read();
+                if (ASCII.isLower(ch) || ASCII.isUpper(ch) ||
+                    (has(EXTENDED_GROUP_NAMES) && ch != '=' && ch != '!')) {
                     // named captured group
                     String name = groupname(ch);
-                    if (namedGroups().containsKey(name))
+                    boolean duplicate = namedGroups().containsKey(name);
+                    if (duplicate && !has(EXTENDED_GROUP_NAMES))
                         throw error("Named capturing group <" + name
                                     + "> is already defined");
                     capturingGroup = true;
                     head = createGroup(false);
                     tail = root;
-                    namedGroups().put(name, capturingGroupCount-1);
+                    if (!duplicate)
+                        namedGroups().put(name, capturingGroupCount-1);
+                    addNamedGroup(name, capturingGroupCount-1, groupPos);
                     head.next = expr(tail);
                     break;
                 }
@@ -2845,6 +3848,8 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 head = createGroup(true);
                 tail = root;
                 head.next = expr(tail);
+                pure = true;
+                last = root;
                 break;
             }
         } else { // (xxx) a regular group
@@ -2856,10 +3861,29 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
 
         accept(')', "Unclosed group");
         flags = save;
+        if (head instanceof Pos || head instanceof Neg ||
+            head instanceof Behind || head instanceof NotBehind)
+            hasEndChecks = true;
+        // The groups inside, and not the group itself
+        boolean inner = capturingGroupCount >
+            groupCount + (capturingGroup ? 1 : 0);
+        if (inner && (head instanceof Pos || head instanceof Neg ||
+                      head instanceof Behind || head instanceof NotBehind ||
+                      head instanceof Ques))
+            leavesGroups = true;
 
         // Check for quantifiers
         Node node = closure(head);
         if (node == head) { // No closure
+            // A pure group is only its nodes, unless they start with an
+            // anchor that would then pick another root
+            if (pure && head.next == tail)
+                return null;
+            if (pure && last.next == tail &&
+                !(head.next instanceof Begin || head.next instanceof First)) {
+                root = last;
+                return head.next;   // Dual return
+            }
             root = tail;
             return node;    // Dual return
         }
@@ -2871,33 +3895,37 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         if (node instanceof Ques) {
             Ques ques = (Ques) node;
             if (ques.type == POSSESSIVE) {
+                leavesGroups |= capturingGroupCount > groupCount;
                 root = node;
                 return node;
             }
             tail.next = new BranchConn();
             tail = tail.next;
             if (ques.type == GREEDY) {
-                head = new Branch(head, null, tail);
+                head = newBranch(head, null, tail);
             } else { // Reluctant quantifier
-                head = new Branch(null, head, tail);
+                head = newBranch(null, head, tail);
             }
             root = tail;
             return head;
         } else if (node instanceof Curly) {
             Curly curly = (Curly) node;
             if (curly.type == POSSESSIVE) {
+                leavesGroups |= capturingGroupCount > groupCount;
                 root = node;
                 return node;
             }
             // Discover if the group is deterministic
             TreeInfo info = new TreeInfo();
             if (head.study(info)) { // Deterministic
+                leavesGroups |= inner;
                 GroupTail temp = (GroupTail) tail;
                 head = root = new GroupCurly(head.next, curly.cmin,
                                    curly.cmax, curly.type,
                                    ((GroupTail)tail).localIndex,
                                    ((GroupTail)tail).groupIndex,
                                              capturingGroup);
+                quantifiers.add(head);
                 return head;
             } else { // Non-deterministic
                 int temp = ((GroupHead) head).localIndex;
@@ -2907,10 +3935,13 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 else  // Reluctant Curly
                     loop = new LazyLoop(this.localCount, temp);
                 Prolog prolog = new Prolog(loop);
+                loops.add(loop);
                 this.localCount += 1;
                 loop.cmin = curly.cmin;
                 loop.cmax = curly.cmax;
                 loop.body = head;
+                if (info.maxValid && info.minLength == info.maxLength)
+                    loop.bodyLength = info.minLength;
                 tail.next = loop;
                 root = loop;
                 return prolog; // Dual return
@@ -2919,6 +3950,15 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         throw error("Internal logic error");
     }
 
+    /**
+     * Creates a Branch node and remembers it for first character dispatch.
+     */
+    private Branch newBranch(Node first, Node second, Node branchConn) {
+        Branch branch = new Branch(first, second, branchConn);
+        branches.add(branch);
+        return branch;
+    }
+
     /**
      * Create group head and tail nodes using double return. If the group is
      * created with anonymous true then it is a pure group and should not
@@ -3261,6 +4301,8 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      */
     private static final class BitClass extends BmpCharProperty {
         final boolean[] bits;
+        /** Set when the class was merged from an alternation. */
+        boolean alternation;
         BitClass() { bits = new boolean[256]; }
         private BitClass(boolean[] bits) { this.bits = bits; }
         BitClass add(int c, int flags) {
@@ -3280,6 +4322,11 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         boolean isSatisfiedBy(int ch) {
             return ch < 256 && bits[ch];
         }
+        boolean study(TreeInfo info) {
+            if (alternation)
+                info.deterministic = false;
+            return super.study(info);
+        }
     }
 
     /**
@@ -3392,19 +4439,38 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
      */
     static class Start extends Node {
         int minLength;
+        /**
+         * The chars below 256 a match can start with, and whether it can
+         * start with a higher char, or null if not known (BMP-only trees).
+         */
+        boolean[] firstChars;
+        boolean firstHigh;
         Start(Node node) {
             this.next = node;
             TreeInfo info = new TreeInfo();
             next.study(info);
             minLength = info.minLength;
         }
+        void setFirstChars(FirstChars first) {
+            if (first != null) {
+                firstChars = first.bits;
+                firstHigh = first.high;
+            }
+        }
         boolean match(Matcher matcher, int i, CharSequence seq) {
             if (i > matcher.to - minLength) {
                 matcher.hitEnd = true;
                 return false;
             }
             int guard = matcher.to - minLength;
+            boolean[] first = firstChars;
             for (; i <= guard; i++) {
+                if (first != null && i < matcher.to) {
+                    char c = seq.charAt(i);
+                    if (c < 256 ? !first[c] : !firstHigh)
+                        continue;
+                }
+                matcher.step();
                 if (next.match(matcher, i, seq)) {
                     matcher.first = i;
                     matcher.groups[0] = matcher.first;
@@ -3438,6 +4504,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             int guard = matcher.to - minLength;
             while (i <= guard) {
                 //if ((ret = next.match(matcher, i, seq)) || i == guard)
+                matcher.step();
                 if (next.match(matcher, i, seq)) {
                     matcher.first = i;
                     matcher.groups[0] = matcher.first;
@@ -3460,6 +4527,305 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         }
     }
 
+    /**
+     * Returns the Start node for an unanchored search of the given BMP-only
+     * tree. If every match must contain a literal (a slice or Single that is
+     * not optional), the node skips to the occurrences of that literal
+     * instead of trying every position. Every position is tried if a
+     * failed attempt can leave groups set, which the match found later
+     * reports and its back references read. The literal is not skipped to
+     * if the tree has end checks, which must run to set requireEnd even
+     * when the literal is not found.
+     */
+    private Start newStart(Node node) {
+        if (hasBackRefs || leavesGroups)
+            return new Start(node);
+        Node lit = hasEndChecks ? null : requiredLiteral(node, true);
+        Start start;
+        if (lit == null) {
+            start = new Start(node);
+            start.setFirstChars(FirstChars.of(node));
+            return start;
+        }
+        String literal = literalOf(lit);
+
+        // The literal starts between minOffset and maxOffset chars after
+        // the start of a match. The lengths are counted in code points, and
+        // a code point may take two chars.
+        TreeInfo total = new TreeInfo();
+        node.study(total);
+        TreeInfo rest = new TreeInfo();
+        lit.study(rest);
+        int minOffset = total.minLength - rest.minLength;
+        int maxOffset = -1;
+        if (total.maxValid && rest.maxValid) {
+            long max = 2L * (total.maxLength - rest.maxLength);
+            if (max >= minOffset && max < Integer.MAX_VALUE)
+                maxOffset = (int)max;
+        }
+        start = new LiteralStart(node, literal, LiteralSearch.foldOf(lit),
+                                 minOffset, maxOffset);
+        start.setFirstChars(FirstChars.of(node));
+        return start;
+    }
+
+    /**
+     * Returns the longest Slice or Single that every match of the node
+     * chain goes through, or null if there is none.
+     */
+    private static Node requiredLiteral(Node node) {
+        return requiredLiteral(node, false);
+    }
+
+    /**
+     * Returns the longest Slice or Single, or if caseless is set the longest
+     * BMP-only slice that a LiteralSearch can find, that every match of the
+     * node chain goes through, or null if there is none.
+     */
+    private static Node requiredLiteral(Node node, boolean caseless) {
+        // Walk the nodes every match goes through, skipping the optional
+        // parts, and take the longest literal
+        Node lit = null;
+        int litLength = 0;
+        Node n = node;
+        while (n != null && n != lastAccept) {
+            if (n instanceof Slice && ((Slice)n).buffer.length > litLength) {
+                lit = n;
+                litLength = ((Slice)n).buffer.length;
+            } else if (n instanceof Single && litLength == 0) {
+                lit = n;
+                litLength = 1;
+            } else if (caseless && (n instanceof SliceI || n instanceof SliceU) &&
+                       ((SliceNode)n).buffer.length > litLength &&
+                       LiteralSearch.foldOf(n) >= 0) {
+                lit = n;
+                litLength = ((SliceNode)n).buffer.length;
+            }
+            if (n instanceof Branch) {
+                n = ((Branch)n).conn.next;
+            } else if (n instanceof CharProperty || n instanceof SliceNode ||
+                       n instanceof GroupHead || n instanceof GroupTail ||
+                       n instanceof Curly || n instanceof GroupCurly ||
+                       n instanceof Ques || n instanceof Begin ||
+                       n instanceof End || n instanceof Caret ||
+                       n instanceof UnixCaret || n instanceof Dollar ||
+                       n instanceof UnixDollar || n instanceof Bound ||
+                       n instanceof Pos || n instanceof Neg ||
+                       n instanceof Behind || n instanceof NotBehind) {
+                n = n.next;
+            } else {
+                break;
+            }
+        }
+        return lit;
+    }
+
+    /**
+     * Returns the text of a literal found by requiredLiteral.
+     */
+    private static String literalOf(Node lit) {
+        if (lit instanceof SliceNode) {
+            int[] buf = ((SliceNode)lit).buffer;
+            return new String(buf, 0, buf.length);
+        }
+        return String.valueOf((char)((Single)lit).c);
+    }
+
+    /**
+     * The set of chars the matches of a node chain can start with: the
+     * chars below 256 in a table, and a single flag for all the higher
+     * chars. It's computed conservatively, following the nodes that can
+     * match an empty string, and gives up on nodes it doesn't know.
+     */
+    static final class FirstChars {
+        final boolean[] bits = new boolean[256];
+        boolean high;
+        /** whether the set is unknown */
+        boolean any;
+        /** the number of nodes left to visit before giving up */
+        int budget = 1000;
+
+        /**
+         * Returns the first chars of the given chain, or null if they are
+         * not known or if the chain can match an empty string.
+         */
+        static FirstChars of(Node node) {
+            FirstChars first = new FirstChars();
+            boolean empty = first.add(node);
+            return (first.any || empty) ? null : first;
+        }
+
+        /**
+         * Adds the first chars of the given chain to this set and returns
+         * whether the chain can match an empty string.
+         */
+        boolean add(Node node) {
+            Node n = node;
+            while (!any) {
+                if (--budget < 0) {
+                    any = true;
+                    break;
+                }
+                if (n == null || n == accept || n == lastAccept)
+                    return true;
+                if (n instanceof CharProperty) {
+                    addChars((CharProperty)n);
+                    return false;
+                }
+                if (n instanceof SliceNode) {
+                    int[] buf = ((SliceNode)n).buffer;
+                    if (buf.length == 0) {
+                        n = n.next;
+                        continue;
+                    }
+                    if (n instanceof Slice) {
+                        addChar(buf[0]);
+                    } else if (n.getClass() == SliceI.class) {
+                        addChar(buf[0]);
+                        addChar(ASCII.toUpper(buf[0]));
+                    } else {
+                        any = true;
+                    }
+                    return false;
+                }
+                if (n instanceof Branch) {
+                    Branch b = (Branch)n;
+                    boolean empty = false;
+                    for (int k = 0; k < b.size; k++)
+                        empty |= add(b.atoms[k] == null ? b.conn.next : b.atoms[k]);
+                    // the alternatives include the nodes after the branch
+                    return empty;
+                }
+                if (n instanceof Curly || n instanceof GroupCurly) {
+                    Node atom;
+                    int cmin;
+                    if (n instanceof Curly) {
+                        atom = ((Curly)n).atom;
+                        cmin = ((Curly)n).cmin;
+                    } else {
+                        atom = ((GroupCurly)n).atom;
+                        cmin = ((GroupCurly)n).cmin;
+                    }
+                    if (!add(atom) && cmin > 0)
+                        return false;
+                    n = n.next;
+                    continue;
+                }
+                if (n instanceof Ques) {
+                    add(((Ques)n).atom);
+                    n = n.next;
+                    continue;
+                }
+                if (n instanceof GroupHead || n instanceof GroupTail ||
+                    n instanceof BranchConn || n instanceof Begin ||
+                    n instanceof End || n instanceof Caret ||
+                    n instanceof UnixCaret || n instanceof LastMatch) {
+                    // zero length, and hitEnd is only set at the end of
+                    // the input, where no position or alternative is
+                    // skipped
+                    n = n.next;
+                    continue;
+                }
+                // Anything else, such as $, \b or a lookaround, may look
+                // past the current char and set hitEnd or requireEnd even
+                // if the match then fails, so it has to be tried
+                any = true;
+            }
+            return true;
+        }
+
+        /**
+         * Returns whether this set and the given one have a char in common.
+         */
+        boolean intersects(FirstChars other) {
+            if (high && other.high)
+                return true;
+            for (int ch = 0; ch < 256; ch++) {
+                if (bits[ch] && other.bits[ch])
+                    return true;
+            }
+            return false;
+        }
+
+        private void addChar(int ch) {
+            if (ch < 256)
+                bits[ch] = true;
+            else
+                high = true;
+        }
+
+        private void addChars(CharProperty cp) {
+            if (cp instanceof Single) {
+                addChar(((Single)cp).c);
+                return;
+            }
+            for (int ch = 0; ch < 256; ch++) {
+                if (cp.isSatisfiedBy(ch))
+                    bits[ch] = true;
+            }
+            if (!(cp instanceof BitClass || cp instanceof Ctype ||
+                  cp instanceof SingleI))
+                high = true;
+        }
+    }
+
+    /**
+     * Start node for trees that contain a required literal. Before trying
+     * a position, it searches for the next occurrence of the literal that
+     * a match starting there could contain, failing as soon as there is
+     * none and skipping the positions too far before it.
+     */
+    static final class LiteralStart extends Start {
+        final String literal;
+        final LiteralSearch search;
+        final int minOffset;
+        final int maxOffset;
+        LiteralStart(Node node, String literal, int fold, int minOffset,
+                     int maxOffset) {
+            super(node);
+            this.literal = literal;
+            this.search = LiteralSearch.of(literal, fold);
+            this.minOffset = minOffset;
+            this.maxOffset = maxOffset;
+        }
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            if (i > matcher.to - minLength) {
+                matcher.hitEnd = true;
+                return false;
+            }
+            int guard = matcher.to - minLength;
+            int last = matcher.to - literal.length();
+            int p = -1;
+            boolean[] first = firstChars;
+            for (; i <= guard; i++) {
+                if (p < i + minOffset) {
+                    p = search.indexOf(seq, i + minOffset, last);
+                    if (p < 0)
+                        break;
+                    if (maxOffset >= 0 && p - maxOffset > i) {
+                        i = p - maxOffset;
+                        if (i > guard)
+                            break;
+                    }
+                }
+                if (first != null && i < matcher.to) {
+                    char c = seq.charAt(i);
+                    if (c < 256 ? !first[c] : !firstHigh)
+                        continue;
+                }
+                matcher.step();
+                if (next.match(matcher, i, seq)) {
+                    matcher.first = i;
+                    matcher.groups[0] = matcher.first;
+                    matcher.groups[1] = matcher.last;
+                    return true;
+                }
+            }
+            matcher.hitEnd = true;
+            return false;
+        }
+    }
+
     /**
      * Node to anchor at the beginning of input. This object implements the
      * match for a \A sequence, and the caret anchor will use this if not in
@@ -4076,9 +5442,11 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         boolean match(Matcher matcher, int i, CharSequence seq) {
             switch (type) {
             case GREEDY:
+                matcher.step();
                 return (atom.match(matcher, i, seq) && next.match(matcher, matcher.last, seq))
                     || next.match(matcher, i, seq);
             case LAZY:
+                matcher.step();
                 return next.match(matcher, i, seq)
                     || (atom.match(matcher, i, seq) && next.match(matcher, matcher.last, seq));
             case POSSESSIVE:
@@ -4112,6 +5480,11 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         int type;
         int cmin;
         int cmax;
+        /**
+         * Whether the quantifier is greedy in the pattern, and was made
+         * possessive as backing off couldn't lead to a match.
+         */
+        boolean auto;
 
         Curly(Node node, int cmin, int cmax, int type) {
             this.atom = node;
@@ -4120,6 +5493,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             this.cmax = cmax;
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            matcher.step();
             int j;
             for (j = 0; j < cmin; j++) {
                 if (atom.match(matcher, i, seq)) {
@@ -4167,7 +5541,8 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 }
                 // Handle backing off if match fails
                 while (j >= backLimit) {
-                   if (next.match(matcher, i, seq))
+                    matcher.step();
+                    if (next.match(matcher, i, seq))
                         return true;
                     i -= k;
                     j--;
@@ -4181,6 +5556,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         // j is the number of atoms that have matched
         boolean match1(Matcher matcher, int i, int j, CharSequence seq) {
             for (;;) {
+                matcher.step();
                 // Try finishing match without consuming any more
                 if (next.match(matcher, i, seq))
                     return true;
@@ -4259,6 +5635,11 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         int localIndex;
         int groupIndex;
         boolean capture;
+        /**
+         * Whether the quantifier is greedy in the pattern, and was made
+         * possessive as backing off couldn't lead to a match.
+         */
+        boolean auto;
 
         GroupCurly(Node node, int cmin, int cmax, int type, int local,
                    int group, boolean capture) {
@@ -4271,6 +5652,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             this.capture = capture;
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            matcher.step();
             int[] groups = matcher.groups;
             int[] locals = matcher.locals;
             int save0 = locals[localIndex];
@@ -4357,6 +5739,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     }
                 }
                 while (j > cmin) {
+                    matcher.step();
                     if (next.match(matcher, i, seq)) {
                         if (capture) {
                             groups[groupIndex+1] = i;
@@ -4384,6 +5767,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         // Reluctant matching
         boolean match1(Matcher matcher, int i, int j, CharSequence seq) {
             for (;;) {
+                matcher.step();
                 if (next.match(matcher, i, seq))
                     return true;
                 if (j >= cmax)
@@ -4479,6 +5863,15 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         Node[] atoms = new Node[2];
         int size = 2;
         Node conn;
+        /**
+         * The alternatives to try for each char below 256 and, at index
+         * 256, for the higher chars; null to try them all.
+         */
+        int[][] dispatch;
+        /**
+         * The trie of the alternatives when they are all literals, or null.
+         */
+        LiteralTrie trie;
         Branch(Node first, Node second, Node branchConn) {
             conn = branchConn;
             atoms[0] = first;
@@ -4494,7 +5887,71 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             atoms[size++] = node;
         }
 
+        /**
+         * Sets up the first char dispatch: for each char below 256 and for
+         * the higher chars, the indexes of the alternatives that can match
+         * starting with it, in order. Alternations of many literals get a
+         * trie instead. Must be called once the nodes after the branch are
+         * linked.
+         */
+        void initDispatch() {
+            trie = LiteralTrie.of(this);
+            if (trie != null)
+                return;
+            FirstChars[] firsts = new FirstChars[size];
+            boolean useful = false;
+            for (int n = 0; n < size; n++) {
+                FirstChars first = new FirstChars();
+                boolean empty = first.add(atoms[n] == null ? conn.next : atoms[n]);
+                if (!first.any && !empty) {
+                    firsts[n] = first;
+                    useful = true;
+                }
+            }
+            if (!useful)
+                return;
+            Map<BitSet, int[]> shared = new HashMap<>();
+            int[][] table = new int[257][];
+            for (int ch = 0; ch <= 256; ch++) {
+                BitSet alts = new BitSet(size);
+                for (int n = 0; n < size; n++) {
+                    FirstChars first = firsts[n];
+                    if (first == null ||
+                        (ch < 256 ? first.bits[ch] : first.high))
+                        alts.set(n);
+                }
+                int[] list = shared.get(alts);
+                if (list == null) {
+                    list = new int[alts.cardinality()];
+                    for (int n = alts.nextSetBit(0), k = 0; n >= 0;
+                         n = alts.nextSetBit(n + 1))
+                        list[k++] = n;
+                    shared.put(alts, list);
+                }
+                table[ch] = list;
+            }
+            dispatch = table;
+        }
+
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            matcher.step();
+            if (trie != null)
+                return trie.match(this, matcher, i, seq);
+            int[][] table = dispatch;
+            if (table != null && i < matcher.to) {
+                char c = seq.charAt(i);
+                int[] alts = table[c < 256 ? c : 256];
+                for (int k = 0; k < alts.length; k++) {
+                    int n = alts[k];
+                    if (atoms[n] == null) {
+                        if (conn.next.match(matcher, i, seq))
+                            return true;
+                    } else if (atoms[n].match(matcher, i, seq)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
             for (int n = 0; n < size; n++) {
                 if (atoms[n] == null) {
                     if (conn.next.match(matcher, i, seq))
@@ -4536,6 +5993,242 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         }
     }
 
+    /**
+     * A trie of the alternatives of a Branch that are all literals of the
+     * same case sensitivity, each followed directly by the end of the
+     * branch. Matching walks the trie once over the input, which finds the
+     * alternatives that match there, and then tries the rest of the
+     * pattern after each of them in the order of the alternatives, so that
+     * the first alternative that leads to a match still wins.
+     */
+    static final class LiteralTrie {
+        /** The fewest alternatives worth a trie */
+        static final int MIN_SIZE = 8;
+
+        /** How the input chars are folded before they are looked up */
+        final int fold;
+        /** The sorted chars of the children of each node */
+        final char[][] keys;
+        /** The children of each node, in the order of the keys */
+        final int[][] children;
+        /**
+         * The alternatives that end on the path to each node, in
+         * increasing order, or null if there are none
+         */
+        final int[][] ends;
+        /**
+         * The smallest alternative that ends below each node, or
+         * Integer.MAX_VALUE if the node is a leaf
+         */
+        final int[] below;
+        /** The length of each alternative */
+        final int[] lengths;
+
+        private LiteralTrie(int fold, int[][] literals) {
+            this.fold = fold;
+            int n = literals.length;
+            lengths = new int[n];
+            List<TreeMap<Character, Integer>> nodes = new ArrayList<>();
+            List<List<Integer>> terminals = new ArrayList<>();
+            nodes.add(new TreeMap<Character, Integer>());
+            terminals.add(new ArrayList<Integer>());
+            for (int a = 0; a < n; a++) {
+                int node = 0;
+                for (int c : literals[a]) {
+                    Integer child = nodes.get(node).get((char)c);
+                    if (child == null) {
+                        child = nodes.size();
+                        nodes.get(node).put((char)c, child);
+                        nodes.add(new TreeMap<Character, Integer>());
+                        terminals.add(new ArrayList<Integer>());
+                    }
+                    node = child;
+                }
+                terminals.get(node).add(a);
+                lengths[a] = literals[a].length;
+            }
+            int size = nodes.size();
+            keys = new char[size][];
+            children = new int[size][];
+            ends = new int[size][];
+            below = new int[size];
+            int[] parents = new int[size];
+            for (int node = 0; node < size; node++) {
+                TreeMap<Character, Integer> map = nodes.get(node);
+                keys[node] = new char[map.size()];
+                children[node] = new int[map.size()];
+                int k = 0;
+                for (Map.Entry<Character, Integer> e : map.entrySet()) {
+                    keys[node][k] = e.getKey();
+                    children[node][k++] = e.getValue();
+                    parents[e.getValue()] = node;
+                }
+            }
+            // Children are numbered after their parents, so the path ends
+            // go forwards and the smallest alternatives below go backwards
+            for (int node = 0; node < size; node++) {
+                List<Integer> own = terminals.get(node);
+                int[] inherited = node == 0 ? null : ends[parents[node]];
+                int count = own.size() + (inherited == null ? 0 : inherited.length);
+                if (count == 0)
+                    continue;
+                int[] list = new int[count];
+                int k = 0;
+                if (inherited != null) {
+                    System.arraycopy(inherited, 0, list, 0, inherited.length);
+                    k = inherited.length;
+                }
+                for (int a : own)
+                    list[k++] = a;
+                Arrays.sort(list);
+                ends[node] = list;
+            }
+            Arrays.fill(below, Integer.MAX_VALUE);
+            for (int node = size - 1; node > 0; node--) {
+                int parent = parents[node];
+                int least = below[node];
+                for (int a : terminals.get(node))
+                    least = Math.min(least, a);
+                below[parent] = Math.min(below[parent], least);
+            }
+        }
+
+        /**
+         * Returns the trie of the alternatives of the given branch, or null
+         * if they are too few or not all literals that can be looked up
+         * with the same folding of the input.
+         */
+        static LiteralTrie of(Branch branch) {
+            int size = branch.size;
+            if (size < MIN_SIZE)
+                return null;
+            int fold = LiteralSearch.EXACT;
+            for (int n = 0; n < size; n++) {
+                Node atom = branch.atoms[n];
+                if (atom instanceof SliceI || atom instanceof SingleI)
+                    fold = Math.max(fold, LiteralSearch.ASCII_CASE);
+                else if (atom instanceof SliceU || atom instanceof SingleU)
+                    fold = LiteralSearch.UNICODE_CASE;
+            }
+            int[][] literals = new int[size][];
+            boolean ascii = false;
+            for (int n = 0; n < size; n++) {
+                Node atom = branch.atoms[n];
+                if (atom == null) {
+                    literals[n] = new int[0];
+                    continue;
+                }
+                if (atom.next != branch.conn)
+                    return null;
+                int[] literal;
+                if (atom instanceof Slice) {
+                    literal = ((Slice)atom).buffer;
+                    if (fold != LiteralSearch.EXACT && !uncased(literal))
+                        return null;
+                } else if (atom instanceof Single) {
+                    literal = new int[] { ((Single)atom).c };
+                    if (fold != LiteralSearch.EXACT && !uncased(literal))
+                        return null;
+                } else if (atom instanceof SliceI) {
+                    literal = ((SliceI)atom).buffer;
+                    ascii = true;
+                } else if (atom instanceof SingleI) {
+                    literal = new int[] { ((SingleI)atom).lower };
+                    ascii = true;
+                } else if (atom instanceof SliceU) {
+                    literal = ((SliceU)atom).buffer;
+                    if (!folded(literal))
+                        return null;
+                } else if (atom instanceof SingleU) {
+                    literal = new int[] { ((SingleU)atom).lower };
+                    if (!folded(literal))
+                        return null;
+                } else {
+                    return null;
+                }
+                literals[n] = literal;
+            }
+            if (ascii && fold == LiteralSearch.UNICODE_CASE)
+                return null;
+            return new LiteralTrie(fold, literals);
+        }
+
+        /**
+         * Returns whether the literal only has chars that no other char
+         * folds to in either case insensitive mode.
+         */
+        private static boolean uncased(int[] literal) {
+            for (int c : literal) {
+                if (c >= 0x80 || ASCII.isAlpha(c))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns whether the literal is its own unicode case folding, so
+         * that comparing folded input chars with it is what SliceU does.
+         */
+        private static boolean folded(int[] literal) {
+            for (int c : literal) {
+                if (c != Character.toLowerCase(Character.toUpperCase(c)))
+                    return false;
+            }
+            return true;
+        }
+
+        private int child(int node, char c) {
+            char[] k = keys[node];
+            int lo = 0;
+            int hi = k.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char m = k[mid];
+                if (m < c)
+                    lo = mid + 1;
+                else if (m > c)
+                    hi = mid - 1;
+                else
+                    return children[node][mid];
+            }
+            return -1;
+        }
+
+        /**
+         * Matches the branch at the given index, trying the alternatives
+         * that match there in their order, as Branch.match does.
+         */
+        boolean match(Branch branch, Matcher matcher, int i, CharSequence seq) {
+            int to = matcher.to;
+            int node = 0;
+            int j = i;
+            while (j < to) {
+                char c = LiteralSearch.fold(fold, seq.charAt(j));
+                int next = child(node, c);
+                if (next < 0)
+                    break;
+                node = next;
+                j++;
+            }
+            // The alternatives that go on past the end of input would have
+            // hit the end before the ones after them were tried
+            int cut = j >= to ? below[node] : Integer.MAX_VALUE;
+            int[] alts = ends[node];
+            if (alts != null) {
+                Node next = branch.conn.next;
+                for (int a : alts) {
+                    if (cut < a)
+                        matcher.hitEnd = true;
+                    if (next.match(matcher, i + lengths[a], seq))
+                        return true;
+                }
+            }
+            if (cut != Integer.MAX_VALUE)
+                matcher.hitEnd = true;
+            return false;
+        }
+    }
+
     /**
      * The GroupHead saves the location where the group begins in the locals
      * and restores them when the match is done.
@@ -4654,11 +6347,22 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
         int countIndex; // local count index in matcher locals
         int beginIndex; // group beginning index
         int cmin, cmax;
+        /** Takes over the iterations once they recurse too deep, or null */
+        Backtracker backtracker;
+        /** The length of every match of the body, or -1 if they differ */
+        int bodyLength = -1;
+        /**
+         * The local that is set once the rest of the match failed after
+         * the loop, if the loop was made possessive, or -1
+         */
+        int cutIndex = -1;
         Loop(int countIndex, int beginIndex) {
             this.countIndex = countIndex;
             this.beginIndex = beginIndex;
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
+            if (cutIndex >= 0 && matcher.locals[cutIndex] > 0)
+                return false;
             // Avoid infinite loop in zero-length case.
             if (i > matcher.locals[beginIndex]) {
                 int count = matcher.locals[countIndex];
@@ -4667,7 +6371,7 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 // iterations required for the loop to match
                 if (count < cmin) {
                     matcher.locals[countIndex] = count + 1;
-                    boolean b = body.match(matcher, i, seq);
+                    boolean b = iterate(matcher, i, seq);
                     // If match failed we must backtrack, so
                     // the loop count should NOT be incremented
                     if (!b)
@@ -4676,11 +6380,20 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                     // minimum
                     return b;
                 }
+                // The other iterations are matched without recursing
+                // once the stack gets deep
+                if (backtracker != null &&
+                    matcher.loopDepth >= Backtracker.MAX_DEPTH) {
+                    boolean b = backtracker.match(matcher, i, seq);
+                    if (!b && cutIndex >= 0)
+                        matcher.locals[cutIndex] = 1;
+                    return b;
+                }
                 // This block is for after we have the minimum
                 // iterations required for the loop to match
                 if (count < cmax) {
                     matcher.locals[countIndex] = count + 1;
-                    boolean b = body.match(matcher, i, seq);
+                    boolean b = iterate(matcher, i, seq);
                     // If match failed we must backtrack, so
                     // the loop count should NOT be incremented
                     if (!b)
@@ -4689,28 +6402,59 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                         return true;
                 }
             }
-            return next.match(matcher, i, seq);
+            return exit(matcher, i, seq);
         }
         boolean matchInit(Matcher matcher, int i, CharSequence seq) {
             int save = matcher.locals[countIndex];
+            int saveCut = 0;
+            if (cutIndex >= 0) {
+                saveCut = matcher.locals[cutIndex];
+                matcher.locals[cutIndex] = 0;
+            }
             boolean ret = false;
             if (0 < cmin) {
                 matcher.locals[countIndex] = 1;
-                ret = body.match(matcher, i, seq);
+                ret = iterate(matcher, i, seq);
             } else if (0 < cmax) {
                 matcher.locals[countIndex] = 1;
-                ret = body.match(matcher, i, seq);
+                ret = iterate(matcher, i, seq);
                 if (ret == false)
-                    ret = next.match(matcher, i, seq);
+                    ret = exit(matcher, i, seq);
             } else {
                 ret = next.match(matcher, i, seq);
             }
             matcher.locals[countIndex] = save;
+            if (cutIndex >= 0)
+                matcher.locals[cutIndex] = saveCut;
             return ret;
         }
-        boolean study(TreeInfo info) {
-            info.maxValid = false;
-            info.deterministic = false;
+        /**
+         * Matches the rest after the loop. Once that failed, a possessive
+         * loop doesn't try another way out.
+         */
+        private boolean exit(Matcher matcher, int i, CharSequence seq) {
+            if (cutIndex < 0)
+                return next.match(matcher, i, seq);
+            if (matcher.locals[cutIndex] > 0)
+                return false;
+            if (next.match(matcher, i, seq))
+                return true;
+            matcher.locals[cutIndex] = 1;
+            return false;
+        }
+        /**
+         * Matches the body, counting the iterations on the stack.
+         */
+        final boolean iterate(Matcher matcher, int i, CharSequence seq) {
+            matcher.step();
+            matcher.loopDepth++;
+            boolean b = body.match(matcher, i, seq);
+            matcher.loopDepth--;
+            return b;
+        }
+        boolean study(TreeInfo info) {
+            info.maxValid = false;
+            info.deterministic = false;
             return false;
         }
     }
@@ -4731,18 +6475,21 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
                 int count = matcher.locals[countIndex];
                 if (count < cmin) {
                     matcher.locals[countIndex] = count + 1;
-                    boolean result = body.match(matcher, i, seq);
+                    boolean result = iterate(matcher, i, seq);
                     // If match failed we must backtrack, so
                     // the loop count should NOT be incremented
                     if (!result)
                         matcher.locals[countIndex] = count;
                     return result;
                 }
+                if (backtracker != null &&
+                    matcher.loopDepth >= Backtracker.MAX_DEPTH)
+                    return backtracker.match(matcher, i, seq);
                 if (next.match(matcher, i, seq))
                     return true;
                 if (count < cmax) {
                     matcher.locals[countIndex] = count + 1;
-                    boolean result = body.match(matcher, i, seq);
+                    boolean result = iterate(matcher, i, seq);
                     // If match failed we must backtrack, so
                     // the loop count should NOT be incremented
                     if (!result)
@@ -4758,12 +6505,12 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
             boolean ret = false;
             if (0 < cmin) {
                 matcher.locals[countIndex] = 1;
-                ret = body.match(matcher, i, seq);
+                ret = iterate(matcher, i, seq);
             } else if (next.match(matcher, i, seq)) {
                 ret = true;
             } else if (0 < cmax) {
                 matcher.locals[countIndex] = 1;
-                ret = body.match(matcher, i, seq);
+                ret = iterate(matcher, i, seq);
             }
             matcher.locals[countIndex] = save;
             return ret;
@@ -5251,120 +6998,52 @@ loop:   for(int x=0, offset=0; x<nCodePoints; x++, offset+=len) {
     }
 
     /**
-     * Attempts to match a slice in the input using the Boyer-Moore string
-     * matching algorithm. The algorithm is based on the idea that the
-     * pattern can be shifted farther ahead in the search text if it is
-     * matched right to left.
-     * <p>
-     * The pattern is compared to the input one character at a time, from
-     * the rightmost character in the pattern to the left. If the characters
-     * all match the pattern has been found. If a character does not match,
-     * the pattern is shifted right a distance that is the maximum of two
-     * functions, the bad character shift and the good suffix shift. This
-     * shift moves the attempted match position through the input more
-     * quickly than a naive one position at a time check.
-     * <p>
-     * The bad character shift is based on the character from the text that
-     * did not match. If the character does not appear in the pattern, the
-     * pattern can be shifted completely beyond the bad character. If the
-     * character does occur in the pattern, the pattern can be shifted to
-     * line the pattern up with the next occurrence of that character.
-     * <p>
-     * The good suffix shift is based on the idea that some subset on the right
-     * side of the pattern has matched. When a bad character is found, the
-     * pattern can be shifted right by the pattern length if the subset does
-     * not occur again in pattern, or by the amount of distance to the
-     * next occurrence of the subset in the pattern.
-     *
-     * Boyer-Moore search methods adapted from code by Amy Yu.
+     * Attempts to match a slice in the input by searching for it with a
+     * LiteralSearch, which skips ahead through the input rather than trying
+     * the slice at every position. This replaces the Start node of
+     * patterns that begin with a slice, case sensitive or not.
      */
-    static class BnM extends Node {
+    static final class BnM extends Node {
         int[] buffer;
-        int[] lastOcc;
-        int[] optoSft;
+        LiteralSearch search;
 
         /**
-         * Pre calculates arrays needed to generate the bad character
-         * shift and the good suffix shift. Only the last seven bits
-         * are used to see if chars match; This keeps the tables small
-         * and covers the heavily used ASCII range, but occasionally
-         * results in an aliased match for the bad character shift.
+         * Returns a BnM for the given node if it is a slice of at least two
+         * chars that a LiteralSearch finds exactly, or the node itself.
          */
         static Node optimize(Node node) {
-            if (!(node instanceof Slice)) {
+            if (!(node instanceof SliceNode)) {
                 return node;
             }
-
-            int[] src = ((Slice) node).buffer;
-            int patternLength = src.length;
-            // The BM algorithm requires a bit of overhead;
-            // If the pattern is short don't use it, since
-            // a shift larger than the pattern length cannot
-            // be used anyway.
-            if (patternLength < 4) {
+            int[] src = ((SliceNode) node).buffer;
+            int fold = LiteralSearch.foldOf(node);
+            if (fold < 0) {
                 return node;
             }
-            int i, j, k;
-            int[] lastOcc = new int[128];
-            int[] optoSft = new int[patternLength];
-            // Precalculate part of the bad character shift
-            // It is a table for where in the pattern each
-            // lower 7-bit value occurs
-            for (i = 0; i < patternLength; i++) {
-                lastOcc[src[i]&0x7F] = i + 1;
-            }
-            // Precalculate the good suffix shift
-            // i is the shift amount being considered
-NEXT:       for (i = patternLength; i > 0; i--) {
-                // j is the beginning index of suffix being considered
-                for (j = patternLength - 1; j >= i; j--) {
-                    // Testing for good suffix
-                    if (src[j] == src[j-i]) {
-                        // src[j..len] is a good suffix
-                        optoSft[j-1] = i;
-                    } else {
-                        // No match. The array has already been
-                        // filled up with correct values before.
-                        continue NEXT;
-                    }
-                }
-                // This fills up the remaining of optoSft
-                // any suffix can not have larger shift amount
-                // then its sub-suffix. Why???
-                while (j > 0) {
-                    optoSft[--j] = i;
-                }
+            // The search compares chars, which an unpaired surrogate in
+            // the slice would match in the middle of a pair
+            for (int c : src) {
+                if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+                    return node;
+            }
+            String literal = new String(src, 0, src.length);
+            // A single char is as quickly found by Start
+            if (literal.length() < 2) {
+                return node;
             }
-            // Set the guard value because of unicode compression
-            optoSft[patternLength-1] = 1;
-            if (node instanceof SliceS)
-                return new BnMS(src, lastOcc, optoSft, node.next);
-            return new BnM(src, lastOcc, optoSft, node.next);
+            return new BnM(src, LiteralSearch.of(literal, fold), node.next);
         }
-        BnM(int[] src, int[] lastOcc, int[] optoSft, Node next) {
+        BnM(int[] src, LiteralSearch search, Node next) {
             this.buffer = src;
-            this.lastOcc = lastOcc;
-            this.optoSft = optoSft;
+            this.search = search;
             this.next = next;
         }
         boolean match(Matcher matcher, int i, CharSequence seq) {
-            int[] src = buffer;
-            int patternLength = src.length;
+            int patternLength = search.literal.length();
             int last = matcher.to - patternLength;
 
-            // Loop over all possible match positions in text
-NEXT:       while (i <= last) {
-                // Loop over pattern from right to left
-                for (int j = patternLength - 1; j >= 0; j--) {
-                    int ch = seq.charAt(i+j);
-                    if (ch != src[j]) {
-                        // Shift search to the right by the maximum of the
-                        // bad character shift and the good suffix shift
-                        i += Math.max(j + 1 - lastOcc[ch&0x7F], optoSft[j]);
-                        continue NEXT;
-                    }
-                }
-                // Entire pattern matched starting at i
+            // Loop over the occurrences of the slice in the text
+            while ((i = search.indexOf(seq, i, last)) >= 0) {
                 matcher.first = i;
                 boolean ret = next.match(matcher, i + patternLength, seq);
                 if (ret) {
@@ -5389,51 +7068,2393 @@ NEXT:       while (i <= last) {
     }
 
     /**
-     * Supplementary support version of BnM(). Unpaired surrogates are
-     * also handled by this class.
-     */
-    static final class BnMS extends BnM {
-        int lengthInChars;
+     * Finds the occurrences of a literal string in a char sequence. The
+     * way it searches is chosen from the length of the literal and from
+     * how common its chars are in typical text:
+     * <ul>
+     * <li>short literals are found by scanning for their rarest char alone
+     * and comparing the rest of the literal where it occurs, and so are
+     * the literals with a rare char in Strings, where String.indexOf does
+     * the scan much faster than a loop;</li>
+     * <li>the other literals are found with the Horspool variant of
+     * Boyer-Moore, whose bad char shifts are kept in a small table hashed
+     * from all 16 bits of the chars;</li>
+     * <li>long literals are found with the Two-Way algorithm of Crochemore
+     * and Perrin, which compares each char of the input a bounded number
+     * of times whatever the literal and the input, skipping ahead by the
+     * bad char shifts where it can.</li>
+     * </ul>
+     * The search may also fold the case of the input chars, the way SliceI
+     * or SliceU compare them, to find a literal case insensitively. The
+     * literal must then be folded already, and the chars it is scanned for
+     * by String.indexOf must not have other cases.
+     */
+    static final class LiteralSearch {
+        static final int RARE = 0;
+        static final int HORSPOOL = 1;
+        static final int TWO_WAY = 2;
+
+        static final int EXACT = 0;
+        static final int ASCII_CASE = 1;
+        static final int UNICODE_CASE = 2;
+
+        /** The shortest literal searched for with Two-Way */
+        static final int TWO_WAY_MIN = 32;
+        /** The shortest literal that Horspool may be used for */
+        static final int HORSPOOL_MIN = 4;
+
+        /**
+         * The most common chars of typical text, most common first. The
+         * chars past RARE_RANK, the ASCII chars that are not listed and the
+         * chars above ASCII are taken as rare.
+         */
+        private static final String COMMON =
+            " etaoinsrhldcumfpgwybvk,.\nETAOINSRHLDCUMFPGWYBVK0123456789-_/:'\"=\t";
+        private static final int RARE_RANK = 24;
+
+        static final int HASH_BITS = 8;
+
+        final String literal;
+        final int kind;
+        /** How the input chars are folded before they are compared */
+        final int fold;
+
+        /** The index of the char of the literal scanned for, for RARE */
+        int rare;
+        /** Whether to scan for the rare char in Strings, for HORSPOOL */
+        boolean rareInStrings;
+        /** The bad char shifts by hash of the chars, for HORSPOOL and TWO_WAY */
+        int[] shifts;
+        /** The critical factorization and period, for TWO_WAY */
+        int critical;
+        int period;
+        boolean periodic;
+
+        private LiteralSearch(String literal, int kind, int fold) {
+            this.literal = literal;
+            this.kind = kind;
+            this.fold = fold;
+        }
+
+        /**
+         * Returns the search for the given literal, which must not be empty.
+         */
+        static LiteralSearch of(String literal) {
+            return of(literal, EXACT);
+        }
+
+        /**
+         * Returns the search for the given literal, which must not be empty
+         * and must be folded the given way.
+         */
+        static LiteralSearch of(String literal, int fold) {
+            int m = literal.length();
+            int rare = 0;
+            for (int j = 1; j < m; j++) {
+                if (rank(literal.charAt(j)) >= rank(literal.charAt(rare)))
+                    rare = j;
+            }
+            LiteralSearch search;
+            if (m >= TWO_WAY_MIN) {
+                search = new LiteralSearch(literal, TWO_WAY, fold);
+                search.initShifts(m);
+                search.initTwoWay();
+            } else if (m < HORSPOOL_MIN) {
+                search = new LiteralSearch(literal, RARE, fold);
+            } else {
+                search = new LiteralSearch(literal, HORSPOOL, fold);
+                search.initShifts(m - 1);
+                search.rareInStrings = rank(literal.charAt(rare)) >= RARE_RANK &&
+                    caseless(fold, literal.charAt(rare));
+            }
+            search.rare = rare;
+            return search;
+        }
 
-        BnMS(int[] src, int[] lastOcc, int[] optoSft, Node next) {
-            super(src, lastOcc, optoSft, next);
-            for (int x = 0; x < buffer.length; x++) {
-                lengthInChars += Character.charCount(buffer[x]);
+        /**
+         * Returns how the chars of the given slice or Single are to be
+         * folded to search for it, or -1 if a search would not find what it
+         * matches.
+         */
+        static int foldOf(Node slice) {
+            Class<?> type = slice.getClass();
+            if (type == Slice.class || type == SliceS.class ||
+                type == Single.class)
+                return EXACT;
+            if (type == SliceI.class || type == SliceIS.class)
+                return ASCII_CASE;
+            if (type == SliceU.class) {
+                // SliceU also matches a char equal to its own, which is
+                // only the same when the slice is its own folding
+                for (int c : ((SliceU)slice).buffer) {
+                    if (c != fold(UNICODE_CASE, (char)c))
+                        return -1;
+                }
+                return UNICODE_CASE;
             }
+            return -1;
         }
-        boolean match(Matcher matcher, int i, CharSequence seq) {
-            int[] src = buffer;
-            int patternLength = src.length;
-            int last = matcher.to - lengthInChars;
-
-            // Loop over all possible match positions in text
-NEXT:       while (i <= last) {
-                // Loop over pattern from right to left
-                int ch;
-                for (int j = countChars(seq, i, patternLength), x = patternLength - 1;
-                     j > 0; j -= Character.charCount(ch), x--) {
-                    ch = Character.codePointBefore(seq, i+j);
-                    if (ch != src[x]) {
-                        // Shift search to the right by the maximum of the
-                        // bad character shift and the good suffix shift
-                        int n = Math.max(x + 1 - lastOcc[ch&0x7F], optoSft[x]);
-                        i += countChars(seq, i, n);
+
+        /**
+         * Returns the given char folded the given way.
+         */
+        static char fold(int fold, char c) {
+            if (fold == ASCII_CASE)
+                return (char)ASCII.toLower(c);
+            if (fold == UNICODE_CASE)
+                return Character.toLowerCase(Character.toUpperCase(c));
+            return c;
+        }
+
+        /**
+         * Returns whether the given folded char is the folding of no other
+         * char.
+         */
+        static boolean caseless(int fold, char c) {
+            if (fold == ASCII_CASE)
+                return ASCII.toUpper(c) == c;
+            if (fold == UNICODE_CASE)
+                return c < 0x80 && !ASCII.isAlpha(c);
+            return true;
+        }
+
+        /**
+         * Returns how rare a char is in typical text, the higher the rarer.
+         */
+        static int rank(char c) {
+            int r = COMMON.indexOf(c);
+            return r >= 0 ? r : COMMON.length();
+        }
+
+        private static int hash(char c) {
+            return (c ^ (c >>> HASH_BITS)) & ((1 << HASH_BITS) - 1);
+        }
+
+        /**
+         * Sets up the shift of each hash to the distance from the last
+         * occurrence of a char with that hash, among the given number of
+         * first chars of the literal, to its last char. Chars with the same
+         * hash take the smallest of their shifts.
+         */
+        private void initShifts(int count) {
+            int m = literal.length();
+            shifts = new int[1 << HASH_BITS];
+            Arrays.fill(shifts, m);
+            for (int j = 0; j < count; j++)
+                shifts[hash(literal.charAt(j))] = m - 1 - j;
+        }
+
+        /**
+         * Finds the critical factorization of the literal, from the maximal
+         * suffixes for the two orders of the chars, and its period.
+         */
+        private void initTwoWay() {
+            int[] less = maximalSuffix(false);
+            int[] greater = maximalSuffix(true);
+            int[] max = less[0] > greater[0] ? less : greater;
+            critical = max[0];
+            period = max[1];
+            int m = literal.length();
+            periodic = literal.regionMatches(0, literal, period, critical + 1);
+            if (!periodic)
+                period = Math.max(critical + 1, m - critical - 1) + 1;
+        }
+
+        /**
+         * Returns the index before the maximal suffix of the literal for
+         * one order of the chars, and the period of that suffix.
+         */
+        private int[] maximalSuffix(boolean reversed) {
+            int m = literal.length();
+            int ms = -1;
+            int j = 0;
+            int k = 1;
+            int p = 1;
+            while (j + k < m) {
+                char a = literal.charAt(j + k);
+                char b = literal.charAt(ms + k);
+                if (reversed ? a > b : a < b) {
+                    j += k;
+                    k = 1;
+                    p = j - ms;
+                } else if (a == b) {
+                    if (k != p) {
+                        k++;
+                    } else {
+                        j += p;
+                        k = 1;
+                    }
+                } else {
+                    ms = j;
+                    j = ms + 1;
+                    k = p = 1;
+                }
+            }
+            return new int[] { ms, p };
+        }
+
+        /**
+         * Returns the index of the first occurrence of the literal in seq
+         * that starts between from and last (inclusive), or -1.
+         */
+        int indexOf(CharSequence seq, int from, int last) {
+            if (from > last)
+                return -1;
+            switch (kind) {
+            case RARE:
+                return rareIndexOf(seq, from, last);
+            case HORSPOOL:
+                if (rareInStrings && seq instanceof String)
+                    return rareIndexOf(seq, from, last);
+                return horspoolIndexOf(seq, from, last);
+            default:
+                return twoWayIndexOf(seq, from, last);
+            }
+        }
+
+        private int rareIndexOf(CharSequence seq, int from, int last) {
+            String lit = literal;
+            int m = lit.length();
+            int r = rare;
+            char c = lit.charAt(r);
+            int end = last + r;
+            if (seq instanceof String && caseless(fold, c)) {
+                String str = (String)seq;
+NEXT:           for (int q = str.indexOf(c, from + r); q >= 0 && q <= end;
+                     q = str.indexOf(c, q + 1)) {
+                    int p = q - r;
+                    for (int j = 0; j < m; j++) {
+                        if (j != r && at(str, p + j) != lit.charAt(j))
+                            continue NEXT;
+                    }
+                    return p;
+                }
+                return -1;
+            }
+NEXT:       for (int q = from + r; q <= end; q++) {
+                if (at(seq, q) != c)
+                    continue;
+                int p = q - r;
+                for (int j = 0; j < m; j++) {
+                    if (j != r && at(seq, p + j) != lit.charAt(j))
                         continue NEXT;
+                }
+                return p;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the char of seq at the given index, folded.
+         */
+        private char at(CharSequence seq, int index) {
+            char c = seq.charAt(index);
+            return fold == EXACT ? c : fold(fold, c);
+        }
+
+        private int horspoolIndexOf(CharSequence seq, int from, int last) {
+            String lit = literal;
+            int m = lit.length();
+            char lastChar = lit.charAt(m - 1);
+            int[] shift = shifts;
+NEXT:       for (int p = from; p <= last; ) {
+                char c = at(seq, p + m - 1);
+                if (c == lastChar) {
+                    for (int j = m - 2; ; j--) {
+                        if (j < 0)
+                            return p;
+                        if (at(seq, p + j) != lit.charAt(j))
+                            break;
                     }
                 }
-                // Entire pattern matched starting at i
-                matcher.first = i;
-                boolean ret = next.match(matcher, i + lengthInChars, seq);
-                if (ret) {
-                    matcher.first = i;
-                    matcher.groups[0] = matcher.first;
-                    matcher.groups[1] = matcher.last;
-                    return true;
+                p += shift[hash(c)];
+            }
+            return -1;
+        }
+
+        private int twoWayIndexOf(CharSequence seq, int from, int last) {
+            String lit = literal;
+            int m = lit.length();
+            int ell = critical;
+            int per = period;
+            int[] shift = shifts;
+            if (periodic) {
+                // The memory is the index of the end of the prefix known
+                // to match after a shift by the period
+                int memory = -1;
+                for (int p = from; p <= last; ) {
+                    int skip = shift[hash(at(seq, p + m - 1))];
+                    if (skip > 0) {
+                        // A match needs the last char of the period that
+                        // was out of place to move past
+                        if (memory >= 0 && skip < per)
+                            skip = m - per;
+                        memory = -1;
+                        p += skip;
+                        continue;
+                    }
+                    int j = Math.max(ell, memory) + 1;
+                    while (j < m && lit.charAt(j) == at(seq, p + j))
+                        j++;
+                    if (j >= m) {
+                        j = ell;
+                        while (j > memory && lit.charAt(j) == at(seq, p + j))
+                            j--;
+                        if (j <= memory)
+                            return p;
+                        p += per;
+                        memory = m - per - 1;
+                    } else {
+                        p += j - ell;
+                        memory = -1;
+                    }
+                }
+            } else {
+                for (int p = from; p <= last; ) {
+                    int skip = shift[hash(at(seq, p + m - 1))];
+                    if (skip > 0) {
+                        p += skip;
+                        continue;
+                    }
+                    int j = ell + 1;
+                    while (j < m && lit.charAt(j) == at(seq, p + j))
+                        j++;
+                    if (j >= m) {
+                        j = ell;
+                        while (j >= 0 && lit.charAt(j) == at(seq, p + j))
+                            j--;
+                        if (j < 0)
+                            return p;
+                        p += per;
+                    } else {
+                        p += j - ell;
+                    }
                 }
-                i += countChars(seq, i, 1);
             }
-            matcher.hitEnd = true;
-            return false;
+            return -1;
+        }
+    }
+
+    /**
+     * An Aho-Corasick automaton over a set of literals, which finds the
+     * literals that occur in a char sequence in a single scan. The trie
+     * transitions on ASCII chars, with the failure links folded in, are
+     * kept in a table when it is small enough; the others are followed
+     * through the sorted children of each node and the failure links.
+     */
+    static final class AhoCorasick {
+        /** The largest table of ASCII transitions, in entries */
+        static final int MAX_TABLE = 1 << 20;
+
+        /** The children of each node, as sorted chars and target nodes */
+        private final char[][] keys;
+        private final int[][] children;
+        /** The longest proper suffix of each node that is also a node */
+        private final int[] fail;
+        /** The literals that end at each node, or null */
+        private final int[][] outputs;
+        /** The nearest node on the failure chain of each node with outputs */
+        private final int[] dict;
+        /** The transition of each node on each ASCII char, or null */
+        private final int[] ascii;
+
+        AhoCorasick(String[] literals) {
+            // Build the trie, with the children in maps for now
+            List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+            List<List<Integer>> ends = new ArrayList<>();
+            trie.add(new TreeMap<Character, Integer>());
+            ends.add(null);
+            for (int k = 0; k < literals.length; k++) {
+                int n = 0;
+                String lit = literals[k];
+                for (int i = 0; i < lit.length(); i++) {
+                    Integer child = trie.get(n).get(lit.charAt(i));
+                    if (child == null) {
+                        child = trie.size();
+                        trie.get(n).put(lit.charAt(i), child);
+                        trie.add(new TreeMap<Character, Integer>());
+                        ends.add(null);
+                    }
+                    n = child;
+                }
+                if (ends.get(n) == null)
+                    ends.set(n, new ArrayList<Integer>());
+                ends.get(n).add(k);
+            }
+            int size = trie.size();
+            keys = new char[size][];
+            children = new int[size][];
+            outputs = new int[size][];
+            for (int n = 0; n < size; n++) {
+                TreeMap<Character, Integer> map = trie.get(n);
+                keys[n] = new char[map.size()];
+                children[n] = new int[map.size()];
+                int j = 0;
+                for (Map.Entry<Character, Integer> e : map.entrySet()) {
+                    keys[n][j] = e.getKey();
+                    children[n][j++] = e.getValue();
+                }
+                List<Integer> end = ends.get(n);
+                if (end != null) {
+                    outputs[n] = new int[end.size()];
+                    for (j = 0; j < outputs[n].length; j++)
+                        outputs[n][j] = end.get(j);
+                }
+            }
+
+            // Compute the failure links breadth first, so that the links
+            // of the shorter nodes are known
+            fail = new int[size];
+            dict = new int[size];
+            dict[0] = -1;
+            ascii = (long) size * 128 <= MAX_TABLE ? new int[size * 128] : null;
+            int[] queue = new int[size];
+            int head = 0, tail = 0;
+            queue[tail++] = 0;
+            while (head < tail) {
+                int n = queue[head++];
+                for (int j = 0; j < keys[n].length; j++) {
+                    int child = children[n][j];
+                    fail[child] = n == 0 ? 0 : next(fail[n], keys[n][j]);
+                    int f = fail[child];
+                    dict[child] = outputs[f] != null ? f : dict[f];
+                    queue[tail++] = child;
+                }
+                if (ascii != null) {
+                    for (int c = 0; c < 128; c++) {
+                        int child = child(n, (char) c);
+                        ascii[n * 128 + c] = child >= 0 ? child :
+                            n == 0 ? 0 : ascii[fail[n] * 128 + c];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the child of node n on char c, or -1.
+         */
+        private int child(int n, char c) {
+            int j = Arrays.binarySearch(keys[n], c);
+            return j >= 0 ? children[n][j] : -1;
+        }
+
+        /**
+         * Returns the node after node n on char c.
+         */
+        private int next(int n, char c) {
+            if (c < 128 && ascii != null)
+                return ascii[n * 128 + c];
+            while (true) {
+                int child = child(n, c);
+                if (child >= 0)
+                    return child;
+                if (n == 0)
+                    return 0;
+                n = fail[n];
+            }
+        }
+
+        /**
+         * Sets the entry of found of each literal that occurs in seq
+         * between from and to.
+         *
+         * @return the number of literals newly found
+         */
+        int findAll(CharSequence seq, int from, int to, boolean[] found) {
+            int hits = 0;
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                n = next(n, seq.charAt(i));
+                for (int d = outputs[n] != null ? n : dict[n]; d >= 0; d = dict[d]) {
+                    for (int k : outputs[d]) {
+                        if (!found[k]) {
+                            found[k] = true;
+                            hits++;
+                        }
+                    }
+                }
+            }
+            return hits;
+        }
+    }
+
+    /**
+     * A Thompson NFA compiled from the node tree, for the engines that
+     * simulate all the ways to match at once instead of backtracking. Only
+     * the regular part of the syntax is supported: characters, slices,
+     * alternations, groups, greedy and reluctant quantifiers (counted ones
+     * are unrolled), and the ^, $, \A, \Z and \z anchors outside of
+     * multiline mode. Instructions are stored in parallel arrays and are
+     * emitted backwards, each one after the instructions it continues to.
+     */
+    static final class Program {
+        static final int MATCH = 0;
+        static final int CHAR = 1;          // arg indexes props
+        static final int LIT = 2;           // arg is the char
+        static final int LIT_I = 3;         // ASCII case insensitive
+        static final int LIT_U = 4;         // Unicode case insensitive
+        static final int SPLIT = 5;         // out is tried before arg
+        static final int SAVE = 6;          // arg is the group slot
+        static final int BEGIN = 7;
+        static final int END = 8;
+        static final int DOLLAR = 9;
+        static final int UNIX_DOLLAR = 10;
+        static final int MARK = 11;         // arg is the register
+        static final int CHECK = 12;        // see below
+        static final int BOUND = 13;        // arg indexes bounds
+        static final int SAVE_MARK = 14;    // arg is the group slot
+
+        // A CHECK ends an iteration of a loop whose body can match an
+        // empty string: if the register of the loop still holds the
+        // current position, the iteration was empty and the loop exits to
+        // arg, or fails if arg is -1, as the backtracking matcher does.
+        // Otherwise it goes on to out.
+
+        // A SAVE_MARK saves in the group slot the position held by its
+        // register, where the iteration of a capturing GroupCurly started.
+        // It comes after the CHECK of the iteration, so that an empty one
+        // leaves the group as it was, as GroupCurly does.
+
+        // A BOUND is only used by the Backtracker, which can run it at any
+        // position: the engines that follow all threads at once don't
+        // support it.
+
+        // In a program compiled for analysis, the reg of a SPLIT is 1 if
+        // the split is inside a possessive quantifier or an independent
+        // group, where the backtracking matcher never tries the second
+        // way once the first one matched.
+
+        /**
+         * The assertion flags, one for each assertion instruction, which
+         * are set when the assertion holds at a position.
+         */
+        static final int AT_BEGIN = 1;
+        static final int AT_END = 2;
+        static final int AT_DOLLAR = 4;
+        static final int AT_UNIX_DOLLAR = 8;
+
+        /**
+         * The largest number of instructions, which bounds the unrolling
+         * of counted quantifiers.
+         */
+        static final int MAX_SIZE = 10000;
+
+        int[] op = new int[16];
+        int[] out = new int[16];
+        int[] arg = new int[16];
+        int[] reg = new int[16];
+        /**
+         * The registers of the loops with a CHECK that enclose each
+         * instruction, or null. Whether these registers hold the current
+         * position is all that tells apart the threads that reach an
+         * instruction at the same position.
+         */
+        int[][] loops = new int[16][];
+        /** The largest number of such loops around an instruction */
+        int loopDepth;
+        private int[] activeLoops;
+        CharProperty[] props = new CharProperty[4];
+        int propCount;
+        Bound[] bounds;
+        int boundCount;
+        int size;
+        int start;
+        /** The number of registers, which hold where iterations start */
+        int registers;
+        /** The flags of the assertions used by the program */
+        int assertions;
+        private int matchPc = -1;
+        private int maxSize = MAX_SIZE;
+        /** Whether the program is compiled for the Backtracker */
+        private boolean backtracking;
+        /** Whether the program is compiled for PatternAnalysis */
+        private boolean analysis;
+        /** The number of possessive constructs being compiled */
+        private int atomic;
+
+        /** The continuation of each node that ends a subexpression */
+        private IdentityHashMap<Node, Integer> ends;
+        /** The continuation of each group repeated by a GroupCurly */
+        private HashMap<Integer, Integer> groupEnds;
+        /** The group slot of each group, by local index */
+        private HashMap<Integer, Integer> groupSlots;
+
+        private Program() {}
+
+        /**
+         * Compiles the tree rooted at node, or returns null if it uses
+         * nodes that can't be simulated.
+         */
+        static Program compile(Node node) {
+            Program prog = new Program();
+            prog.ends = new IdentityHashMap<>();
+            prog.groupEnds = new HashMap<>();
+            prog.groupSlots = new HashMap<>();
+            try {
+                prog.start = prog.compileNode(node);
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+            prog.ends = null;
+            prog.groupEnds = null;
+            prog.groupSlots = null;
+            return prog;
+        }
+
+        /**
+         * Compiles the iterations of a loop after the minimum number of
+         * them for the Backtracker, or returns null if they use nodes that
+         * it can't run. The loop must have no maximum. The MATCH
+         * instruction stands for the exit of the loop, where the tree
+         * after the loop takes over.
+         */
+        static Program compileLoop(Loop loop) {
+            Program prog = new Program();
+            prog.ends = new IdentityHashMap<>();
+            prog.groupEnds = new HashMap<>();
+            prog.groupSlots = new HashMap<>();
+            prog.backtracking = true;
+            prog.bounds = new Bound[4];
+            try {
+                int exit = prog.emit(MATCH, -1, 0);
+                prog.start = prog.repeat(loop.body, loop, 0, 0, 0, MAX_REPS,
+                                         loop instanceof LazyLoop, exit,
+                                         canBeEmpty(loop.body) ?
+                                         CHECK_ALL : NO_CHECK);
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+            prog.ends = null;
+            prog.groupEnds = null;
+            prog.groupSlots = null;
+            return prog;
+        }
+
+        /**
+         * Compiles the tree rooted at node for PatternAnalysis, or returns
+         * null if it is too large. The constructs the other programs don't
+         * support are approximated: possessive quantifiers and independent
+         * groups are compiled as greedy ones, with their splits marked,
+         * and the other assertions and the back references match an
+         * empty string.
+         */
+        static Program compileForAnalysis(Node node) {
+            Program prog = new Program();
+            prog.ends = new IdentityHashMap<>();
+            prog.groupEnds = new HashMap<>();
+            prog.groupSlots = new HashMap<>();
+            prog.analysis = true;
+            prog.maxSize = 10 * MAX_SIZE;
+            try {
+                prog.start = prog.compileNode(node);
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+            prog.ends = null;
+            prog.groupEnds = null;
+            prog.groupSlots = null;
+            return prog;
+        }
+
+        /**
+         * Returns a program that matches where any of the given programs
+         * matches. The MATCH instruction of each program is kept, with the
+         * index of the program as its argument.
+         */
+        static Program union(Program[] progs) {
+            Program u = new Program();
+            u.maxSize = Integer.MAX_VALUE;
+            int start = -1;
+            for (int k = progs.length - 1; k >= 0; k--) {
+                Program p = progs[k];
+                int base = u.size;
+                int propBase = u.propCount;
+                for (int pc = 0; pc < p.size; pc++) {
+                    int code = p.op[pc];
+                    int a = p.arg[pc];
+                    switch (code) {
+                    case SPLIT:
+                        a += base;
+                        break;
+                    case CHECK:
+                        if (a >= 0)
+                            a += base;
+                        break;
+                    case CHAR:
+                        a += propBase;
+                        break;
+                    case MARK:
+                        a += u.registers;
+                        break;
+                    case MATCH:
+                        a = k;
+                        break;
+                    }
+                    int n = u.emit(code, p.out[pc] < 0 ? -1 : p.out[pc] + base, a);
+                    if (code == CHECK || code == SAVE_MARK)
+                        u.reg[n] = p.reg[pc] + u.registers;
+                }
+                for (int j = 0; j < p.propCount; j++) {
+                    if (u.propCount == u.props.length)
+                        u.props = Arrays.copyOf(u.props, u.propCount * 2);
+                    u.props[u.propCount++] = p.props[j];
+                }
+                u.registers += p.registers;
+                u.assertions |= p.assertions;
+                start = start < 0 ? p.start + base : u.split(p.start + base, start);
+            }
+            u.start = start;
+            return u;
+        }
+
+        /**
+         * Tells whether the instruction at pc consumes the char c.
+         */
+        boolean accepts(int pc, int c) {
+            int a = arg[pc];
+            switch (op[pc]) {
+            case CHAR:
+                return props[a].isSatisfiedBy(c);
+            case LIT:
+                return a == c;
+            case LIT_I:
+                return a == c || a == ASCII.toLower(c);
+            case LIT_U:
+                return a == c ||
+                    a == Character.toLowerCase(Character.toUpperCase(c));
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * Returns the flags of the assertions of this program that hold
+         * at position i, where beginIndex and endIndex are the positions
+         * the anchors refer to.
+         */
+        int flags(CharSequence seq, int i, int beginIndex, int endIndex) {
+            int flags = 0;
+            if (i == beginIndex)
+                flags |= AT_BEGIN;
+            if (i >= endIndex - 2 && (assertions & ~AT_BEGIN) != 0) {
+                if (i == endIndex) {
+                    flags |= AT_END | AT_DOLLAR | AT_UNIX_DOLLAR;
+                } else if (i == endIndex - 1) {
+                    char ch = seq.charAt(i);
+                    if (ch == '\n') {
+                        flags |= AT_UNIX_DOLLAR;
+                        if (i == 0 || seq.charAt(i - 1) != '\r')
+                            flags |= AT_DOLLAR;
+                    } else if (ch == '\r' || ch == '\u0085' ||
+                               (ch|1) == '\u2029') {
+                        flags |= AT_DOLLAR;
+                    }
+                } else if (seq.charAt(i) == '\r' && seq.charAt(i + 1) == '\n') {
+                    flags |= AT_DOLLAR;
+                }
+            }
+            return flags & assertions;
+        }
+
+        /**
+         * Returns the flag of an assertion instruction, or 0 if the
+         * instruction is not an assertion.
+         */
+        static int assertionFlag(int op) {
+            switch (op) {
+            case BEGIN:
+                return AT_BEGIN;
+            case END:
+                return AT_END;
+            case DOLLAR:
+                return AT_DOLLAR;
+            case UNIX_DOLLAR:
+                return AT_UNIX_DOLLAR;
+            default:
+                return 0;
+            }
+        }
+
+        private int emit(int code, int next, int a) {
+            if (size == op.length) {
+                if (size >= maxSize)
+                    throw new UnsupportedOperationException();
+                op = Arrays.copyOf(op, size * 2);
+                out = Arrays.copyOf(out, size * 2);
+                arg = Arrays.copyOf(arg, size * 2);
+                reg = Arrays.copyOf(reg, size * 2);
+                loops = Arrays.copyOf(loops, size * 2);
+            }
+            loops[size] = activeLoops;
+            op[size] = code;
+            out[size] = next;
+            arg[size] = a;
+            return size++;
+        }
+
+        private int split(int first, int second) {
+            int pc = emit(SPLIT, first, second);
+            if (atomic > 0)
+                reg[pc] = 1;
+            return pc;
+        }
+
+        private int compileNode(Node node) {
+            Integer end = ends.get(node);
+            if (end != null)
+                return end;
+            if (node == lastAccept) {
+                if (matchPc < 0)
+                    matchPc = emit(MATCH, -1, 0);
+                return matchPc;
+            }
+            if (node instanceof CharProperty) {
+                int next = compileNode(node.next);
+                if (propCount == props.length)
+                    props = Arrays.copyOf(props, propCount * 2);
+                props[propCount] = (CharProperty) node;
+                return emit(CHAR, next, propCount++);
+            }
+            Class<?> type = node.getClass();
+            if (type == Slice.class || type == SliceI.class ||
+                type == SliceU.class ||
+                (analysis && node instanceof SliceNode)) {
+                int code = type == Slice.class || type == SliceS.class ? LIT :
+                    type == SliceI.class ? LIT_I : LIT_U;
+                int[] buf = ((SliceNode) node).buffer;
+                int pc = compileNode(node.next);
+                for (int j = buf.length - 1; j >= 0; j--)
+                    pc = emit(code, pc, buf[j]);
+                return pc;
+            }
+            if (node instanceof GroupHead) {
+                int pc = compileNode(node.next);
+                Integer slot = groupSlots.get(((GroupHead) node).localIndex);
+                return slot != null && slot != 0 ? emit(SAVE, pc, slot) : pc;
+            }
+            if (node instanceof GroupTail) {
+                GroupTail tail = (GroupTail) node;
+                end = groupEnds.get(tail.localIndex);
+                if (end != null)
+                    return end;
+                groupSlots.put(tail.localIndex, tail.groupIndex);
+                int pc = compileNode(node.next);
+                return tail.groupIndex != 0 ?
+                    emit(SAVE, pc, tail.groupIndex + 1) : pc;
+            }
+            if (node instanceof Branch) {
+                Branch branch = (Branch) node;
+                // The trie of a large alternation beats trying each
+                // alternative in turn
+                if (backtracking && branch.trie != null)
+                    throw new UnsupportedOperationException();
+                int cont = compileNode(branch.conn.next);
+                // Shared prefixes are walked once, as the trie does
+                if (analysis && branch.trie != null)
+                    return compileTrie(branch.trie, 0, 0, cont);
+                Integer saved = ends.put(branch.conn, cont);
+                int pc = -1;
+                for (int n = branch.size - 1; n >= 0; n--) {
+                    Node atom = branch.atoms[n];
+                    int alt = atom == null ? cont : compileNode(atom);
+                    pc = pc < 0 ? alt : split(alt, pc);
+                }
+                restore(ends, branch.conn, saved);
+                return pc;
+            }
+            if (node instanceof Ques) {
+                Ques ques = (Ques) node;
+                if (ques.type != GREEDY && ques.type != LAZY) {
+                    if (!analysis)
+                        throw new UnsupportedOperationException();
+                    int cont = compileNode(node.next);
+                    atomic++;
+                    int pc = repeat(ques.atom, accept, 0, 0,
+                                    ques.type == INDEPENDENT ? 1 : 0, 1,
+                                    false, cont, NO_CHECK);
+                    atomic--;
+                    return pc;
+                }
+                return repeat(ques.atom, accept, 0, 0, 0, 1,
+                              ques.type == LAZY, compileNode(node.next),
+                              NO_CHECK);
+            }
+            if (node instanceof Curly) {
+                Curly curly = (Curly) node;
+                boolean empty = canBeEmpty(curly.atom);
+                if (!analysis && ((curly.type != GREEDY && curly.type != LAZY &&
+                                   !curly.auto) || empty))
+                    throw new UnsupportedOperationException();
+                int cont = compileNode(node.next);
+                // Made possessive or not, the quantifier matches the same
+                int possessive = analysis && curly.type == POSSESSIVE ? 1 : 0;
+                atomic += possessive;
+                int pc = repeat(curly.atom, accept, 0, 0,
+                                curly.cmin, curly.cmax, curly.type == LAZY,
+                                cont, empty ? CHECK_OPTIONAL : NO_CHECK);
+                atomic -= possessive;
+                return pc;
+            }
+            if (node instanceof GroupCurly) {
+                GroupCurly curly = (GroupCurly) node;
+                if (!analysis && curly.type != GREEDY && curly.type != LAZY &&
+                    !curly.auto)
+                    throw new UnsupportedOperationException();
+                int cont = compileNode(node.next);
+                int possessive = analysis && curly.type == POSSESSIVE ? 1 : 0;
+                atomic += possessive;
+                int pc = repeat(curly.atom, null, curly.localIndex,
+                                curly.capture ? curly.groupIndex : 0,
+                                curly.cmin, curly.cmax, curly.type == LAZY,
+                                cont,
+                                canBeEmpty(curly.atom) ? CHECK_OPTIONAL : NO_CHECK);
+                atomic -= possessive;
+                return pc;
+            }
+            if (node instanceof Prolog) {
+                Loop loop = ((Prolog) node).loop;
+                int cont = compileNode(loop.next);
+                int possessive = analysis && loop.cutIndex >= 0 ? 1 : 0;
+                atomic += possessive;
+                int pc = repeat(loop.body, loop, 0, 0, loop.cmin, loop.cmax,
+                                loop instanceof LazyLoop, cont,
+                                canBeEmpty(loop.body) ? CHECK_ALL : NO_CHECK);
+                atomic -= possessive;
+                return pc;
+            }
+            if (backtracking && node instanceof Bound) {
+                int next = compileNode(node.next);
+                if (boundCount == bounds.length)
+                    bounds = Arrays.copyOf(bounds, boundCount * 2);
+                bounds[boundCount] = (Bound) node;
+                return emit(BOUND, next, boundCount++);
+            }
+            int code;
+            if (node instanceof Begin) {
+                code = BEGIN;
+            } else if (node instanceof End) {
+                code = END;
+            } else if (node instanceof Dollar && !((Dollar) node).multiline) {
+                code = DOLLAR;
+            } else if (node instanceof UnixDollar &&
+                       !((UnixDollar) node).multiline) {
+                code = UNIX_DOLLAR;
+            } else if (analysis && isApproximated(node)) {
+                return compileNode(node.next);
+            } else {
+                throw new UnsupportedOperationException();
+            }
+            assertions |= assertionFlag(code);
+            return emit(code, compileNode(node.next), 0);
+        }
+
+        /**
+         * Compiles the subtrie at the given node for analysis, with a path
+         * to the continuation for each alternative that ends there, given
+         * how many end above it.
+         */
+        private int compileTrie(LiteralTrie trie, int node, int above, int cont) {
+            int[] alts = trie.ends[node];
+            int own = alts == null ? 0 : alts.length - above;
+            int code = trie.fold == LiteralSearch.EXACT ? LIT :
+                trie.fold == LiteralSearch.ASCII_CASE ? LIT_I : LIT_U;
+            int pc = -1;
+            for (int k = trie.keys[node].length - 1; k >= 0; k--) {
+                int child = compileTrie(trie, trie.children[node][k],
+                                        above + own, cont);
+                child = emit(code, child, trie.keys[node][k]);
+                pc = pc < 0 ? child : split(child, pc);
+            }
+            for (int n = 0; n < own; n++)
+                pc = pc < 0 ? cont : split(cont, pc);
+            return pc;
+        }
+
+        /**
+         * Tells whether an analysis program treats the node as matching an
+         * empty string.
+         */
+        private static boolean isApproximated(Node node) {
+            return node instanceof Caret || node instanceof UnixCaret ||
+                node instanceof Dollar || node instanceof UnixDollar ||
+                node instanceof LastMatch || node instanceof Bound ||
+                node instanceof Pos || node instanceof Neg ||
+                node instanceof Behind || node instanceof NotBehind ||
+                node instanceof BackRef || node instanceof CIBackRef;
+        }
+
+        /**
+         * Tells whether the atom of a loop can match an empty string.
+         */
+        private static boolean canBeEmpty(Node atom) {
+            TreeInfo info = new TreeInfo();
+            atom.study(info);
+            return info.minLength == 0;
+        }
+
+        // How the iterations of a repetition that can be empty end
+        private static final int NO_CHECK = 0;
+        private static final int CHECK_ALL = 1;       // as Loop does
+        private static final int CHECK_OPTIONAL = 2;  // as GroupCurly does
+
+        /**
+         * Compiles cmin to cmax repetitions of atom followed by cont. The
+         * atom ends at the node end, or at the tail of the group with the
+         * given local index if end is null. A nonzero slot is the group
+         * slot that is saved around each repetition. The check mode tells
+         * which iterations end with a CHECK.
+         */
+        private int repeat(Node atom, Node end, int local, int slot,
+                           int cmin, int cmax, boolean lazy, int cont,
+                           int check) {
+            int r = check != NO_CHECK ? registers++ : -1;
+            // Where an empty optional iteration goes: the greedy
+            // GroupCurly moves on while the reluctant one fails
+            int empty = (check == CHECK_OPTIONAL && lazy) ? -1 : cont;
+            int pc;
+            if (cmax == MAX_REPS) {
+                int loop = split(-1, -1);
+                int body = iteration(atom, end, local, slot, loop, r, empty);
+                out[loop] = lazy ? cont : body;
+                arg[loop] = lazy ? body : cont;
+                pc = loop;
+            } else {
+                pc = cont;
+                for (int n = cmin; n < cmax; n++) {
+                    int body = iteration(atom, end, local, slot, pc, r, empty);
+                    pc = lazy ? split(cont, body) : split(body, cont);
+                }
+            }
+            if (check != CHECK_ALL)
+                r = -1;
+            for (int n = 0; n < cmin; n++)
+                pc = iteration(atom, end, local, slot, pc, r, cont);
+            return pc;
+        }
+
+        private int iteration(Node atom, Node end, int local, int slot,
+                              int target, int r, int empty) {
+            int[] outerLoops = activeLoops;
+            if (r >= 0) {
+                int depth = outerLoops == null ? 0 : outerLoops.length;
+                activeLoops = outerLoops == null ? new int[1] :
+                    Arrays.copyOf(outerLoops, depth + 1);
+                activeLoops[depth] = r;
+                loopDepth = Math.max(loopDepth, depth + 1);
+            }
+            // The group is saved once the CHECK found the iteration not
+            // empty, as an empty one leaves it as it was
+            boolean checked = slot != 0 && r >= 0;
+            if (slot != 0)
+                target = emit(SAVE, target, slot + 1);
+            if (checked) {
+                target = emit(SAVE_MARK, target, slot);
+                reg[target] = r;
+            }
+            if (r >= 0) {
+                target = emit(CHECK, target, empty);
+                reg[target] = r;
+            }
+            int pc;
+            if (end != null) {
+                Integer saved = ends.put(end, target);
+                pc = compileNode(atom);
+                restore(ends, end, saved);
+            } else {
+                Integer saved = groupEnds.put(local, target);
+                pc = compileNode(atom);
+                restore(groupEnds, local, saved);
+            }
+            if (slot != 0 && !checked)
+                pc = emit(SAVE, pc, slot);
+            activeLoops = outerLoops;
+            return r >= 0 ? emit(MARK, pc, r) : pc;
+        }
+
+        private static <K> void restore(Map<K, Integer> map, K key,
+                                        Integer saved) {
+            if (saved == null)
+                map.remove(key);
+            else
+                map.put(key, saved);
+        }
+    }
+
+    /**
+     * A DFA that is built lazily from a Program while matching, for the
+     * callers that only need to know whether there is a match. Each state
+     * is the set of instructions the NFA can be at, after following the
+     * empty transitions but not the assertions, which are only followed
+     * at the positions where some of them hold. States and transitions
+     * are cached, at most MAX_STATES of them, and shared by all threads:
+     * they are created while holding the lock and are read without it.
+     * A match that would need more states, or that meets a surrogate,
+     * is reported as UNKNOWN so that the caller falls back to the
+     * backtracking matcher, unless the DFA is allowed to flush its cache
+     * and start building states over.
+     */
+    static final class LazyDfa {
+        static final int NO_MATCH = 0;
+        static final int MATCH = 1;
+        static final int UNKNOWN = -1;
+
+        static final int MAX_STATES = 1000;
+
+        static final class State {
+            /** The sorted instructions, without the empty transitions */
+            final int[] pcs;
+            final boolean match;
+            /** The next state for each char below 256, once known */
+            final State[] next = new State[256];
+            /** The state after following the assertions, by flags */
+            final State[] resolved;
+            final int hash;
+            State(int[] pcs, boolean match, boolean assertions) {
+                this.pcs = pcs;
+                this.match = match;
+                this.resolved = assertions ? new State[16] : null;
+                this.hash = Arrays.hashCode(pcs);
+            }
+            public int hashCode() {
+                return hash;
+            }
+            public boolean equals(Object obj) {
+                return obj instanceof State &&
+                    Arrays.equals(pcs, ((State) obj).pcs);
+            }
+        }
+
+        private final Program prog;
+        /** Whether matches must start at the first position */
+        private final boolean anchored;
+        private final HashMap<State, State> states = new HashMap<>();
+        private volatile State start;
+        /** Whether the states are dropped, rather than given up on, when full */
+        private final boolean flush;
+
+        // Scratch space for building states, used while holding the lock
+        private final int[] dense;
+        private final int[] sparse;
+        private int count;
+        private final int[] stack;
+
+        LazyDfa(Program prog, boolean anchored) {
+            this(prog, anchored, false);
+        }
+
+        LazyDfa(Program prog, boolean anchored, boolean flush) {
+            this.prog = prog;
+            this.anchored = anchored;
+            this.flush = flush;
+            dense = new int[prog.size];
+            sparse = new int[prog.size];
+            stack = new int[2 * prog.size + 1];
+            count = 0;
+            addClosure(prog.start, 0);
+            start = intern();
+        }
+
+        /**
+         * Returns whether the program has a $, which sets requireEnd when
+         * the backtracking matcher tries it near the end of the input,
+         * even if the match then fails.
+         */
+        boolean hasDollar() {
+            return (prog.assertions &
+                    (Program.AT_DOLLAR | Program.AT_UNIX_DOLLAR)) != 0;
+        }
+
+        /**
+         * Matches seq between from and to, where beginIndex and endIndex
+         * are the positions the anchors refer to. If full is true the
+         * match must end at to, otherwise any match is enough.
+         *
+         * @return MATCH, NO_MATCH or UNKNOWN
+         */
+        int match(CharSequence seq, int from, int to,
+                  int beginIndex, int endIndex, boolean full) {
+            State s = start;
+            boolean assertions = prog.assertions != 0;
+            for (int i = from; ; i++) {
+                if (assertions) {
+                    int flags = prog.flags(seq, i, beginIndex, endIndex);
+                    if (flags != 0) {
+                        State r = s.resolved[flags];
+                        s = r != null ? r : resolve(s, flags);
+                        if (s == null)
+                            return UNKNOWN;
+                    }
+                }
+                if (s.match && (!full || i == to))
+                    return MATCH;
+                if (i >= to || s.pcs.length == 0)
+                    return NO_MATCH;
+                char c = seq.charAt(i);
+                State n;
+                if (c < 256) {
+                    n = s.next[c];
+                    if (n == null)
+                        n = step(s, c);
+                } else if (Character.isSurrogate(c)) {
+                    return UNKNOWN;
+                } else {
+                    n = step(s, c);
+                }
+                if (n == null)
+                    return UNKNOWN;
+                s = n;
+            }
+        }
+
+        /**
+         * Finds which of the programs that make up a program built by
+         * Program.union have a match between from and to, where beginIndex
+         * and endIndex are the positions the anchors refer to, and sets
+         * their entries of found.
+         *
+         * @return the number of programs found, or UNKNOWN
+         */
+        int matchAll(CharSequence seq, int from, int to,
+                     int beginIndex, int endIndex, boolean[] found) {
+            State s = start;
+            boolean assertions = prog.assertions != 0;
+            int hits = 0;
+            for (int i = from; ; i++) {
+                if (assertions) {
+                    int flags = prog.flags(seq, i, beginIndex, endIndex);
+                    if (flags != 0) {
+                        State r = s.resolved[flags];
+                        s = r != null ? r : resolve(s, flags);
+                        if (s == null)
+                            return UNKNOWN;
+                    }
+                }
+                if (s.match) {
+                    for (int pc : s.pcs) {
+                        if (prog.op[pc] == Program.MATCH &&
+                            !found[prog.arg[pc]]) {
+                            found[prog.arg[pc]] = true;
+                            hits++;
+                        }
+                    }
+                    if (hits == found.length)
+                        return hits;
+                }
+                if (i >= to || s.pcs.length == 0)
+                    return hits;
+                char c = seq.charAt(i);
+                State n;
+                if (c < 256) {
+                    n = s.next[c];
+                    if (n == null)
+                        n = step(s, c);
+                } else if (Character.isSurrogate(c)) {
+                    return UNKNOWN;
+                } else {
+                    n = step(s, c);
+                }
+                if (n == null)
+                    return UNKNOWN;
+                s = n;
+            }
+        }
+
+        private synchronized State step(State s, char c) {
+            if (c < 256 && s.next[c] != null)
+                return s.next[c];
+            count = 0;
+            for (int pc : s.pcs) {
+                if (prog.accepts(pc, c))
+                    addClosure(prog.out[pc], 0);
+            }
+            if (!anchored)
+                addClosure(prog.start, 0);
+            State n = intern();
+            if (n != null && c < 256)
+                s.next[c] = n;
+            return n;
+        }
+
+        private synchronized State resolve(State s, int flags) {
+            if (s.resolved[flags] != null)
+                return s.resolved[flags];
+            count = 0;
+            for (int pc : s.pcs)
+                addClosure(pc, flags);
+            State n = intern();
+            if (n != null)
+                s.resolved[flags] = n;
+            return n;
+        }
+
+        /**
+         * Adds the instructions reachable from pc by empty transitions to
+         * the scratch set, following the assertions that are in flags.
+         * With no flags the assertions are kept in the set.
+         */
+        private void addClosure(int pc, int flags) {
+            int top = 0;
+            stack[top++] = pc;
+            while (top > 0) {
+                pc = stack[--top];
+                int k = sparse[pc];
+                if (k < count && dense[k] == pc)
+                    continue;
+                sparse[pc] = count;
+                dense[count++] = pc;
+                switch (prog.op[pc]) {
+                case Program.SPLIT:
+                    stack[top++] = prog.arg[pc];
+                    stack[top++] = prog.out[pc];
+                    break;
+                case Program.SAVE:
+                case Program.SAVE_MARK:
+                case Program.MARK:
+                    stack[top++] = prog.out[pc];
+                    break;
+                case Program.CHECK:
+                    // Either way, as the position is not known
+                    if (prog.arg[pc] >= 0)
+                        stack[top++] = prog.arg[pc];
+                    stack[top++] = prog.out[pc];
+                    break;
+                case Program.BEGIN:
+                case Program.END:
+                case Program.DOLLAR:
+                case Program.UNIX_DOLLAR:
+                    if ((flags & Program.assertionFlag(prog.op[pc])) != 0)
+                        stack[top++] = prog.out[pc];
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Returns the state for the scratch set, or null if there would
+         * be too many states.
+         */
+        private State intern() {
+            int n = 0;
+            boolean match = false;
+            int[] pcs = new int[count];
+            for (int k = 0; k < count; k++) {
+                int pc = dense[k];
+                int code = prog.op[pc];
+                if (code == Program.SPLIT || code == Program.SAVE ||
+                    code == Program.SAVE_MARK || code == Program.MARK ||
+                    code == Program.CHECK)
+                    continue;
+                if (code == Program.MATCH)
+                    match = true;
+                pcs[n++] = pc;
+            }
+            pcs = Arrays.copyOf(pcs, n);
+            Arrays.sort(pcs);
+            State s = new State(pcs, match, prog.assertions != 0);
+            State old = states.get(s);
+            if (old != null)
+                return old;
+            if (states.size() >= MAX_STATES) {
+                if (!flush)
+                    return null;
+                // Start over with a copy of the start state that doesn't
+                // keep the dropped states alive
+                states.clear();
+                State first = start;
+                first = new State(first.pcs, first.match, first.resolved != null);
+                states.put(first, first);
+                start = first;
+                if (s.equals(first))
+                    return first;
+            }
+            states.put(s, s);
+            return s;
+        }
+    }
+
+    /**
+     * Matches a whole region by following a Program that is one-pass: at
+     * each position, at most one of its instructions can consume the next
+     * char, and a single path of empty transitions leads to it. Such a
+     * program is run as a table of states with no backtracking, setting
+     * the group slots on the way. Each state is the closure of the
+     * instruction a char leads to, with a transition for each instruction
+     * in it that consumes chars.
+     */
+    static final class OnePass {
+        /** The largest number of states of a one-pass matcher */
+        static final int MAX_STATES = 1000;
+        /** The largest number of transitions out of a state */
+        static final int MAX_TRANSITIONS = 32;
+
+        final Program prog;
+        /** The state at the beginning of the input, and elsewhere */
+        final int startAtBegin;
+        final int start;
+        /** The transitions of state s are from first[s] to first[s + 1] */
+        final int[] first;
+        /**
+         * The transition of each state on each ASCII char, or -1: the
+         * transition in the high half, and the target state in the low
+         * bits, with the ACTIONS bit set if it has slots to set, so that a
+         * step takes a single lookup
+         */
+        final int[] ascii;
+        static final int ACTIONS = 0x8000;
+        static final int STATE = 0x7fff;
+        /**
+         * The instruction, the target state and the slots to set, or null,
+         * of each transition
+         */
+        final int[] consumer;
+        final int[] target;
+        final int[][] actions;
+        /** The assertions on the way to a match from each state, or -1 */
+        final int[] matchFlags;
+        final int[][] matchActions;
+        /**
+         * Whether a char would be tried before the match, at the end of
+         * the input, so that hitting the end is reported
+         */
+        final boolean[] matchLast;
+        /** Whether each instruction reads a code point rather than a char */
+        final boolean[] wide;
+
+        private OnePass(Program prog, Builder b) {
+            this.prog = prog;
+            this.startAtBegin = b.startAtBegin;
+            this.start = b.start;
+            int n = b.states;
+            first = Arrays.copyOf(b.first, n + 1);
+            first[n] = b.transitions;
+            consumer = Arrays.copyOf(b.consumer, b.transitions);
+            target = Arrays.copyOf(b.target, b.transitions);
+            actions = Arrays.copyOf(b.actions, b.transitions);
+            matchFlags = Arrays.copyOf(b.matchFlags, n);
+            matchActions = Arrays.copyOf(b.matchActions, n);
+            matchLast = Arrays.copyOf(b.matchLast, n);
+            wide = b.wide;
+            ascii = new int[n * 128];
+            for (int s = 0; s < n; s++) {
+                for (int c = 0; c < 128; c++) {
+                    int t = first[s];
+                    while (t < first[s + 1] && !prog.accepts(consumer[t], c))
+                        t++;
+                    ascii[s * 128 + c] = t == first[s + 1] ? -1 :
+                        t << 16 | (actions[t] != null ? ACTIONS : 0) | target[t];
+                }
+            }
+        }
+
+        /**
+         * Returns the one-pass matcher of a program, or null if the
+         * program is not one-pass.
+         */
+        static OnePass of(Program prog) {
+            if (prog.registers != 0)
+                return null;
+            Builder b = new Builder(prog);
+            b.startAtBegin = b.state(prog.start, true);
+            b.start = (prog.assertions & Program.AT_BEGIN) == 0 ?
+                b.startAtBegin : b.state(prog.start, false);
+            for (int s = 0; s < b.states; s++) {
+                if (!b.build(s))
+                    return null;
+            }
+            return new OnePass(prog, b);
+        }
+
+        /**
+         * Builds the states of a one-pass matcher, rejecting the program
+         * as soon as a state could go two ways.
+         */
+        private static final class Builder {
+            final Program prog;
+            final boolean[] wide;
+            int startAtBegin;
+            int start;
+            /** The instruction each state is the closure of */
+            int[] origin = new int[16];
+            boolean[] atBegin = new boolean[16];
+            /** The state of the closure of each instruction, or -1 */
+            final int[] stateOf;
+            int states;
+            int[] first = new int[16];
+            int[] consumer = new int[16];
+            int[] target = new int[16];
+            int[][] actions = new int[16][];
+            int transitions;
+            int[] matchFlags = new int[16];
+            int[][] matchActions = new int[16][];
+            boolean[] matchLast = new boolean[16];
+            // The stack of the closure walk, and the slots set on the way
+            final int[] stackPc;
+            final int[] stackLength;
+            final int[] stackFlags;
+            final int[] slots;
+            final int[] visited;
+            /**
+             * How many more times the chars of the Basic Multilingual
+             * Plane may be enumerated to compare two char classes
+             */
+            int scans = 64;
+
+            Builder(Program prog) {
+                this.prog = prog;
+                wide = new boolean[prog.size];
+                for (int pc = 0; pc < prog.size; pc++) {
+                    wide[pc] = prog.op[pc] == Program.CHAR &&
+                        !(prog.props[prog.arg[pc]] instanceof BmpCharProperty);
+                }
+                stateOf = new int[prog.size];
+                Arrays.fill(stateOf, -1);
+                stackPc = new int[prog.size * 2 + 2];
+                stackLength = new int[prog.size * 2 + 2];
+                stackFlags = new int[prog.size * 2 + 2];
+                slots = new int[prog.size];
+                visited = new int[prog.size];
+                Arrays.fill(visited, -1);
+            }
+
+            /**
+             * Returns the state of the closure of pc, adding it if needed.
+             * Only the start states can be at the beginning of the input.
+             */
+            int state(int pc, boolean begin) {
+                if (!begin && stateOf[pc] >= 0)
+                    return stateOf[pc];
+                if (states == origin.length) {
+                    origin = Arrays.copyOf(origin, states * 2);
+                    atBegin = Arrays.copyOf(atBegin, states * 2);
+                    first = Arrays.copyOf(first, states * 2);
+                    matchFlags = Arrays.copyOf(matchFlags, states * 2);
+                    matchActions = Arrays.copyOf(matchActions, states * 2);
+                    matchLast = Arrays.copyOf(matchLast, states * 2);
+                }
+                origin[states] = pc;
+                atBegin[states] = begin;
+                if (!begin)
+                    stateOf[pc] = states;
+                return states++;
+            }
+
+            /**
+             * Walks the closure of state s in priority order and adds its
+             * transitions, or returns false if the program is not one-pass.
+             */
+            boolean build(int s) {
+                first[s] = transitions;
+                matchFlags[s] = -1;
+                int top = 0;
+                stackPc[top] = origin[s];
+                stackLength[top] = 0;
+                stackFlags[top++] = 0;
+                while (top > 0) {
+                    int pc = stackPc[--top];
+                    int length = stackLength[top];
+                    int flags = stackFlags[top];
+                    if (visited[pc] == s)
+                        return false;   // two ways to the same instruction
+                    visited[pc] = s;
+                    int code = prog.op[pc];
+                    switch (code) {
+                    case Program.SPLIT:
+                        stackPc[top] = prog.arg[pc];
+                        stackLength[top] = length;
+                        stackFlags[top++] = flags;
+                        stackPc[top] = prog.out[pc];
+                        stackLength[top] = length;
+                        stackFlags[top++] = flags;
+                        break;
+                    case Program.SAVE:
+                        slots[length] = prog.arg[pc];
+                        stackPc[top] = prog.out[pc];
+                        stackLength[top] = length + 1;
+                        stackFlags[top++] = flags;
+                        break;
+                    case Program.BEGIN:
+                        if (atBegin[s]) {
+                            stackPc[top] = prog.out[pc];
+                            stackLength[top] = length;
+                            stackFlags[top++] = flags;
+                        }
+                        break;
+                    case Program.END:
+                    case Program.DOLLAR:
+                    case Program.UNIX_DOLLAR:
+                        // These only hold at the end of a match, where the
+                        // walk must lead to the match without a char
+                        stackPc[top] = prog.out[pc];
+                        stackLength[top] = length;
+                        stackFlags[top++] = flags | Program.assertionFlag(code);
+                        break;
+                    case Program.MATCH:
+                        matchFlags[s] = flags;
+                        matchActions[s] = Arrays.copyOf(slots, length);
+                        matchLast[s] = transitions > first[s];
+                        break;
+                    default:
+                        if (flags != 0 || transitions - first[s] == MAX_TRANSITIONS)
+                            return false;
+                        for (int t = first[s]; t < transitions; t++) {
+                            if (overlaps(consumer[t], pc))
+                                return false;
+                        }
+                        if (transitions == consumer.length) {
+                            consumer = Arrays.copyOf(consumer, transitions * 2);
+                            target = Arrays.copyOf(target, transitions * 2);
+                            actions = Arrays.copyOf(actions, transitions * 2);
+                        }
+                        consumer[transitions] = pc;
+                        actions[transitions] = length == 0 ? null :
+                            Arrays.copyOf(slots, length);
+                        int next = prog.out[pc];
+                        if (stateOf[next] < 0 && states == MAX_STATES)
+                            return false;
+                        target[transitions++] = state(next, false);
+                    }
+                }
+                return true;
+            }
+
+            /**
+             * Tells whether two instructions that consume chars may both
+             * consume the char at some position.
+             */
+            private boolean overlaps(int pc1, int pc2) {
+                if (prog.op[pc2] == Program.LIT) {
+                    int t = pc1;
+                    pc1 = pc2;
+                    pc2 = t;
+                }
+                if (prog.op[pc1] == Program.LIT && !wide[pc2]) {
+                    return prog.accepts(pc2, prog.arg[pc1]);
+                }
+                // Assume the worst once too many chars have been tried
+                scans -= wide[pc1] && wide[pc2] ? 17 : 1;
+                if (scans < 0)
+                    return true;
+                for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                    if (prog.accepts(pc1, c) && prog.accepts(pc2, c))
+                        return true;
+                }
+                if (wide[pc1] != wide[pc2]) {
+                    // A char matches the high surrogate of a code point
+                    int narrow = wide[pc1] ? pc2 : pc1;
+                    for (int c = Character.MIN_HIGH_SURROGATE;
+                         c <= Character.MAX_HIGH_SURROGATE; c++) {
+                        if (prog.accepts(narrow, c))
+                            return true;
+                    }
+                } else if (wide[pc1]) {
+                    for (int c = Character.MIN_SUPPLEMENTARY_CODE_POINT;
+                         c <= Character.MAX_CODE_POINT; c++) {
+                        if (prog.accepts(pc1, c) && prog.accepts(pc2, c))
+                            return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Matches the region from the given index to its end, setting the
+         * groups and the bounds of the match. Returns false, leaving the
+         * groups and the flags of the matcher untouched, if there is no
+         * match.
+         */
+        boolean matches(Matcher matcher, int from, CharSequence seq) {
+            int to = matcher.to;
+            int beginIndex = matcher.anchoringBounds ? matcher.from : 0;
+            int endIndex = matcher.anchoringBounds ?
+                to : matcher.getTextLength();
+            int[] groups = matcher.groups;
+            int[] ascii = this.ascii;
+            int[][] actions = this.actions;
+            int s = from == beginIndex ? startAtBegin : start;
+            int i = from;
+            while (i < to) {
+                char ch = seq.charAt(i);
+                if (ch < 128) {
+                    int e = ascii[(s << 7) + ch];
+                    if (e < 0)
+                        return noMatch(groups);
+                    if ((e & ACTIONS) != 0) {
+                        int[] a = actions[e >>> 16];
+                        for (int k = 0; k < a.length; k++)
+                            groups[a[k]] = i;
+                    } else if ((e & STATE) == s) {
+                        // A loop such as .* or [a-z]+ stays in s
+                        int base = s << 7;
+                        do {
+                            i++;
+                        } while (i < to && (ch = seq.charAt(i)) < 128 &&
+                                 ascii[base + ch] == e);
+                        continue;
+                    }
+                    i++;
+                    s = e & STATE;
+                    continue;
+                }
+                int t = transition(s, seq, i, to);
+                if (t < 0)
+                    return noMatch(groups);
+                int[] a = actions[t];
+                if (a != null) {
+                    for (int k = 0; k < a.length; k++)
+                        groups[a[k]] = i;
+                }
+                if (wide[consumer[t]] && Character.isHighSurrogate(ch))
+                    i += Character.charCount(Character.codePointAt(seq, i));
+                else
+                    i++;
+                s = target[t];
+            }
+            int flags = matchFlags[s];
+            if (flags < 0)
+                return noMatch(groups);
+            if (flags != 0) {
+                if ((prog.flags(seq, to, beginIndex, endIndex) & flags) != flags)
+                    return noMatch(groups);
+                matcher.hitEnd = true;
+                if ((flags & (Program.AT_DOLLAR | Program.AT_UNIX_DOLLAR)) != 0)
+                    matcher.requireEnd = true;
+            }
+            if (matchLast[s])
+                matcher.hitEnd = true;
+            int[] a = matchActions[s];
+            for (int k = 0; k < a.length; k++)
+                groups[a[k]] = to;
+            matcher.first = from;
+            matcher.last = to;
+            groups[0] = from;
+            groups[1] = to;
+            return true;
+        }
+
+        /**
+         * Returns the transition of state s on the char, or code point, at
+         * position i, or -1 if there is none.
+         */
+        private int transition(int s, CharSequence seq, int i, int to) {
+            char ch = seq.charAt(i);
+            int cp = Character.isHighSurrogate(ch) ?
+                Character.codePointAt(seq, i) : ch;
+            for (int t = first[s], end = first[s + 1]; t < end; t++) {
+                int pc = consumer[t];
+                if (!wide[pc]) {
+                    if (prog.accepts(pc, ch))
+                        return t;
+                } else if (prog.accepts(pc, cp)) {
+                    return i + Character.charCount(cp) <= to ? t : -1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Resets the group slots set on the way, and returns false.
+         */
+        private static boolean noMatch(int[] groups) {
+            Arrays.fill(groups, -1);
+            return false;
+        }
+    }
+
+    /**
+     * Matches by simulating a Program with a Pike VM: the threads at each
+     * position are kept in priority order, each with its own copy of the
+     * group slots, so the groups are those of the backtracking matcher
+     * while no position is visited twice by the same instruction. Used as
+     * the root nodes of the patterns compiled with LINEAR_TIME.
+     */
+    static final class PikeVM extends Node {
+        /**
+         * The largest number of nested loops, with a body that can match
+         * an empty string, that the VM runs. Each of them doubles the
+         * size of the thread lists.
+         */
+        static final int MAX_LOOP_DEPTH = 3;
+
+        final Program prog;
+        /** Whether the match must start at the first position */
+        final boolean anchored;
+        /** The number of group slots, including group 0 */
+        final int groupSlots;
+        /** The number of slots of a thread: the groups, then the registers */
+        final int slots;
+        /** Whether each instruction reads a code point rather than a char */
+        final boolean[] wide;
+        /** The chars below 256 a match can start with, or null */
+        final boolean[] firstChars;
+        final boolean firstHigh;
+        /**
+         * The bits of a thread key that hold whether each enclosing loop
+         * of the instruction started its iteration at the current position
+         */
+        final int shift;
+
+        PikeVM(Program prog, boolean anchored, int groupCount, Node tree) {
+            this.prog = prog;
+            this.anchored = anchored;
+            this.groupSlots = groupCount * 2;
+            this.slots = groupSlots + prog.registers;
+            this.shift = prog.loopDepth;
+            wide = new boolean[prog.size];
+            for (int pc = 0; pc < prog.size; pc++) {
+                wide[pc] = prog.op[pc] == Program.CHAR &&
+                    !(prog.props[prog.arg[pc]] instanceof BmpCharProperty);
+            }
+            FirstChars first = anchored ? null : FirstChars.of(tree);
+            firstChars = first == null ? null : first.bits;
+            firstHigh = first != null && first.high;
+        }
+
+        /**
+         * The thread lists and stack of a matcher, reused across matches.
+         */
+        static final class Scratch {
+            final Program prog;
+            Threads clist;
+            Threads nlist;
+            final int[] stackPc;
+            final int[] stackValue;
+            final int[] work;
+            final int[] matched;
+            Scratch(Program prog, int slots, int shift) {
+                this.prog = prog;
+                int keys = (prog.size << shift) + prog.size;
+                clist = new Threads(keys, slots);
+                nlist = new Threads(keys, slots);
+                stackPc = new int[keys * 2 + 2];
+                stackValue = new int[keys * 2 + 2];
+                work = new int[slots];
+                matched = new int[slots];
+            }
+        }
+
+        /**
+         * A list of threads, as a sparse set of keys in priority order with
+         * the group slots of each thread. A key is an instruction shifted
+         * left by {@code shift}, or'ed with a bit for each enclosing loop
+         * whose register holds the current position: threads that agree
+         * on those bits have the same future, whatever their slots. The
+         * keys from {@code size << shift} up are the second halves of
+         * code points, which are skipped.
+         */
+        static final class Threads {
+            final int[] dense;
+            final int[] sparse;
+            final int[] caps;
+            int count;
+            Threads(int size, int slots) {
+                dense = new int[size];
+                sparse = new int[size];
+                caps = new int[size * slots];
+            }
+            boolean contains(int pc) {
+                int k = sparse[pc];
+                return k < count && dense[k] == pc;
+            }
+            int add(int pc) {
+                sparse[pc] = count;
+                dense[count] = pc;
+                return count++;
+            }
+        }
+
+        boolean match(Matcher matcher, int from, CharSequence seq) {
+            Scratch s = matcher.pikeScratch;
+            if (s == null || s.prog != prog)
+                matcher.pikeScratch = s = new Scratch(prog, slots, shift);
+            int to = matcher.to;
+            int beginIndex = matcher.anchoringBounds ? matcher.from : 0;
+            int endIndex = matcher.anchoringBounds ?
+                to : matcher.getTextLength();
+            boolean full = anchored && matcher.acceptMode == Matcher.ENDANCHOR;
+            int skip = prog.size << shift;
+            int[] op = prog.op;
+            int[] out = prog.out;
+            int[] work = s.work;
+            int matchEnd = -1;
+            Threads clist = s.clist;
+            Threads nlist = s.nlist;
+            clist.count = 0;
+            for (int i = from; ; i++) {
+                if (matchEnd < 0 && (!anchored || i == from)) {
+                    if (clist.count == 0 && firstChars != null) {
+                        // Skip to the next char a match can start with
+                        while (i < to) {
+                            char c = seq.charAt(i);
+                            if (c < 256 ? firstChars[c] : firstHigh)
+                                break;
+                            i++;
+                        }
+                        if (i >= to)
+                            break;
+                    }
+                    Arrays.fill(work, -1);
+                    work[0] = i;
+                    addThread(matcher, s, clist, prog.start, i, seq,
+                              beginIndex, endIndex);
+                }
+                if (clist.count == 0)
+                    break;
+                nlist.count = 0;
+                for (int k = 0; k < clist.count; k++) {
+                    int pc = clist.dense[k];
+                    if (pc >= skip) {
+                        // The low surrogate of a code point
+                        System.arraycopy(clist.caps, k * slots, work, 0, slots);
+                        addThread(matcher, s, nlist, out[pc - skip], i + 1,
+                                  seq, beginIndex, endIndex);
+                        continue;
+                    }
+                    pc >>= shift;
+                    int code = op[pc];
+                    if (code == Program.MATCH) {
+                        if (full && i != to)
+                            continue;
+                        matchEnd = i;
+                        System.arraycopy(clist.caps, k * slots, s.matched, 0, slots);
+                        // Lower priority threads are cut off
+                        break;
+                    }
+                    if (code > Program.LIT_U)
+                        continue;
+                    if (i >= to) {
+                        matcher.hitEnd = true;
+                        continue;
+                    }
+                    int c = seq.charAt(i);
+                    int width = 1;
+                    if (wide[pc]) {
+                        c = Character.codePointAt(seq, i);
+                        width = Character.charCount(c);
+                    }
+                    if (!prog.accepts(pc, c))
+                        continue;
+                    System.arraycopy(clist.caps, k * slots, work, 0, slots);
+                    if (width == 1) {
+                        addThread(matcher, s, nlist, out[pc], i + 1,
+                                  seq, beginIndex, endIndex);
+                    } else if (i + 2 <= to && !nlist.contains(pc + skip)) {
+                        int n = nlist.add(pc + skip);
+                        System.arraycopy(work, 0, nlist.caps, n * slots, slots);
+                    }
+                }
+                if (i >= to)
+                    break;
+                Threads t = clist;
+                clist = nlist;
+                nlist = t;
+            }
+            s.clist = clist;
+            s.nlist = nlist;
+            if (matchEnd < 0) {
+                if (!anchored)
+                    matcher.hitEnd = true;
+                return false;
+            }
+            int[] groups = matcher.groups;
+            System.arraycopy(s.matched, 0, groups, 0, groupSlots);
+            matcher.first = groups[0];
+            matcher.last = matchEnd;
+            groups[1] = matchEnd;
+            return true;
+        }
+
+        /**
+         * Adds the thread at pc, with the slots in the work array, and the
+         * threads reachable from it by empty transitions at position i to
+         * the list, in priority order.
+         */
+        private void addThread(Matcher matcher, Scratch s, Threads list,
+                               int pc, int i, CharSequence seq,
+                               int beginIndex, int endIndex) {
+            int[] stackPc = s.stackPc;
+            int[] stackValue = s.stackValue;
+            int[] work = s.work;
+            int flags = -1;
+            int top = 0;
+            stackPc[top++] = pc;
+            while (top > 0) {
+                pc = stackPc[--top];
+                if (pc < 0) {
+                    // Restore a slot saved below
+                    work[~pc] = stackValue[top];
+                    continue;
+                }
+                int key = pc << shift;
+                int[] loops = prog.loops[pc];
+                if (loops != null) {
+                    for (int k = 0; k < loops.length; k++) {
+                        if (work[groupSlots + loops[k]] == i)
+                            key |= 1 << k;
+                    }
+                }
+                if (list.contains(key))
+                    continue;
+                int n = list.add(key);
+                int code = prog.op[pc];
+                switch (code) {
+                case Program.SPLIT:
+                    stackPc[top++] = prog.arg[pc];
+                    stackPc[top++] = prog.out[pc];
+                    break;
+                case Program.SAVE:
+                case Program.SAVE_MARK:
+                case Program.MARK:
+                    int slot = prog.arg[pc];
+                    if (code == Program.MARK)
+                        slot += groupSlots;
+                    stackValue[top] = work[slot];
+                    stackPc[top++] = ~slot;
+                    work[slot] = code == Program.SAVE_MARK ?
+                        work[groupSlots + prog.reg[pc]] : i;
+                    stackPc[top++] = prog.out[pc];
+                    break;
+                case Program.CHECK:
+                    if (work[groupSlots + prog.reg[pc]] != i)
+                        stackPc[top++] = prog.out[pc];
+                    else if (prog.arg[pc] >= 0)
+                        stackPc[top++] = prog.arg[pc];
+                    break;
+                case Program.BEGIN:
+                case Program.END:
+                case Program.DOLLAR:
+                case Program.UNIX_DOLLAR:
+                    if (flags < 0)
+                        flags = prog.flags(seq, i, beginIndex, endIndex);
+                    if ((flags & Program.assertionFlag(code)) != 0) {
+                        if (code != Program.BEGIN)
+                            matcher.hitEnd = true;
+                        if (code == Program.DOLLAR ||
+                            code == Program.UNIX_DOLLAR)
+                            matcher.requireEnd = true;
+                        stackPc[top++] = prog.out[pc];
+                    }
+                    break;
+                default:
+                    System.arraycopy(work, 0, list.caps, n * slots, slots);
+                }
+            }
+        }
+
+        boolean study(TreeInfo info) {
+            info.maxValid = false;
+            info.deterministic = false;
+            return false;
+        }
+    }
+
+    /**
+     * Runs the iterations of a Loop from a Program, backtracking with an
+     * explicit stack of choice points rather than by recursion, so that the
+     * depth of the Java stack does not grow with the number of iterations.
+     * A loop hands its remaining iterations over to its backtracker once
+     * MAX_DEPTH iterations of the loops of the match are on the stack. The
+     * choice points are tried in the order the tree would try them, and at
+     * each exit of the loop the nodes after it are matched as usual. The
+     * stack is kept in the matcher, and is shared by the runs of all the
+     * loops of a match: each run starts with the registers of its loop and
+     * pops back to them when it fails.
+     */
+    static final class Backtracker {
+        /**
+         * The number of iterations matched by recursion, which take about
+         * a kilobyte of stack each, before the loops use their backtracker.
+         */
+        static final int MAX_DEPTH = 64;
+
+        final Program prog;
+        /** The node after the loop */
+        final Node next;
+        /** Whether each instruction reads a code point rather than a char */
+        final boolean[] wide;
+        /**
+         * The chars below 256 that each alternative of a SPLIT can go on
+         * with, four words per instruction, and whether it can go on with
+         * other chars. An alternative that can't go on with the next char
+         * is not pushed, as it would fail without setting hitEnd. Null
+         * for the programs that are too large to be worth it.
+         */
+        final long[] firstChars;
+        final boolean[] firstHigh;
+
+        /** The largest program whose alternatives are looked ahead */
+        static final int MAX_LOOKAHEAD_SIZE = 1000;
+
+        private Backtracker(Program prog, Node next) {
+            this.prog = prog;
+            this.next = next;
+            wide = new boolean[prog.size];
+            for (int pc = 0; pc < prog.size; pc++) {
+                wide[pc] = prog.op[pc] == Program.CHAR &&
+                    !(prog.props[prog.arg[pc]] instanceof BmpCharProperty);
+            }
+            if (prog.size > MAX_LOOKAHEAD_SIZE) {
+                firstChars = null;
+                firstHigh = null;
+                return;
+            }
+            firstChars = new long[prog.size * 4];
+            firstHigh = new boolean[prog.size];
+            boolean[] seen = new boolean[prog.size];
+            int[] stack = new int[prog.size * 2];
+            for (int pc = 0; pc < prog.size; pc++) {
+                if (prog.op[pc] == Program.SPLIT) {
+                    addFirstChars(prog.out[pc], seen, stack);
+                    addFirstChars(prog.arg[pc], seen, stack);
+                }
+            }
+        }
+
+        /**
+         * Finds the chars the instruction at start can go on with, by
+         * following the empty transitions to the instructions that consume
+         * a char. Any char will do if a MATCH or an assertion is reached.
+         */
+        private void addFirstChars(int start, boolean[] seen, int[] stack) {
+            int w = start * 4;
+            if (firstHigh[start] || firstChars[w] != 0 ||
+                firstChars[w + 1] != 0 || firstChars[w + 2] != 0 ||
+                firstChars[w + 3] != 0)
+                return;
+            Arrays.fill(seen, false);
+            int top = 0;
+            stack[top++] = start;
+            while (top > 0) {
+                int pc = stack[--top];
+                if (seen[pc])
+                    continue;
+                seen[pc] = true;
+                switch (prog.op[pc]) {
+                case Program.SPLIT:
+                case Program.CHECK:
+                    if (prog.arg[pc] >= 0)
+                        stack[top++] = prog.arg[pc];
+                    stack[top++] = prog.out[pc];
+                    break;
+                case Program.SAVE:
+                case Program.SAVE_MARK:
+                case Program.MARK:
+                    stack[top++] = prog.out[pc];
+                    break;
+                case Program.CHAR:
+                case Program.LIT:
+                case Program.LIT_I:
+                case Program.LIT_U:
+                    for (int c = 0; c < 256; c++) {
+                        if (prog.accepts(pc, c))
+                            firstChars[w + (c >> 6)] |= 1L << c;
+                    }
+                    if (prog.op[pc] != Program.LIT || prog.arg[pc] >= 256)
+                        firstHigh[start] = true;
+                    break;
+                default:
+                    Arrays.fill(firstChars, w, w + 4, -1L);
+                    firstHigh[start] = true;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Tells whether the alternative at pc can go on with the char c.
+         */
+        private boolean canStart(int pc, char c) {
+            return c < 256 ? (firstChars[pc * 4 + (c >> 6)] & 1L << c) != 0 :
+                firstHigh[pc];
+        }
+
+        /**
+         * Returns the backtracker of a loop, or null if the loop has a
+         * maximum or its iterations use nodes that can't be run from a
+         * Program.
+         */
+        static Backtracker of(Loop loop) {
+            if (loop.cmax != MAX_REPS)
+                return null;
+            Program prog = Program.compileLoop(loop);
+            return prog == null ? null : new Backtracker(prog, loop.next);
+        }
+
+        boolean match(Matcher matcher, int i, CharSequence seq) {
+            Program prog = this.prog;
+            int[] op = prog.op;
+            int[] out = prog.out;
+            int[] arg = prog.arg;
+            int[] groups = matcher.groups;
+            int slots = groups.length;
+            int to = matcher.to;
+            int base = matcher.backtrackTop;
+            int bottom = base + prog.registers;
+            int[] stack = matcher.backtrackStack;
+            if (stack == null || stack.length < bottom + 2)
+                stack = grow(matcher, bottom + 2);
+            Arrays.fill(stack, base, bottom, -1);
+            int top = bottom;
+            int pc = prog.start;
+            // The char at i, if i is before the end
+            char ch = i < to ? seq.charAt(i) : 0;
+            for (;;) {
+                int code = op[pc];
+                switch (code) {
+                case Program.LIT:
+                    if (i >= to) {
+                        matcher.hitEnd = true;
+                        break;
+                    }
+                    if (ch != arg[pc])
+                        break;
+                    pc = out[pc];
+                    if (++i < to)
+                        ch = seq.charAt(i);
+                    continue;
+                case Program.CHAR:
+                    if (i >= to) {
+                        matcher.hitEnd = true;
+                        break;
+                    }
+                    if (wide[pc]) {
+                        int cp = Character.codePointAt(seq, i);
+                        if (!prog.props[arg[pc]].isSatisfiedBy(cp))
+                            break;
+                        i += Character.charCount(cp);
+                    } else {
+                        if (!prog.props[arg[pc]].isSatisfiedBy(ch))
+                            break;
+                        i++;
+                    }
+                    pc = out[pc];
+                    if (i < to)
+                        ch = seq.charAt(i);
+                    continue;
+                case Program.LIT_I:
+                case Program.LIT_U:
+                    if (i >= to) {
+                        matcher.hitEnd = true;
+                        break;
+                    }
+                    if (!prog.accepts(pc, ch))
+                        break;
+                    pc = out[pc];
+                    if (++i < to)
+                        ch = seq.charAt(i);
+                    continue;
+                case Program.SPLIT:
+                    if (firstChars != null && i < to) {
+                        if (!canStart(arg[pc], ch)) {
+                            pc = out[pc];
+                            continue;
+                        }
+                        if (!canStart(out[pc], ch)) {
+                            pc = arg[pc];
+                            continue;
+                        }
+                    }
+                    if (top + 2 > stack.length)
+                        stack = grow(matcher, top + 2);
+                    stack[top++] = arg[pc];
+                    stack[top++] = i;
+                    pc = out[pc];
+                    continue;
+                case Program.SAVE:
+                case Program.SAVE_MARK:
+                    if (top + 2 > stack.length)
+                        stack = grow(matcher, top + 2);
+                    int slot = arg[pc];
+                    stack[top++] = ~slot;
+                    stack[top++] = groups[slot];
+                    groups[slot] = op[pc] == Program.SAVE ? i :
+                        stack[base + prog.reg[pc]];
+                    pc = out[pc];
+                    continue;
+                case Program.MARK:
+                    if (top + 2 > stack.length)
+                        stack = grow(matcher, top + 2);
+                    int r = arg[pc];
+                    stack[top++] = ~(slots + r);
+                    stack[top++] = stack[base + r];
+                    stack[base + r] = i;
+                    pc = out[pc];
+                    continue;
+                case Program.CHECK:
+                    if (stack[base + prog.reg[pc]] != i) {
+                        pc = out[pc];
+                        continue;
+                    }
+                    if (arg[pc] >= 0) {
+                        pc = arg[pc];
+                        continue;
+                    }
+                    break;
+                case Program.MATCH:
+                    matcher.backtrackTop = top;
+                    if (next.match(matcher, i, seq)) {
+                        matcher.backtrackTop = base;
+                        return true;
+                    }
+                    stack = matcher.backtrackStack;
+                    break;
+                case Program.BOUND:
+                    Bound bound = prog.bounds[arg[pc]];
+                    if ((bound.check(matcher, i, seq) & bound.type) == 0)
+                        break;
+                    pc = out[pc];
+                    continue;
+                default:
+                    int beginIndex = matcher.anchoringBounds ? matcher.from : 0;
+                    int endIndex = matcher.anchoringBounds ?
+                        to : matcher.getTextLength();
+                    // A code point may end past the end, where $ holds
+                    int flags = i > endIndex ?
+                        Program.AT_DOLLAR | Program.AT_UNIX_DOLLAR :
+                        prog.flags(seq, i, beginIndex, endIndex);
+                    if ((flags & Program.assertionFlag(code)) == 0)
+                        break;
+                    if (code != Program.BEGIN)
+                        matcher.hitEnd = true;
+                    if (code == Program.DOLLAR || code == Program.UNIX_DOLLAR)
+                        matcher.requireEnd = true;
+                    pc = out[pc];
+                    continue;
+                }
+                // Backtrack to the last choice point, undoing the slots
+                // and registers set since then
+                for (;;) {
+                    if (top == bottom) {
+                        matcher.backtrackTop = base;
+                        return false;
+                    }
+                    top -= 2;
+                    int entry = stack[top];
+                    if (entry >= 0) {
+                        matcher.step();
+                        pc = entry;
+                        i = stack[top + 1];
+                        if (i < to)
+                            ch = seq.charAt(i);
+                        break;
+                    }
+                    int slot = ~entry;
+                    if (slot < slots)
+                        groups[slot] = stack[top + 1];
+                    else
+                        stack[base + slot - slots] = stack[top + 1];
+                }
+            }
+        }
+
+        private static int[] grow(Matcher matcher, int size) {
+            int[] stack = matcher.backtrackStack;
+            int length = stack == null ? 64 : stack.length;
+            while (length < size)
+                length *= 2;
+            stack = stack == null ? new int[length] : Arrays.copyOf(stack, length);
+            matcher.backtrackStack = stack;
+            return stack;
         }
     }
 
@@ -0,0 +1,983 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bogdang.modifications.regex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a static analysis of how the time a pattern takes to fail
+ * a match grows with the length of the input, which tells whether the
+ * pattern can backtrack catastrophically. See {@link Pattern#analyze()}.
+ *
+ * <p> The analysis looks for the strings the pattern can match in more
+ * than one way. If some string, the <i>pump</i>, leads from a point of the
+ * pattern back to the same point in two different ways, as in
+ * <tt>(a|a)*</tt>, <tt>(a+)+</tt> or <tt>(\w|\d)*</tt>, then an input that
+ * repeats the pump <i>n</i> times before a suffix that makes the match fail
+ * is tried in 2<sup><i>n</i></sup> ways, and the complexity is
+ * {@link Complexity#EXPONENTIAL}. Otherwise, if the pump leads from a
+ * first point back to itself, from the first point to a second one and
+ * from the second point back to itself, as in <tt>a*a*b</tt> or
+ * <tt>\d+\w+$</tt>, the number of ways is a polynomial of <i>n</i>, and
+ * the complexity is {@link Complexity#POLYNOMIAL}. A pattern with neither
+ * shape is {@link Complexity#LINEAR}.
+ *
+ * <p> The complexity is that of a single match attempt, as made by
+ * {@link Matcher#matches()}, and the witness is an input that the pattern
+ * doesn't match. {@link Matcher#find()} makes an attempt at each position
+ * of the input, which can multiply the time by the length of the input,
+ * unless the pattern is anchored or the attempts are ruled out without
+ * backtracking.
+ *
+ * <p> The analysis is conservative: lookarounds, back references and word
+ * boundaries are assumed to match an empty string, so a pattern that uses
+ * them can be reported worse than it is. Possessive quantifiers and
+ * independent groups never give a second way of matching. A pattern too
+ * large to be analyzed is reported as exponential, without a witness.
+ *
+ * <p> Instances of this class are immutable and are safe for use by
+ * multiple concurrent threads.
+ *
+ * @since 0.2.5
+ */
+public final class PatternAnalysis {
+
+    /**
+     * How the time a failing match attempt takes grows with the length of
+     * the input, in the worst case.
+     */
+    public enum Complexity {
+        /** The time grows linearly */
+        LINEAR,
+        /** The time grows as a polynomial of degree two or more */
+        POLYNOMIAL,
+        /** The time grows exponentially */
+        EXPONENTIAL
+    }
+
+    static final PatternAnalysis LINEAR =
+        new PatternAnalysis(Complexity.LINEAR, null, null, null);
+
+    private static final PatternAnalysis TOO_LARGE =
+        new PatternAnalysis(Complexity.EXPONENTIAL, null, null, null);
+
+    private final Complexity complexity;
+    private final String prefix;
+    private final String pump;
+    private final String suffix;
+
+    private PatternAnalysis(Complexity complexity, String prefix, String pump,
+                            String suffix) {
+        this.complexity = complexity;
+        this.prefix = prefix;
+        this.pump = pump;
+        this.suffix = suffix;
+    }
+
+    /**
+     * Analyzes the given program, compiled by Program.compileForAnalysis.
+     */
+    static PatternAnalysis of(Pattern.Program prog) {
+        if (prog == null)
+            return TOO_LARGE;
+        try {
+            return new Analyzer(prog).analyze();
+        } catch (UnsupportedOperationException e) {
+            return TOO_LARGE;
+        }
+    }
+
+    /**
+     * Returns the complexity of the pattern.
+     *
+     * @return  The complexity
+     */
+    public Complexity complexity() {
+        return complexity;
+    }
+
+    /**
+     * Returns the string that leads to the point of the pattern where the
+     * pump starts, or null if there is no witness.
+     *
+     * @return  The prefix of the witness
+     */
+    public String prefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns the string that can be matched in more than one way, or null
+     * if there is no witness.
+     *
+     * @return  The pump of the witness
+     */
+    public String pump() {
+        return pump;
+    }
+
+    /**
+     * Returns the string that makes the match fail after the pumps, or
+     * null if there is no witness.
+     *
+     * @return  The suffix of the witness
+     */
+    public String suffix() {
+        return suffix;
+    }
+
+    /**
+     * Returns an input that the pattern doesn't match, on which a match
+     * attempt takes a time that grows as the complexity of the pattern with
+     * the given number of repetitions of the pump.
+     *
+     * @param  repetitions
+     *         The number of repetitions of the pump
+     *
+     * @return  The witness, or null if the complexity is linear or if the
+     *          pattern was too large to be analyzed
+     */
+    public String witness(int repetitions) {
+        if (pump == null)
+            return null;
+        StringBuilder sb = new StringBuilder(prefix);
+        for (int n = 0; n < repetitions; n++)
+            sb.append(pump);
+        return sb.append(suffix).toString();
+    }
+
+    @Override
+    public String toString() {
+        if (pump == null)
+            return complexity.toString();
+        return complexity + " (prefix \"" + prefix + "\", pump \"" + pump +
+            "\", suffix \"" + suffix + "\")";
+    }
+
+    /**
+     * Looks for the ambiguous shapes in the automaton of a program. Its
+     * states are the instructions that consume a char, and the MATCH
+     * instruction. The chars are represented by one char of each class of
+     * the chars that all the instructions treat alike.
+     */
+    private static final class Analyzer {
+
+        /** The largest number of steps of an analysis */
+        private static final int MAX_WORK = 1 << 22;
+
+        /** The largest number of state sets looked at to find a suffix */
+        private static final int MAX_SUFFIX_SETS = 256;
+
+        private final Pattern.Program prog;
+        /** The number of consuming states, which is also the MATCH state */
+        private final int n;
+        private final int[] pcOf;
+        private final int[] stateOf;
+        /** The code point that represents each class of chars */
+        private int[] reps;
+        /** The classes of chars each consuming state accepts */
+        private BitSet[] chars;
+        /** The states reached after each consuming state, and at start */
+        private final BitSet[] succ;
+        private BitSet initial;
+        /**
+         * The pairs of states that a state reaches in two ways that split
+         * at an instruction that is not possessive, by source and pair.
+         */
+        private final HashSet<Long> divergent = new HashSet<>();
+        private final int[] component;
+        private final boolean[] cyclic;
+        /**
+         * Whether a state of each component splits into two ways that stay
+         * in the component, and into two ways of which the first stays.
+         */
+        private boolean[] splitsWithin;
+        private boolean[] splitsOut;
+        private int work;
+
+        // The state of the closure being computed
+        private int source;
+        private boolean[] marked;
+        private int markCount;
+        private HashMap<Integer, BitSet> memo;
+
+        Analyzer(Pattern.Program prog) {
+            this.prog = prog;
+            stateOf = new int[prog.size];
+            int count = 0;
+            for (int pc = 0; pc < prog.size; pc++)
+                stateOf[pc] = consumes(prog.op[pc]) ? count++ : -1;
+            n = count;
+            pcOf = new int[n];
+            for (int pc = 0; pc < prog.size; pc++) {
+                if (stateOf[pc] >= 0)
+                    pcOf[stateOf[pc]] = pc;
+            }
+            classifyChars();
+            marked = new boolean[prog.registers];
+            source = -1;
+            initial = closureOf(prog.start, true);
+            succ = new BitSet[n];
+            for (int s = 0; s < n; s++) {
+                source = s;
+                succ[s] = closureOf(prog.out[pcOf[s]], false);
+            }
+            memo = null;
+            component = new int[n];
+            cyclic = new boolean[n];
+            findComponents();
+            findSplits();
+        }
+
+        private static boolean consumes(int op) {
+            return op == Pattern.Program.CHAR || op == Pattern.Program.LIT ||
+                op == Pattern.Program.LIT_I || op == Pattern.Program.LIT_U;
+        }
+
+        private void work(int steps) {
+            work += steps;
+            if (work > MAX_WORK)
+                throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Splits the chars into the classes that every consuming state
+         * either accepts or rejects as a whole, and picks a char of each
+         * class, printable ASCII chars first.
+         */
+        private void classifyChars() {
+            int[] classOf = new int[0x10000];
+            int classes = 1;
+            List<Integer> supplementary = new ArrayList<>();
+            HashSet<Object> seen = new HashSet<>();
+            for (int s = 0; s < n; s++) {
+                int pc = pcOf[s];
+                int op = prog.op[pc];
+                int a = prog.arg[pc];
+                if (!seen.add(key(pc)))
+                    continue;
+                // Each class is split into the chars the state accepts,
+                // which move to a new class, and the others
+                int[] split = new int[classes];
+                Arrays.fill(split, -1);
+                if (op != Pattern.Program.CHAR && a >= 0x10000)
+                    supplementary.add(a);
+                else if (op == Pattern.Program.CHAR &&
+                         prog.props[a] instanceof Pattern.SingleS)
+                    supplementary.add(((Pattern.SingleS) prog.props[a]).c);
+                if (op == Pattern.Program.LIT || op == Pattern.Program.LIT_I) {
+                    int[] members = { a, ASCII.toUpper(a) };
+                    for (int c : members) {
+                        if (c < 0x10000 && prog.accepts(pc, c) &&
+                            classOf[c] < split.length)
+                            classes = refine(classOf, c, split, classes);
+                    }
+                } else {
+                    work(0x10000 >> 6);
+                    for (int c = 0; c < 0x10000; c++) {
+                        if (prog.accepts(pc, c))
+                            classes = refine(classOf, c, split, classes);
+                    }
+                }
+            }
+            Map<Object, BitSet> accepted = new HashMap<>();
+            int[] repOf = new int[classes];
+            Arrays.fill(repOf, -1);
+            List<Integer> repList = new ArrayList<>();
+            for (int k = 0; k < 0x10000; k++) {
+                // Printable ASCII chars first
+                int c = (k + 0x20) & 0xFFFF;
+                if (repOf[classOf[c]] < 0) {
+                    repOf[classOf[c]] = repList.size();
+                    repList.add(c);
+                }
+            }
+            // The supplementary chars of the literals only stand for
+            // themselves: the other ones are not looked at
+            for (int c : supplementary) {
+                if (!repList.contains(c))
+                    repList.add(c);
+            }
+            reps = new int[repList.size()];
+            for (int r = 0; r < reps.length; r++)
+                reps[r] = repList.get(r);
+            chars = new BitSet[n];
+            for (int s = 0; s < n; s++) {
+                int pc = pcOf[s];
+                Object key = key(pc);
+                BitSet set = accepted.get(key);
+                if (set == null) {
+                    set = new BitSet();
+                    for (int r = 0; r < reps.length; r++) {
+                        if (prog.accepts(pc, reps[r]))
+                            set.set(r);
+                    }
+                    work(reps.length >> 6);
+                    accepted.put(key, set);
+                }
+                chars[s] = set;
+            }
+        }
+
+        /**
+         * Returns what the instruction at pc accepts, for telling apart the
+         * instructions that accept the same chars.
+         */
+        private Object key(int pc) {
+            int op = prog.op[pc];
+            return op == Pattern.Program.CHAR ? prog.props[prog.arg[pc]] :
+                Long.valueOf(((long) op << 32) | prog.arg[pc]);
+        }
+
+        private static int refine(int[] classOf, int c, int[] split, int classes) {
+            int old = classOf[c];
+            if (split[old] < 0)
+                split[old] = classes++;
+            classOf[c] = split[old];
+            return classes;
+        }
+
+        /**
+         * Returns the states reached from pc without consuming a char, and
+         * records the pairs of them that are reached in two ways.
+         */
+        private BitSet closureOf(int pc, boolean atBegin) {
+            memo = new HashMap<>();
+            markCount = 0;
+            return closure(pc, atBegin, false);
+        }
+
+        private BitSet closure(int pc, boolean atBegin, boolean atEnd) {
+            work(1);
+            Integer key = null;
+            if (markCount == 0) {
+                key = atEnd ? ~pc : pc;
+                BitSet known = memo.get(key);
+                if (known != null)
+                    return known;
+            }
+            BitSet result;
+            switch (prog.op[pc]) {
+            case Pattern.Program.MATCH:
+                result = new BitSet();
+                result.set(n);
+                break;
+            case Pattern.Program.SPLIT:
+                BitSet first = closure(prog.out[pc], atBegin, atEnd);
+                BitSet second = closure(prog.arg[pc], atBegin, atEnd);
+                if (prog.reg[pc] == 0 && source >= 0)
+                    diverge(first, second);
+                work(1 + (n >> 6));
+                result = (BitSet) first.clone();
+                result.or(second);
+                break;
+            case Pattern.Program.BEGIN:
+                result = atBegin ? closure(prog.out[pc], true, atEnd) :
+                    new BitSet();
+                break;
+            case Pattern.Program.END:
+            case Pattern.Program.DOLLAR:
+            case Pattern.Program.UNIX_DOLLAR:
+                // Nothing is consumed after the end
+                result = closure(prog.out[pc], atBegin, true);
+                break;
+            case Pattern.Program.MARK:
+                int r = prog.arg[pc];
+                if (marked[r]) {
+                    result = closure(prog.out[pc], atBegin, atEnd);
+                } else {
+                    marked[r] = true;
+                    markCount++;
+                    result = closure(prog.out[pc], atBegin, atEnd);
+                    marked[r] = false;
+                    markCount--;
+                }
+                break;
+            case Pattern.Program.CHECK:
+                // An iteration that started in this closure is empty
+                if (!marked[prog.reg[pc]])
+                    result = closure(prog.out[pc], atBegin, atEnd);
+                else if (prog.arg[pc] >= 0)
+                    result = closure(prog.arg[pc], atBegin, atEnd);
+                else
+                    result = new BitSet();
+                break;
+            case Pattern.Program.SAVE:
+            case Pattern.Program.SAVE_MARK:
+                result = closure(prog.out[pc], atBegin, atEnd);
+                break;
+            default:
+                result = new BitSet();
+                if (!atEnd)
+                    result.set(stateOf[pc]);
+                break;
+            }
+            if (key != null)
+                memo.put(key, result);
+            return result;
+        }
+
+        private void diverge(BitSet first, BitSet second) {
+            work(first.cardinality() * second.cardinality());
+            for (int a = first.nextSetBit(0); a >= 0; a = first.nextSetBit(a + 1)) {
+                for (int b = second.nextSetBit(0); b >= 0; b = second.nextSetBit(b + 1))
+                    divergent.add(pairKey(source, a, b));
+            }
+        }
+
+        private long pairKey(int s, int a, int b) {
+            long size = n + 1;
+            return ((long) s * size + Math.min(a, b)) * size + Math.max(a, b);
+        }
+
+        /**
+         * Tells whether the state s reaches a and b in two ways that split
+         * at an instruction that is not possessive.
+         */
+        private boolean isDivergent(int s, int a, int b) {
+            return divergent.contains(pairKey(s, a, b));
+        }
+
+        /**
+         * Finds the strongly connected components of the consuming states,
+         * with Tarjan's algorithm, and the states that are on a cycle.
+         */
+        private void findComponents() {
+            int[] index = new int[n];
+            int[] low = new int[n];
+            boolean[] onStack = new boolean[n];
+            int[] stack = new int[n];
+            int[] callStack = new int[n];
+            int[] next = new int[n];
+            Arrays.fill(index, -1);
+            int counter = 0;
+            int top = 0;
+            int components = 0;
+            for (int root = 0; root < n; root++) {
+                if (index[root] >= 0)
+                    continue;
+                int depth = 0;
+                callStack[depth++] = root;
+                index[root] = low[root] = counter++;
+                stack[top++] = root;
+                onStack[root] = true;
+                next[root] = succ[root].nextSetBit(0);
+                while (depth > 0) {
+                    int v = callStack[depth - 1];
+                    int w = next[v];
+                    work(1);
+                    if (w >= 0 && w < n) {
+                        next[v] = succ[v].nextSetBit(w + 1);
+                        if (index[w] < 0) {
+                            index[w] = low[w] = counter++;
+                            stack[top++] = w;
+                            onStack[w] = true;
+                            next[w] = succ[w].nextSetBit(0);
+                            callStack[depth++] = w;
+                        } else if (onStack[w]) {
+                            low[v] = Math.min(low[v], index[w]);
+                        }
+                        continue;
+                    }
+                    depth--;
+                    if (depth > 0) {
+                        int parent = callStack[depth - 1];
+                        low[parent] = Math.min(low[parent], low[v]);
+                    }
+                    if (low[v] == index[v]) {
+                        int size = 0;
+                        int w2;
+                        do {
+                            w2 = stack[--top];
+                            onStack[w2] = false;
+                            component[w2] = components;
+                            size++;
+                        } while (w2 != v);
+                        cyclic[v] = size > 1 || succ[v].get(v);
+                        if (size > 1) {
+                            for (int k = top; k < top + size; k++)
+                                cyclic[stack[k]] = true;
+                        }
+                        components++;
+                    }
+                }
+            }
+        }
+
+        private void findSplits() {
+            int components = 0;
+            for (int s = 0; s < n; s++)
+                components = Math.max(components, component[s] + 1);
+            splitsWithin = new boolean[components];
+            splitsOut = new boolean[components];
+            long size = n + 1;
+            for (long key : divergent) {
+                int c = component[(int) (key / size / size)];
+                int a = (int) (key / size % size);
+                int b = (int) (key % size);
+                if (a == n || b == n)
+                    continue;
+                if (component[a] == c || component[b] == c) {
+                    splitsOut[c] = true;
+                    if (component[a] == component[b])
+                        splitsWithin[c] = true;
+                }
+            }
+        }
+
+        PatternAnalysis analyze() {
+            PatternAnalysis result = findExponential();
+            if (result == null)
+                result = findPolynomial();
+            return result != null ? result : LINEAR;
+        }
+
+        /**
+         * Looks for a state that a pump leads back to in two ways.
+         */
+        private PatternAnalysis findExponential() {
+            for (int c = 0; c < splitsWithin.length; c++) {
+                if (!splitsWithin[c])
+                    continue;
+                for (int q : ambiguousStates(c)) {
+                    int[] pump = search(new int[] { q, q, 0 },
+                                        new int[] { q, q, 1 },
+                                        new int[] { c, c });
+                    if (pump != null) {
+                        PatternAnalysis a = witness(Complexity.EXPONENTIAL, q, pump);
+                        if (a != null)
+                            return a;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the states of the component c that some pump leads back
+         * to in two ways. They are the states q whose pair (q, q) diverges
+         * on a step that stays in a strongly connected component of the
+         * pairs of states of c that the same string leads to.
+         */
+        private List<Integer> ambiguousStates(int c) {
+            // Find the pairs reachable from the cyclic states, with their
+            // steps in the order of the pairs
+            HashMap<Long, Integer> ids = new HashMap<>();
+            int[] pairs = new int[16];
+            int[] edgeStart = new int[9];
+            int[] edges = new int[16];
+            // The pairs (q, q) of the steps that diverge, and where they lead
+            List<int[]> diverging = new ArrayList<>();
+            int count = 0;
+            int edgeCount = 0;
+            for (int q = 0; q < n; q++) {
+                if (component[q] == c && cyclic[q]) {
+                    pairs = grow(pairs, 2 * count + 2);
+                    ids.put((long) q * n + q, count);
+                    pairs[2 * count] = pairs[2 * count + 1] = q;
+                    count++;
+                }
+            }
+            for (int v = 0; v < count; v++) {
+                int a = pairs[2 * v];
+                int b = pairs[2 * v + 1];
+                edgeStart = grow(edgeStart, v + 2);
+                edgeStart[v] = edgeCount;
+                if (!chars[a].intersects(chars[b]))
+                    continue;
+                for (int t = succ[a].nextSetBit(0); t >= 0 && t < n;
+                     t = succ[a].nextSetBit(t + 1)) {
+                    if (component[t] != c)
+                        continue;
+                    for (int u = succ[b].nextSetBit(0); u >= 0 && u < n;
+                         u = succ[b].nextSetBit(u + 1)) {
+                        if (component[u] != c)
+                            continue;
+                        work(1);
+                        long key = (long) t * n + u;
+                        Integer id = ids.get(key);
+                        if (id == null) {
+                            id = count++;
+                            ids.put(key, id);
+                            pairs = grow(pairs, 2 * count);
+                            pairs[2 * id] = t;
+                            pairs[2 * id + 1] = u;
+                        }
+                        if (a == b && isDivergent(a, t, u))
+                            diverging.add(new int[] { v, id });
+                        edges = grow(edges, edgeCount + 1);
+                        edges[edgeCount++] = id;
+                    }
+                }
+            }
+            edgeStart = grow(edgeStart, count + 1);
+            edgeStart[count] = edgeCount;
+            int[] scc = components(count, edgeStart, edges);
+            List<Integer> states = new ArrayList<>();
+            BitSet found = new BitSet();
+            for (int[] step : diverging) {
+                int q = pairs[2 * step[0]];
+                if (scc[step[0]] == scc[step[1]] && !found.get(q)) {
+                    found.set(q);
+                    states.add(q);
+                }
+            }
+            return states;
+        }
+
+        private static int[] grow(int[] array, int size) {
+            return size <= array.length ? array :
+                Arrays.copyOf(array, Math.max(size, 2 * array.length));
+        }
+
+        /**
+         * Numbers the strongly connected components of a graph given by the
+         * ranges of its edges of each node, with Tarjan's algorithm.
+         */
+        private int[] components(int count, int[] edgeStart, int[] edges) {
+            int[] index = new int[count];
+            int[] low = new int[count];
+            int[] result = new int[count];
+            boolean[] onStack = new boolean[count];
+            int[] stack = new int[count];
+            int[] callStack = new int[count];
+            int[] next = new int[count];
+            Arrays.fill(index, -1);
+            int counter = 0;
+            int top = 0;
+            int components = 0;
+            for (int root = 0; root < count; root++) {
+                if (index[root] >= 0)
+                    continue;
+                int depth = 0;
+                callStack[depth++] = root;
+                index[root] = low[root] = counter++;
+                stack[top++] = root;
+                onStack[root] = true;
+                next[root] = edgeStart[root];
+                while (depth > 0) {
+                    int v = callStack[depth - 1];
+                    work(1);
+                    if (next[v] < edgeStart[v + 1]) {
+                        int w = edges[next[v]++];
+                        if (index[w] < 0) {
+                            index[w] = low[w] = counter++;
+                            stack[top++] = w;
+                            onStack[w] = true;
+                            next[w] = edgeStart[w];
+                            callStack[depth++] = w;
+                        } else if (onStack[w]) {
+                            low[v] = Math.min(low[v], index[w]);
+                        }
+                        continue;
+                    }
+                    depth--;
+                    if (depth > 0) {
+                        int parent = callStack[depth - 1];
+                        low[parent] = Math.min(low[parent], low[v]);
+                    }
+                    if (low[v] == index[v]) {
+                        int w;
+                        do {
+                            w = stack[--top];
+                            onStack[w] = false;
+                            result[w] = components;
+                        } while (w != v);
+                        components++;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Looks for two states p and q that a pump leads from p to p, from p
+         * to q and from q to q.
+         */
+        private PatternAnalysis findPolynomial() {
+            for (int c = 0; c < splitsOut.length; c++) {
+                if (!splitsOut[c])
+                    continue;
+                for (long key : leavingPairs(c)) {
+                    int p = (int) (key / n);
+                    int q = (int) (key % n);
+                    int[] pump = search(new int[] { p, p, q, 0 },
+                                        new int[] { p, q, q, 1 },
+                                        new int[] { c, -1, component[q] });
+                    if (pump != null) {
+                        PatternAnalysis a = witness(Complexity.POLYNOMIAL, p, pump);
+                        if (a != null)
+                            return a;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the pairs (p, q) of a cyclic state p of the component c
+         * and a cyclic state q of another component that a string leads to
+         * from (p', p') for some state p' of c, while the first state stays
+         * in c. They are the only candidates for the pairs of states of a
+         * polynomial pump.
+         */
+        private List<Long> leavingPairs(int c) {
+            HashSet<Long> seen = new HashSet<>();
+            ArrayDeque<Long> queue = new ArrayDeque<>();
+            List<Long> result = new ArrayList<>();
+            for (int q = 0; q < n; q++) {
+                if (component[q] == c && cyclic[q]) {
+                    long key = (long) q * n + q;
+                    seen.add(key);
+                    queue.add(key);
+                }
+            }
+            while (!queue.isEmpty()) {
+                long key = queue.poll();
+                int a = (int) (key / n);
+                int b = (int) (key % n);
+                if (!chars[a].intersects(chars[b]))
+                    continue;
+                for (int t = succ[a].nextSetBit(0); t >= 0 && t < n;
+                     t = succ[a].nextSetBit(t + 1)) {
+                    if (component[t] != c)
+                        continue;
+                    for (int u = succ[b].nextSetBit(0); u >= 0 && u < n;
+                         u = succ[b].nextSetBit(u + 1)) {
+                        work(1);
+                        long next = (long) t * n + u;
+                        if (!seen.add(next))
+                            continue;
+                        queue.add(next);
+                        if (cyclic[u] && component[u] != c)
+                            result.add(next);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Searches the product of the automaton with itself, whose nodes
+         * are tuples of states followed by whether the first two ways have
+         * diverged, for the shortest string that leads from start to
+         * target. The states of the tuple that have a component in
+         * components stay in it. Returns the classes of the chars of the
+         * string, or null if there is none.
+         */
+        private int[] search(int[] start, int[] target, int[] components) {
+            int width = start.length - 1;
+            Map<List<Integer>, List<Integer>> parents = new HashMap<>();
+            Map<List<Integer>, Integer> labels = new HashMap<>();
+            List<Integer> from = asList(start);
+            List<Integer> to = asList(target);
+            parents.put(from, null);
+            ArrayDeque<List<Integer>> queue = new ArrayDeque<>();
+            queue.add(from);
+            while (!queue.isEmpty()) {
+                List<Integer> node = queue.poll();
+                BitSet common = (BitSet) chars[node.get(0)].clone();
+                for (int k = 1; k < width; k++)
+                    common.and(chars[node.get(k)]);
+                int label = common.nextSetBit(0);
+                if (label < 0)
+                    continue;
+                List<List<Integer>> nexts = new ArrayList<>();
+                nexts.add(new ArrayList<Integer>());
+                for (int k = 0; k < width; k++) {
+                    BitSet targets = succ[node.get(k)];
+                    List<List<Integer>> extended = new ArrayList<>();
+                    for (int t = targets.nextSetBit(0); t >= 0 && t < n;
+                         t = targets.nextSetBit(t + 1)) {
+                        if (components[k] >= 0 && component[t] != components[k])
+                            continue;
+                        for (List<Integer> prefix : nexts) {
+                            List<Integer> tuple = new ArrayList<>(prefix);
+                            tuple.add(t);
+                            extended.add(tuple);
+                        }
+                    }
+                    nexts = extended;
+                    work(1 + nexts.size());
+                }
+                int a = node.get(0);
+                boolean diverged = node.get(width) == 1;
+                for (List<Integer> tuple : nexts) {
+                    boolean d = diverged ||
+                        (a == node.get(1) && isDivergent(a, tuple.get(0), tuple.get(1)));
+                    tuple.add(d ? 1 : 0);
+                    if (parents.containsKey(tuple))
+                        continue;
+                    parents.put(tuple, node);
+                    labels.put(tuple, label);
+                    if (tuple.equals(to))
+                        return path(parents, labels, tuple);
+                    queue.add(tuple);
+                }
+            }
+            return null;
+        }
+
+        private static List<Integer> asList(int[] values) {
+            List<Integer> list = new ArrayList<>(values.length);
+            for (int v : values)
+                list.add(v);
+            return list;
+        }
+
+        private static int[] path(Map<List<Integer>, List<Integer>> parents,
+                                  Map<List<Integer>, Integer> labels,
+                                  List<Integer> node) {
+            List<Integer> reversed = new ArrayList<>();
+            for (List<Integer> v = node; parents.get(v) != null; v = parents.get(v))
+                reversed.add(labels.get(v));
+            int[] result = new int[reversed.size()];
+            for (int k = 0; k < result.length; k++)
+                result[k] = reversed.get(result.length - 1 - k);
+            return result;
+        }
+
+        /**
+         * Completes a pump from the state q into a witness, with a prefix
+         * that leads to q and a suffix that makes the match fail, or returns
+         * null if no suffix does.
+         */
+        private PatternAnalysis witness(Complexity complexity, int q, int[] pump) {
+            int[] prefix = prefixTo(q);
+            if (prefix == null)
+                return null;
+            BitSet states = run(run(run(initial, prefix), pump), pump);
+            int[] suffix = failingSuffix(states);
+            if (suffix == null)
+                return null;
+            // The suffix must fail after any number of pumps
+            BitSet pumped = run(initial, prefix);
+            for (int k = 0; k < 4; k++) {
+                pumped = run(pumped, pump);
+                if (run(pumped, suffix).get(n))
+                    return null;
+            }
+            return new PatternAnalysis(complexity, string(prefix),
+                                       string(pump), string(suffix));
+        }
+
+        /**
+         * Returns the shortest string that leads from the start to the
+         * state q, or null if there is none.
+         */
+        private int[] prefixTo(int q) {
+            int[] parent = new int[n];
+            int[] label = new int[n];
+            Arrays.fill(parent, -2);
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int s = initial.nextSetBit(0); s >= 0 && s < n;
+                 s = initial.nextSetBit(s + 1)) {
+                parent[s] = -1;
+                queue.add(s);
+            }
+            while (!queue.isEmpty() && parent[q] == -2) {
+                int s = queue.poll();
+                int c = chars[s].nextSetBit(0);
+                if (c < 0)
+                    continue;
+                for (int t = succ[s].nextSetBit(0); t >= 0 && t < n;
+                     t = succ[s].nextSetBit(t + 1)) {
+                    work(1);
+                    if (parent[t] == -2) {
+                        parent[t] = s;
+                        label[t] = c;
+                        queue.add(t);
+                    }
+                }
+            }
+            if (parent[q] == -2)
+                return null;
+            List<Integer> reversed = new ArrayList<>();
+            for (int s = q; parent[s] >= 0; s = parent[s])
+                reversed.add(label[s]);
+            int[] result = new int[reversed.size()];
+            for (int k = 0; k < result.length; k++)
+                result[k] = reversed.get(result.length - 1 - k);
+            return result;
+        }
+
+        /**
+         * Returns the shortest string that leads from the set of states to
+         * a set without the MATCH state, or null if none is found.
+         */
+        private int[] failingSuffix(BitSet states) {
+            Map<BitSet, BitSet> parents = new HashMap<>();
+            Map<BitSet, Integer> labels = new HashMap<>();
+            ArrayDeque<BitSet> queue = new ArrayDeque<>();
+            parents.put(states, null);
+            queue.add(states);
+            while (!queue.isEmpty()) {
+                BitSet set = queue.poll();
+                if (!set.get(n)) {
+                    List<Integer> reversed = new ArrayList<>();
+                    for (BitSet v = set; parents.get(v) != null; v = parents.get(v))
+                        reversed.add(labels.get(v));
+                    int[] result = new int[reversed.size()];
+                    for (int k = 0; k < result.length; k++)
+                        result[k] = reversed.get(result.length - 1 - k);
+                    return result;
+                }
+                for (int c = 0; c < reps.length; c++) {
+                    BitSet next = step(set, c);
+                    if (parents.containsKey(next))
+                        continue;
+                    if (parents.size() >= MAX_SUFFIX_SETS)
+                        return null;
+                    parents.put(next, set);
+                    labels.put(next, c);
+                    queue.add(next);
+                }
+            }
+            return null;
+        }
+
+        private BitSet run(BitSet states, int[] string) {
+            for (int c : string)
+                states = step(states, c);
+            return states;
+        }
+
+        private BitSet step(BitSet states, int c) {
+            BitSet next = new BitSet();
+            for (int s = states.nextSetBit(0); s >= 0 && s < n;
+                 s = states.nextSetBit(s + 1)) {
+                work(1);
+                if (chars[s].get(c))
+                    next.or(succ[s]);
+            }
+            return next;
+        }
+
+        private String string(int[] classes) {
+            StringBuilder sb = new StringBuilder();
+            for (int c : classes)
+                sb.appendCodePoint(reps[c]);
+            return sb.toString();
+        }
+    }
+}
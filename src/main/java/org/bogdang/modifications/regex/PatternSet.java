@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bogdang.modifications.regex;
+
+import java.util.Arrays;
+
+/**
+ * A set of patterns that are searched for in an input sequence together,
+ * to tell which of them have a match.
+ *
+ * <p> The patterns that only use the constructs supported by
+ * {@link Pattern#LINEAR_TIME} are merged into a single automaton that
+ * scans the input once for all of them. The other patterns are searched
+ * for one at a time, but only if the input contains a literal that each of
+ * their matches must contain, when they have one; those literals are all
+ * looked for in a single scan too.
+ *
+ * <p> Instances of this class are immutable and are safe for use by
+ * multiple concurrent threads.
+ *
+ * @since 0.2.5
+ */
+public final class PatternSet {
+
+    private final Pattern[] patterns;
+
+    /** The automaton of the merged patterns, or null if there are none */
+    private final Pattern.LazyDfa dfa;
+
+    /** The index of each merged pattern, in the order of the automaton */
+    private final int[] merged;
+
+    /** Whether each pattern is one of the merged patterns */
+    private final boolean[] isMerged;
+
+    /** The literals every match of each pattern contains, or null */
+    private final Pattern.AhoCorasick prefilter;
+
+    /** The pattern of each literal of the prefilter */
+    private final int[] literalPatterns;
+
+    /** Whether each pattern has a literal in the prefilter */
+    private final boolean[] hasLiteral;
+
+    private PatternSet(Pattern[] patterns) {
+        this.patterns = patterns;
+        int n = patterns.length;
+        Pattern.Program[] progs = new Pattern.Program[n];
+        int[] indexes = new int[n];
+        isMerged = new boolean[n];
+        int count = 0;
+        for (int k = 0; k < n; k++) {
+            Pattern.Program prog = patterns[k].program();
+            if (prog != null) {
+                progs[count] = prog;
+                indexes[count++] = k;
+                isMerged[k] = true;
+            }
+        }
+        merged = Arrays.copyOf(indexes, count);
+        dfa = count == 0 ? null : new Pattern.LazyDfa(
+            Pattern.Program.union(Arrays.copyOf(progs, count)), false, true);
+
+        String[] literals = new String[n];
+        int[] owners = new int[n];
+        hasLiteral = new boolean[n];
+        int literalCount = 0;
+        for (int k = 0; k < n; k++) {
+            String literal = patterns[k].requiredLiteral();
+            if (literal != null) {
+                literals[literalCount] = literal;
+                owners[literalCount++] = k;
+                hasLiteral[k] = true;
+            }
+        }
+        literalPatterns = Arrays.copyOf(owners, literalCount);
+        prefilter = literalCount == 0 ? null :
+            new Pattern.AhoCorasick(Arrays.copyOf(literals, literalCount));
+    }
+
+    /**
+     * Creates a set of the given patterns. The patterns are numbered in
+     * the order they are given, from zero.
+     *
+     * @param  patterns
+     *         The patterns of the set
+     *
+     * @return  The set of patterns
+     */
+    public static PatternSet of(Pattern... patterns) {
+        for (Pattern p : patterns) {
+            if (p == null)
+                throw new NullPointerException();
+        }
+        return new PatternSet(patterns.clone());
+    }
+
+    /**
+     * Returns the number of patterns in this set.
+     *
+     * @return  The number of patterns
+     */
+    public int size() {
+        return patterns.length;
+    }
+
+    /**
+     * Returns the pattern with the given number.
+     *
+     * @param  index
+     *         The number of the pattern
+     *
+     * @return  The pattern
+     */
+    public Pattern pattern(int index) {
+        return patterns[index];
+    }
+
+    /**
+     * Tells which patterns of this set have a match in the given input
+     * sequence, as {@link Pattern#find(CharSequence)} would.
+     *
+     * @param  input
+     *         The character sequence to be searched
+     *
+     * @return  The numbers of the patterns that have a match, in increasing
+     *          order
+     */
+    public int[] find(CharSequence input) {
+        int n = patterns.length;
+        int length = input.length();
+        boolean[] matched = new boolean[n];
+        boolean mergedDone = false;
+        if (dfa != null) {
+            boolean[] found = new boolean[merged.length];
+            if (dfa.matchAll(input, 0, length, 0, length, found)
+                != Pattern.LazyDfa.UNKNOWN) {
+                for (int j = 0; j < merged.length; j++)
+                    matched[merged[j]] = found[j];
+                mergedDone = true;
+            }
+        }
+
+        // Search for the other patterns one at a time, skipping those
+        // whose literal is not in the input
+        boolean[] present = null;
+        int count = 0;
+        for (int k = 0; k < n; k++) {
+            if (mergedDone && isMerged[k]) {
+                if (matched[k])
+                    count++;
+                continue;
+            }
+            if (hasLiteral[k]) {
+                if (present == null)
+                    present = literalsIn(input);
+                if (!present[k])
+                    continue;
+            }
+            if (patterns[k].find(input)) {
+                matched[k] = true;
+                count++;
+            }
+        }
+
+        int[] result = new int[count];
+        count = 0;
+        for (int k = 0; k < n; k++) {
+            if (matched[k])
+                result[count++] = k;
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the literal of each pattern occurs in the input.
+     */
+    private boolean[] literalsIn(CharSequence input) {
+        boolean[] found = new boolean[literalPatterns.length];
+        prefilter.findAll(input, 0, input.length(), found);
+        boolean[] present = new boolean[patterns.length];
+        for (int j = 0; j < found.length; j++) {
+            if (found[j])
+                present[literalPatterns[j]] = true;
+        }
+        return present;
+    }
+}
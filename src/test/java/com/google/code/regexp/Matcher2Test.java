@@ -15,6 +15,7 @@
  */
 package com.google.code.regexp;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import org.bogdang.modifications.regex.PatternSyntaxException;
@@ -715,4 +716,288 @@ public class Matcher2Test {
         assertTrue(m.find());
         assertEquals("123", m.group("named"));
     }
+
+    @Test
+    public void testGroupHandle() {
+        GroupHandle h = P.groupHandle("named");
+        Matcher2 m = P.matcher("xabcfoo");
+        assertTrue(m.find());
+        assertEquals(3, h.group());
+        assertEquals("foo", m.group(h));
+        assertEquals(4, m.start(h));
+        assertEquals(7, m.end(h));
+    }
+
+    @Test
+    public void testGroupHandleOfDuplicateName() {
+        Pattern2 p = Pattern2.compile("(?<x>a)-(?<x>b)");
+        Matcher2 m = p.matcher("a-b");
+        assertTrue(m.matches());
+        assertEquals("a", m.group(p.groupHandle("x")));
+        assertEquals("b", m.group(p.groupHandle("x", 1)));
+    }
+
+    @Test
+    public void testGroupHandleOfUnknownName() {
+        thrown.expect(IndexOutOfBoundsException.class);
+        P.groupHandle("nope");
+    }
+
+    @Test
+    public void testGroupHandleOfOtherPattern() {
+        GroupHandle h = Pattern2.compile("(?<named>x)").groupHandle("named");
+        Matcher2 m = P.matcher("abcfoo");
+        assertTrue(m.find());
+        thrown.expect(IllegalArgumentException.class);
+        m.group(h);
+    }
+
+    @Test
+    public void testNamedGroupsUsesCurrentMatch() {
+        Pattern2 p = Pattern2.compile("(?<key>\\w+)=(?<value>\\w+)");
+        Matcher2 m = p.matcher("a=1 b=2");
+        assertTrue(m.find());
+        assertTrue(m.find());
+        Map<String, String> map = m.namedGroups();
+        assertEquals("b", map.get("key"));
+        assertEquals("2", map.get("value"));
+        assertEquals(7, m.end());
+    }
+
+    @Test
+    public void testNamedGroupsAfterFailedFindGetsEmptyMap() {
+        Matcher2 m = P.matcher("abcfoo");
+        assertTrue(m.find());
+        assertFalse(m.find());
+        assertTrue(m.namedGroups().isEmpty());
+    }
+
+    @Test
+    public void testNamedGroupsAfterRegionFindsAgain() {
+        Pattern2 p = Pattern2.compile("(?<key>\\w+)=(?<value>\\w+)");
+        Matcher2 m = p.matcher("a=1 b=2");
+        assertTrue(m.find());
+        assertTrue(m.find());
+        m.region(0, 3);
+        Map<String, String> map = m.namedGroups();
+        assertEquals("a", map.get("key"));
+        assertEquals("1", map.get("value"));
+    }
+
+    @Test
+    public void testNamedGroupsViewFollowsMatcher() {
+        Pattern2 p = Pattern2.compile("(?<key>\\w+)=(?<value>\\w+)");
+        Matcher2 m = p.matcher("a=1 b=2");
+        Map<String, String> view = m.namedGroupsView();
+        assertTrue(view.isEmpty());
+        assertTrue(m.find());
+        assertEquals("a", view.get("key"));
+        assertTrue(m.find());
+        assertEquals("b", view.get("key"));
+        assertEquals(2, view.size());
+        assertEquals(m.namedGroups(), view);
+        assertNull(view.get("nope"));
+        assertSame(view, m.namedGroupsView());
+        assertFalse(m.find());
+        assertTrue(view.isEmpty());
+    }
+
+    @Test
+    public void testGroupView() {
+        Matcher2 m = P.matcher(INPUT);
+        assertTrue(m.find());
+        CharSequence view = m.groupView("named");
+        assertEquals("foo", view.toString());
+        assertEquals(3, view.length());
+        assertEquals('o', view.charAt(2));
+        assertEquals("oo", view.subSequence(1, 3).toString());
+        assertEquals("a", m.groupView(1).toString());
+    }
+
+    @Test
+    public void testGroupViewOfUnmatchedGroupIsNull() {
+        Pattern2 p = Pattern2.compile("(?<a>x)|(?<b>y)");
+        Matcher2 m = p.matcher("y");
+        assertTrue(m.matches());
+        assertNull(m.groupView("a"));
+        assertEquals(-1L, m.groupSpan("a"));
+    }
+
+    @Test
+    public void testGroupSpan() {
+        Matcher2 m = P.matcher(INPUT);
+        assertTrue(m.find());
+        long span = m.groupSpan("named");
+        assertEquals(m.start("named"), Matcher2.spanStart(span));
+        assertEquals(m.end("named"), Matcher2.spanEnd(span));
+        span = m.groupSpan(P.groupHandle("named"));
+        assertEquals(12, Matcher2.spanEnd(span));
+    }
+
+    @Test
+    public void testAppendGroup() {
+        Matcher2 m = P.matcher(INPUT);
+        StringBuilder sb = new StringBuilder("<");
+        while (m.find()) {
+            m.appendGroup(sb, "named").append(',');
+            m.appendGroup(sb, 0).append(';');
+        }
+        assertEquals("<foo,abcfoo;foo,abcfoo;", sb.toString());
+    }
+
+    @Test
+    public void testReplaceAllWithCompiledReplacement() {
+        Replacement r = P.compileReplacement("[${named}|$1$2\\$]");
+        assertEquals("Lorem [foo|ab$] ipsum [foo|ab$]", M1.replaceAll(r));
+        assertEquals("Lorem [foo|ab$] ipsum abcfoo", M2.replaceFirst(r));
+    }
+
+    @Test
+    public void testReplaceAllWithCompiledReplacementAndNoMatch() {
+        Replacement r = P.compileReplacement("x");
+        assertEquals("nothing here", P.matcher("nothing here").replaceAll(r));
+    }
+
+    @Test
+    public void testReplaceWithOutOfBoundsGroupAndNoMatch() {
+        Pattern2 p = Pattern2.compile("(a)");
+        assertEquals("xyz", p.matcher("xyz").replaceAll("$5"));
+        assertEquals("xyz", p.matcher("xyz").replaceFirst("$5"));
+    }
+
+    @Test
+    public void testReplaceWithOutOfBoundsGroupThrowsOnMatch() {
+        thrown.expect(IndexOutOfBoundsException.class);
+        thrown.expectMessage("No group 5");
+        Pattern2.compile("(a)").matcher("xay").replaceAll("$5");
+    }
+
+    @Test
+    public void testCompiledReplacementWithOutOfBoundsGroup() {
+        thrown.expect(IndexOutOfBoundsException.class);
+        Pattern2.compile("(a)").compileReplacement("$5");
+    }
+
+    @Test
+    public void testCompiledReplacementTakesLargestLegalGroupNumber() {
+        Pattern2 p = Pattern2.compile("(a)(b)(c)(d)(e)(f)(g)(h)(i)(j)(k)");
+        assertEquals("k-j", p.matcher("abcdefghijk").replaceAll("$11-$10"));
+        assertEquals("b9", Pattern2.compile("(a)(b)").matcher("ab").replaceAll("$29"));
+    }
+
+    @Test
+    public void testAppendReplacementWithCompiledReplacement() {
+        Replacement r = P.compileReplacement("<${named}>");
+        StringBuilder sb = new StringBuilder();
+        while (M1.find()) {
+            M1.appendReplacement(sb, r);
+        }
+        M1.appendTail(sb);
+        assertEquals("Lorem <foo> ipsum <foo>", sb.toString());
+    }
+
+    @Test
+    public void testCompiledReplacementOfOtherPattern() {
+        Replacement r = Pattern2.compile("(?<named>x)").compileReplacement("${named}");
+        thrown.expect(IllegalArgumentException.class);
+        M1.replaceAll(r);
+    }
+
+    @Test
+    public void testReplaceAllWithReplacer() {
+        Pattern2 p = Pattern2.compile("(?<user>\\w+)@(?<host>\\w+)");
+        final GroupHandle host = p.groupHandle("host");
+        String s = p.matcher("mail bob@example or al@test!").replaceAll(new Replacer() {
+            public CharSequence replace(MatchView match) {
+                return "***@" + match.group(host).toUpperCase();
+            }
+        });
+        assertEquals("mail ***@EXAMPLE or ***@TEST!", s);
+    }
+
+    @Test
+    public void testReplaceAllWithReplacerDoesNotExpandReferences() {
+        String s = P.matcher("abcfoo").replaceAll(new Replacer() {
+            public CharSequence replace(MatchView match) {
+                return "$1\\";
+            }
+        });
+        assertEquals("$1\\", s);
+    }
+
+    @Test
+    public void testReplaceFirstWithReplacerReturningGroupView() {
+        String s = M1.replaceFirst(new Replacer() {
+            public CharSequence replace(MatchView match) {
+                return match.groupView("named");
+            }
+        });
+        assertEquals("Lorem foo ipsum abcfoo", s);
+    }
+
+    @Test
+    public void testReplacerGetsSameReadOnlyView() {
+        final List<MatchView> views = new ArrayList<MatchView>();
+        M1.replaceAll(new Replacer() {
+            public CharSequence replace(MatchView match) {
+                assertFalse(match instanceof Matcher2);
+                views.add(match);
+                return "";
+            }
+        });
+        assertEquals(2, views.size());
+        assertSame(views.get(0), views.get(1));
+    }
+
+    @Test
+    public void testMatchesRecordWithNamedGroups() {
+        Pattern2 p = Pattern2.compile("(?<date>\\d{4}-\\d\\d-\\d\\d) (?<lvl>[A-Z]+) (?<msg>.*)");
+        Matcher2 m = p.matcher("2013-01-02 WARN disk almost full");
+        assertTrue(m.matches());
+        assertEquals("2013-01-02", m.group("date"));
+        assertEquals("WARN", m.group("lvl"));
+        assertEquals("disk almost full", m.group("msg"));
+        assertTrue(m.hitEnd());
+
+        m = p.matcher("2013-01-02 warn disk almost full");
+        assertFalse(m.matches());
+        assertFalse(m.hitEnd());
+
+        m = p.matcher("2013-01-02 WARN");
+        assertFalse(m.matches());
+        assertTrue(m.hitEnd());
+    }
+
+    @Test
+    public void testMatchesKeepsLastIterationOfGroups() {
+        Matcher2 m = Pattern2.compile("(?:(?<a>a)|(?<b>b))*c").matcher("abac");
+        assertTrue(m.matches());
+        assertEquals(2, m.start("a"));
+        assertEquals(1, m.start("b"));
+
+        m = Pattern2.compile("(?<x>x)?(?<y>y)").matcher("y");
+        assertTrue(m.matches());
+        assertNull(m.group("x"));
+        assertEquals("y", m.group("y"));
+    }
+
+    @Test
+    public void testMatchesAmbiguousPatternBacktracks() {
+        Matcher2 m = Pattern2.compile("(?<a>a|ab)(?<c>c|bcd)(?<d>d*)").matcher("abcd");
+        assertTrue(m.matches());
+        assertEquals("a", m.group("a"));
+        assertEquals("bcd", m.group("c"));
+        assertEquals("", m.group("d"));
+    }
+
+    @Test
+    public void testMatchesRegion() {
+        Matcher2 m = Pattern2.compile("^(?<k>[a-z]+)=(?<v>\\d+)$").matcher("x key=42 y");
+        m.region(2, 8);
+        assertTrue(m.matches());
+        assertEquals("key", m.group("k"));
+        assertEquals("42", m.group("v"));
+        m.region(2, 9);
+        assertFalse(m.matches());
+    }
 }
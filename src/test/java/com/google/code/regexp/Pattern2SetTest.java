@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.regexp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link Pattern2Set}
+ */
+public class Pattern2SetTest {
+
+    private static Pattern2Set logPatterns() {
+        Map<String, String> regexes = new LinkedHashMap<String, String>();
+        regexes.put("timeout", "(?<what>\\w+) timed out after (?<ms>\\d+)ms");
+        regexes.put("error", "^\\S+ ERROR (?<msg>.*)");
+        regexes.put("login", "user (?<user>\\w+) logged (?<dir>in|out)");
+        regexes.put("repeat", "(?<word>\\b\\w+) \\k<word>\\b");
+        return Pattern2Set.compile(regexes);
+    }
+
+    @Test
+    public void testFindReportsMatchingPatternsInOrder() {
+        Pattern2Set set = logPatterns();
+        assertEquals(Arrays.asList("timeout", "error"),
+                set.find("10:00 ERROR request timed out after 30ms"));
+        assertEquals(Arrays.asList("login"), set.find("10:00 INFO user bob logged in"));
+        assertEquals(Collections.<String>emptyList(), set.find("10:00 INFO all is well"));
+    }
+
+    @Test
+    public void testFindWithPatternsThatAreNotMerged() {
+        Pattern2Set set = logPatterns();
+        assertEquals(Arrays.asList("repeat"), set.find("10:00 INFO the the end"));
+        assertEquals(Arrays.asList("error", "repeat"), set.find("10:00 ERROR no no"));
+    }
+
+    @Test
+    public void testFindMatchersExtractsNamedGroups() {
+        Map<String, Matcher2> matchers =
+            logPatterns().findMatchers("10:00 ERROR cache timed out after 250ms");
+        assertEquals(Arrays.asList("timeout", "error"), new ArrayList<String>(matchers.keySet()));
+        assertEquals("cache", matchers.get("timeout").group("what"));
+        assertEquals("250", matchers.get("timeout").group("ms"));
+        assertEquals("cache timed out after 250ms", matchers.get("error").group("msg"));
+    }
+
+    @Test
+    public void testFindAgreesWithEachPattern() {
+        Map<String, String> regexes = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 200; i++) {
+            regexes.put("p" + i, "(?<k>[a-z]+" + i + ")=(?<v>\\d+)(?: [a-z]+)*;");
+        }
+        Pattern2Set set = Pattern2Set.compile(regexes, Pattern2.CASE_INSENSITIVE);
+        String[] inputs = {
+            "key12=34;", "x KEY7=1 a b; key199=2;", "key5=;", "", "k1=1 é;",
+        };
+        for (String input : inputs) {
+            List<String> expected = new ArrayList<String>();
+            for (String name : set.names()) {
+                if (set.pattern(name).matcher(input).find()) {
+                    expected.add(name);
+                }
+            }
+            assertEquals(input, expected, set.find(input));
+        }
+    }
+
+    @Test
+    public void testSetOfCompiledPatterns() {
+        Map<String, Pattern2> patterns = new LinkedHashMap<String, Pattern2>();
+        patterns.put("digits", Pattern2.compile("(?<n>\\d+)"));
+        patterns.put("upper", Pattern2.compile("[A-Z]{2}"));
+        Pattern2Set set = Pattern2Set.of(patterns);
+        assertEquals(2, set.size());
+        assertEquals(Arrays.asList("digits", "upper"), set.names());
+        assertTrue(set.pattern("digits") == patterns.get("digits"));
+        assertEquals(Arrays.asList("digits"), set.find("a1b"));
+        assertEquals(Arrays.asList("upper"), set.find("aBCd"));
+    }
+}
@@ -18,11 +18,18 @@ package com.google.code.regexp;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.bogdang.modifications.regex.MatchBudgetExceededException;
+import org.bogdang.modifications.regex.PatternAnalysis;
 import org.bogdang.modifications.regex.PatternSyntaxException;
 
 import org.junit.Rule;
@@ -436,6 +443,51 @@ public class Pattern2Test {
         assertEquals("\\ \\\\(abc)", p.standardPattern());
     }
 
+    @Test
+    public void testIgnoresNamedGroupInsideCharClass() {
+        final String PATT = "[(?<x>)\\]](?<named>abc)";
+        Pattern2 p = Pattern2.compile(PATT);
+        assertEquals("[(?<x>)\\]](abc)", p.standardPattern());
+        assertEquals(1, p.groupNames().size());
+        assertEquals(0, p.indexOf("named"));
+    }
+
+    @Test
+    public void testCountsGroupAfterLiteralCloseBracketInCharClass() {
+        Pattern2 p = Pattern2.compile("[]()](a)(?<named>b)");
+        assertEquals(1, p.indexOf("named"));
+    }
+
+    @Test
+    public void testCompileWithForwardBackref() {
+        Pattern2 p = Pattern2.compile("(?:\\k<foo>y|(?<foo>x))+");
+        assertEquals("(?:\\1y|(x))+", p.standardPattern());
+    }
+
+    @Test( timeout = 2000 )
+    public void testExtractGroupInfoFromLargePattern() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            s.append("(?<g").append(i).append(">[a-z(]+)\\(");
+        }
+        Map<String,List<GroupInfo> > map = Pattern2.extractGroupInfo(s.toString());
+        assertEquals(20000, map.size());
+        assertEquals(19999, map.get("g19999").get(0).groupIndex());
+    }
+
+    @Test
+    public void testCompileWithManyNamedGroupsAndBackref() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            s.append("(?<g").append(i).append(">[a-z(]+)\\(");
+        }
+        s.append("\\k<g0>");
+        Pattern2 p = Pattern2.compile(s.toString());
+        assertEquals(200, p.groupNames().size());
+        assertEquals(199, p.indexOf("g199"));
+        assertTrue(p.standardPattern().endsWith("\\(\\1"));
+    }
+
     @Test
     public void testCompileRegexWithFlags() {
         final String PATT = "(?<name>abc) # comment 1";
@@ -558,4 +610,679 @@ public class Pattern2Test {
         Pattern2 p = Pattern2.compile("(?<foo>xyz)(?<" + GROUP_NAME + ">\\d+)abc\\k<" + GROUP_NAME + ">");
         assertEquals("(xyz)(\\d+)abc\\2", p.standardPattern());
     }
+
+    @Test
+    public void testDirectNamedGroupsHaveSameGroupInfo() {
+        String regex = "(?<foo>a)(b)(?<bar>c(?<foo>d))\\Q(?<x>\\E(?<baz>e)";
+        Pattern2 rewritten = Pattern2.compile(regex);
+        Pattern2 direct = Pattern2.compile(regex, Pattern2.DIRECT_NAMED_GROUPS);
+        assertEquals(rewritten.groupInfo(), direct.groupInfo());
+        assertEquals(regex, direct.standardPattern());
+    }
+
+    @Test
+    public void testDirectNamedGroupsMatch() {
+        Pattern2 p = Pattern2.compile("(?<first name>\\w+) (?<last>\\w+)", Pattern2.DIRECT_NAMED_GROUPS);
+        Matcher2 m = p.matcher("John Doe");
+        assertTrue(m.matches());
+        assertEquals("John", m.group("first name"));
+        assertEquals("Doe", m.group("last"));
+    }
+
+    @Test
+    public void testDirectNamedGroupsForwardBackref() {
+        Pattern2 p = Pattern2.compile("(?:\\k<x>b|(?<x>a))+", Pattern2.DIRECT_NAMED_GROUPS);
+        assertTrue(p.matcher("aab").matches());
+        assertFalse(p.matcher("bab").matches());
+    }
+
+    @Test
+    public void testDirectNamedGroupsBackrefToDuplicateName() {
+        Pattern2 p = Pattern2.compile("(?<n>a)(?<n>b)\\k<n>", Pattern2.DIRECT_NAMED_GROUPS);
+        assertTrue(p.matcher("aba").matches());
+        assertEquals(2, p.groupInfo().get("n").size());
+        assertEquals(1, p.indexOf("n", 1));
+    }
+
+    @Test
+    public void testDirectNamedGroupsIgnoredWithCanonEq() {
+        Pattern2 p = Pattern2.compile("(?<foo>a)\\k<foo>", Pattern2.DIRECT_NAMED_GROUPS | Pattern2.CANON_EQ);
+        assertEquals("(a)\\1", p.standardPattern());
+        assertTrue(p.matcher("aa").matches());
+    }
+
+    @Test
+    public void testSplitIteratorMatchesSplit() {
+        String[] regexes = { ",", ",*", "^", "(?=b)", "\\s+", "x" };
+        String[] inputs = { "", ",", ",,", "a,b", "a,,b,,", ",a", "abcb", " a  b ", "bab" };
+        int[] limits = { -1, 0, 1, 2, 3 };
+        for (String regex : regexes) {
+            Pattern2 p = Pattern2.compile(regex);
+            for (String input : inputs) {
+                for (int limit : limits) {
+                    String[] expected = p.split(input, limit);
+                    List<String> actual = new ArrayList<String>();
+                    Iterator<CharSequence> it = p.splitIterator(input, limit);
+                    while (it.hasNext()) {
+                        actual.add(it.next().toString());
+                    }
+                    String msg = regex + " / \"" + input + "\" / " + limit;
+                    assertArrayEquals(msg, expected, actual.toArray(new String[0]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSplitIntoConsumer() {
+        final StringBuilder sb = new StringBuilder();
+        Pattern2.compile(",").split("ab,,c,,", 0, new SplitConsumer() {
+            public void accept(int start, int end) {
+                sb.append(start).append('-').append(end).append(' ');
+            }
+        });
+        assertEquals("0-2 3-3 4-5 ", sb.toString());
+    }
+
+    @Test
+    public void testLiteralSplitMatchesRegexSplit() {
+        // each literal pattern is paired with an equivalent non-literal one
+        String[][] pairs = { { ",", "[,]" }, { "\\t", "[\\t]" }, { "\\|", "[|]" },
+                { "ab", "a(?:b)" }, { "abab", "a(?:bab)" } };
+        String[] inputs = { "", ",", ",,", "a,b", ",a,,b,,", "x\ty\t", "|a||",
+                "ab", "abab", "ababab", "xabyababz", "cab,ab\t|" };
+        int[] limits = { -1, 0, 1, 2, 3 };
+        for (String[] pair : pairs) {
+            Pattern2 literal = Pattern2.compile(pair[0]);
+            Pattern2 regex = Pattern2.compile(pair[1]);
+            for (String input : inputs) {
+                for (int limit : limits) {
+                    assertArrayEquals(pair[0] + " / \"" + input + "\" / " + limit,
+                            regex.split(input, limit), literal.split(input, limit));
+                }
+            }
+        }
+        assertArrayEquals(new String[]{"a", "b"},
+                Pattern2.compile("a.b", Pattern2.LITERAL).split("aa.bb"));
+    }
+
+    @Test
+    public void testFindWithRequiredLiteral() {
+        Pattern2 p = Pattern2.compile("(?<method>[A-Z]+) \\S+ HTTP/1\\.1\" (?<status>\\d+)");
+        String line = "GET /a HTTP/1.0\" 200 POST /b HTTP/1.1\" 404 PUT /c HTTP/1.1\"";
+        Matcher2 m = p.matcher(line);
+        assertTrue(m.find());
+        assertEquals("POST", m.group("method"));
+        assertEquals("404", m.group("status"));
+        assertFalse(m.find());
+
+        // the literal must lie within the region
+        m = p.matcher(new StringBuilder(line));
+        m.region(0, line.indexOf("404") + 1);
+        assertTrue(m.find());
+        assertEquals("4", m.group("status"));
+        m.region(0, line.indexOf("404"));
+        assertFalse(m.find());
+    }
+
+    @Test
+    public void testFindWithRequiredLiteralAfterVariableLengthPrefix() {
+        Pattern2 p = Pattern2.compile("(?:ab|c)?x{1,3}ERROR(?<code>\\d)");
+        Matcher2 m = p.matcher("xxxxERROR1 cxERROR ERROR2 abxERROR3");
+        assertTrue(m.find());
+        assertEquals("xxxERROR1", m.group());
+        assertTrue(m.find());
+        assertEquals("abxERROR3", m.group());
+        assertFalse(m.find());
+    }
+
+    @Test
+    public void testFindWithAlternativesDispatchedOnFirstChar() {
+        Pattern2 p = Pattern2.compile("(?<method>GET|POST|PUT|DELETE|(?i:head)|) (?<path>/\\S*)");
+        Matcher2 m = p.matcher("x PUT /a HEAD /b DEL /c GET /d");
+        assertTrue(m.find());
+        assertEquals("PUT", m.group("method"));
+        assertTrue(m.find());
+        assertEquals("HEAD", m.group("method"));
+        assertTrue(m.find());
+        // the empty alternative matches before " /c"
+        assertEquals("", m.group("method"));
+        assertEquals("/c", m.group("path"));
+        assertTrue(m.find());
+        assertEquals("GET", m.group("method"));
+        assertFalse(m.find());
+    }
+
+    @Test
+    public void testDispatchKeepsHitEndAndRequireEndOfAssertions() {
+        // $ is tried before the final line terminator even if no y follows
+        for (String re : new String[] { "x|$y", "(?:$b|a)" }) {
+            Matcher2 m = Pattern2.compile(re).matcher("\n");
+            assertFalse(re, m.matches());
+            assertTrue(re, m.hitEnd());
+            assertTrue(re, m.requireEnd());
+            m = Pattern2.compile(re).matcher("\n");
+            assertFalse(re, m.lookingAt());
+            assertTrue(re, m.hitEnd());
+            assertTrue(re, m.requireEnd());
+        }
+    }
+
+    @Test
+    public void testFindKeepsGroupsLeftByFailedAttempts() {
+        // The failed attempt at 0 leaves group 1 set to "" for \1
+        Matcher2 m = Pattern2.compile("(^)*+([ab]++)\\1+?").matcher("AB\n xAba");
+        assertTrue(m.find());
+        assertEquals(6, m.start());
+        assertEquals(8, m.end());
+        assertEquals("", m.group(1));
+
+        // The failed attempt at 0 leaves group 1 set by the lookahead
+        m = Pattern2.compile("(?=a(.))?y").matcher("acy");
+        assertTrue(m.find());
+        assertEquals(2, m.start());
+        assertEquals("c", m.group(1));
+    }
+
+    @Test
+    public void testFindLiteralInNonAsciiText() {
+        String text = "\u0430\u0431\u0432\u0433 \u0430\u0431\u0432\u0433\u0434 abcd";
+        Pattern2 p = Pattern2.compile("\u0431\u0432\u0433\u0434");
+        Matcher2 m = p.matcher(text);
+        assertTrue(m.find());
+        assertEquals(6, m.start());
+        m = p.matcher(new StringBuilder(text));
+        assertTrue(m.find());
+        assertEquals(6, m.start());
+        assertFalse(m.find());
+        assertFalse(Pattern2.compile("\u0430bcd").matcher(text).find());
+    }
+
+    @Test
+    public void testFindCaseInsensitiveLiteral() {
+        String text = "warning: Error 1, ERROR 2, eRRoR 3";
+        Matcher2 m = Pattern2.compile("error", Pattern2.CASE_INSENSITIVE).matcher(text);
+        assertTrue(m.find());
+        assertEquals("Error", m.group());
+        assertTrue(m.find());
+        assertEquals("ERROR", m.group());
+        assertTrue(m.find());
+        assertEquals("eRRoR", m.group());
+        assertFalse(m.find());
+
+        m = Pattern2.compile("(?<n>\\d), e", Pattern2.CASE_INSENSITIVE).matcher(text);
+        assertTrue(m.find());
+        assertEquals("1", m.group("n"));
+
+        m = Pattern2.compile("ERROR 2", Pattern2.LITERAL | Pattern2.CASE_INSENSITIVE)
+                .matcher(new StringBuilder(text));
+        assertTrue(m.find());
+        assertEquals(18, m.start());
+        assertFalse(m.find());
+    }
+
+    @Test
+    public void testFindUnicodeCaseInsensitiveLiteral() {
+        // long s and the Kelvin sign fold to s and k
+        String text = "as\u212a \u017f\u212a Sk";
+        Matcher2 m = Pattern2.compile("\\bsk\\b",
+                Pattern2.CASE_INSENSITIVE | Pattern2.UNICODE_CASE).matcher(text);
+        assertTrue(m.find());
+        assertEquals(4, m.start());
+        assertTrue(m.find());
+        assertEquals(7, m.start());
+        assertFalse(m.find());
+
+        m = Pattern2.compile("\\bsk\\b", Pattern2.CASE_INSENSITIVE).matcher(text);
+        assertTrue(m.find());
+        assertEquals(7, m.start());
+        assertFalse(m.find());
+    }
+
+    @Test
+    public void testFindLongPeriodicLiteral() {
+        StringBuilder periods = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            periods.append("abaab");
+        }
+        String literal = periods.toString();
+        String text = literal.substring(3) + "x" + literal.substring(1) + "b" + literal + "a";
+        Matcher2 m = Pattern2.compile("(?<lit>" + literal + ")").matcher(new StringBuilder(text));
+        assertTrue(m.find());
+        assertEquals(text.indexOf(literal), m.start("lit"));
+        assertFalse(m.find());
+        assertTrue(Pattern2.compile("b\\d*" + literal).matcher(text).find());
+        assertFalse(Pattern2.compile("[ax]\\d*" + literal).matcher(text).find());
+    }
+
+    @Test
+    public void testFindWithManyLiteralAlternatives() {
+        StringBuilder keywords = new StringBuilder("k");
+        for (int i = 0; i < 2000; i++) {
+            keywords.append("|k").append(i);
+        }
+        String regex = "\\b(?<kw>" + keywords + ")(?<rest>\\d*)\\b";
+        String input = "k k12 k1999x k2000 k123456 kk";
+        Matcher2 m = Pattern2.compile(regex).matcher(input);
+        java.util.regex.Matcher expected = java.util.regex.Pattern.compile(regex).matcher(input);
+        while (expected.find()) {
+            assertTrue(m.find());
+            assertEquals(expected.start(), m.start());
+            assertEquals(expected.end(), m.end());
+            assertEquals(expected.group(1), m.group("kw"));
+            assertEquals(expected.group(2), m.group("rest"));
+        }
+        assertFalse(m.find());
+    }
+
+    @Test
+    public void testLiteralAlternativesKeepTheirPriority() {
+        Pattern2 p = Pattern2.compile("(?<w>a|ab|abc|b|bc|c|ca|cab)(?<t>c|x)");
+        Matcher2 m = p.matcher("abcx cabx");
+        // "a" comes first but is not followed by c or x, and "ab" comes
+        // before "abc" even though "abc" could be followed by x
+        assertTrue(m.find());
+        assertEquals("ab", m.group("w"));
+        assertEquals("c", m.group("t"));
+        assertTrue(m.find());
+        assertEquals("cab", m.group("w"));
+        assertEquals("x", m.group("t"));
+        assertEquals(5, m.start());
+        assertFalse(m.find());
+    }
+
+    @Test
+    public void testCaseInsensitiveLiteralAlternatives() {
+        Pattern2 p = Pattern2.compile("(?<day>mon|tue|wed|thu|fri|sat|sun|today)-",
+                Pattern2.CASE_INSENSITIVE);
+        Matcher2 m = p.matcher("SAT- Today- FRIDAY- sUn-");
+        assertTrue(m.find());
+        assertEquals("SAT", m.group("day"));
+        assertTrue(m.find());
+        assertEquals("Today", m.group("day"));
+        assertTrue(m.find());
+        assertEquals("sUn", m.group("day"));
+        assertFalse(m.find());
+
+        p = Pattern2.compile("(?<w>stra\u00dfe|stop|mon|tue|wed|thu|fri|sat)",
+                Pattern2.CASE_INSENSITIVE | Pattern2.UNICODE_CASE);
+        m = p.matcher("STRASSE STRA\u1e9eE Stra\u00dfe");
+        assertTrue(m.find());
+        assertEquals(8, m.start("w"));
+        assertTrue(m.find());
+        assertEquals("Stra\u00dfe", m.group("w"));
+        assertFalse(m.find());
+    }
+
+    @Test
+    public void testMatchesAndFindWithoutMatcher() {
+        Pattern2 p = Pattern2.compile("(?<date>\\d{4}-\\d\\d-\\d\\d) (?<lvl>[A-Z]+)(?: .*)?$");
+        assertTrue(p.matches("2013-01-02 INFO started"));
+        assertTrue(p.matches("2013-01-02 WARN"));
+        assertFalse(p.matches("2013-01-02 WARN\n"));
+        assertFalse(p.matches("2013-1-02 INFO started"));
+        assertTrue(p.find("x 2013-01-02 INFO started"));
+        assertTrue(p.find("2013-01-02 WARN\n"));
+        assertFalse(p.find("2013-01-02 WARN\nx"));
+        assertFalse(p.find("2013-01-02 info"));
+
+        Pattern2 q = Pattern2.compile("^(?:a|ab)*c{2,3}\\z", Pattern2.CASE_INSENSITIVE);
+        assertTrue(q.matches("AbaCC"));
+        assertFalse(q.matches("abcccc"));
+        assertTrue(q.find("abacc"));
+        assertFalse(q.find("xabacc"));
+    }
+
+    @Test
+    public void testMatchesAndFindFallBackToMatcher() {
+        // back reference
+        Pattern2 p = Pattern2.compile("(?<c>[a-z])\\k<c>");
+        assertTrue(p.matches("aa"));
+        assertFalse(p.matches("ab"));
+        assertTrue(p.find("abcc"));
+        assertFalse(p.find("abc"));
+
+        // surrogate pairs in the input
+        Pattern2 q = Pattern2.compile("x.y");
+        assertTrue(q.matches("x\ud801\udc00y"));
+        assertTrue(q.find("ax\ud801\udc00y"));
+        assertFalse(q.find("ax\ud801\udc00\ud801\udc00y"));
+    }
+
+    @Test
+    public void testFailedSearchKeepsRequireEndOfDollar() {
+        // the search is not cut short by the DFA, which can't tell
+        // requireEnd
+        Matcher2 m = Pattern2.compile("x|$y").matcher("\n");
+        assertFalse(m.find());
+        assertTrue(m.hitEnd());
+        assertTrue(m.requireEnd());
+        m = Pattern2.compile("ab$").matcher("xab");
+        assertTrue(m.find());
+        assertTrue(m.requireEnd());
+        m = Pattern2.compile("ab$").matcher("xabc");
+        assertFalse(m.find());
+        assertTrue(m.hitEnd());
+        assertFalse(m.requireEnd());
+    }
+
+    @Test
+    public void testFailedSearchKeepsRequireEndOfEndChecks() {
+        // the search doesn't skip to the required literal, which would
+        // fail before \B or $ can tell requireEnd
+        for (String re : new String[] { "(.+\\B)ax", "(.+$)ax", "(.+(?!y))ax" }) {
+            java.util.regex.Matcher jdk = java.util.regex.Pattern.compile(re).matcher("  x");
+            Matcher2 m = Pattern2.compile(re).matcher("  x");
+            assertEquals(re, jdk.find(), m.find());
+            assertEquals(re, jdk.hitEnd(), m.hitEnd());
+            assertEquals(re, jdk.requireEnd(), m.requireEnd());
+        }
+        Matcher2 m = Pattern2.compile("(.+\\B)ax").matcher("  x");
+        assertFalse(m.find());
+        assertTrue(m.requireEnd());
+    }
+
+    @Test
+    public void testLinearTimeGroupsMatchBacktracking() {
+        String[] regexes = {
+            "(?<y>\\d+)-(?<m>\\d+)?(?:-(?<d>\\d+))*",
+            "(?<a>a|ab)(?<b>c|bcd)(?<c>d*)",
+            "(?<w>a*?)(?<x>a*)b",
+            "(?<v>a*)*",
+            "(?<u>a|)*b",
+        };
+        String[] inputs = { "x 2013-01-02-03 y", "abcd", "aaab", "aa", "aab", "" };
+        for (String regex : regexes) {
+            Pattern2 linear = Pattern2.compile(regex, Pattern2.LINEAR_TIME);
+            Pattern2 backtracking = Pattern2.compile(regex);
+            assertTrue(regex, linear.pattern().isLinearTime());
+            assertFalse(regex, backtracking.pattern().isLinearTime());
+            for (String input : inputs) {
+                Matcher2 m1 = linear.matcher(input);
+                Matcher2 m2 = backtracking.matcher(input);
+                while (true) {
+                    boolean found = m2.find();
+                    assertEquals(regex + " on " + input, found, m1.find());
+                    if (!found) {
+                        break;
+                    }
+                    for (int g = 0; g <= m2.groupCount(); g++) {
+                        assertEquals(regex + " on " + input, m2.start(g), m1.start(g));
+                        assertEquals(regex + " on " + input, m2.end(g), m1.end(g));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLinearTimeEmptyIterationsKeepGroups() {
+        // an empty iteration of a repeated group leaves the group as it was
+        Matcher2 m = Pattern2.compile("(?<c>^)*", Pattern2.LINEAR_TIME).matcher("x");
+        assertTrue(m.find());
+        assertEquals(0, m.start());
+        assertNull(m.group("c"));
+        m = Pattern2.compile("^((?<c>^){0,2}(a{1,3}\\.{0,2})+)??b+?", Pattern2.LINEAR_TIME)
+            .matcher("aa.b");
+        assertTrue(m.find());
+        assertEquals(-1, m.start("c"));
+
+        String[] regexes = { "(?<c>^)*", "^((?<c>^){0,2}(a{1,3}\\.{0,2})+)??b+?",
+                             "(?<a>a?){2,3}c", "(?<b>b?)*?c", "x(?<d>a|$)*" };
+        String[] inputs = { "x", "aa.b", "ac", "abc", "xa", "c" };
+        for (String regex : regexes) {
+            Pattern2 linear = Pattern2.compile(regex, Pattern2.LINEAR_TIME);
+            Pattern2 backtracking = Pattern2.compile(regex);
+            assertTrue(regex, linear.pattern().isLinearTime());
+            for (String input : inputs) {
+                Matcher2 m1 = linear.matcher(input);
+                Matcher2 m2 = backtracking.matcher(input);
+                while (m2.find()) {
+                    assertTrue(regex + " on " + input, m1.find());
+                    for (int g = 0; g <= m2.groupCount(); g++) {
+                        assertEquals(regex + " on " + input, m2.start(g), m1.start(g));
+                        assertEquals(regex + " on " + input, m2.end(g), m1.end(g));
+                    }
+                }
+                assertFalse(regex + " on " + input, m1.find());
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testLinearTimeCatastrophicPattern() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append('a');
+        }
+        Pattern2 p = Pattern2.compile("(?<x>a|aa)*b", Pattern2.LINEAR_TIME);
+        assertTrue(p.pattern().isLinearTime());
+        assertFalse(p.matcher(sb).matches());
+        assertFalse(p.matcher(sb).find());
+        sb.append('b');
+        Matcher2 m = p.matcher(sb);
+        assertTrue(m.matches());
+        assertEquals(sb.length() - 2, m.start("x"));
+    }
+
+    @Test
+    public void testLinearTimeFallsBackForBackReferences() {
+        Pattern2 p = Pattern2.compile("(?<c>[a-z])\\k<c>", Pattern2.LINEAR_TIME);
+        assertFalse(p.pattern().isLinearTime());
+        Matcher2 m = p.matcher("abcc");
+        assertTrue(m.find());
+        assertEquals("c", m.group("c"));
+    }
+
+    @Test
+    public void testLongLoopsDoNotOverflowTheStack() throws InterruptedException {
+        final StringBuilder sb = new StringBuilder();
+        final StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append("ab");
+            csv.append(i % 2 == 0 ? "ab," : "a,");
+        }
+        csv.append("ba");
+        final List<Object> results = new ArrayList<Object>();
+        Thread t = new Thread(null, new Runnable() {
+            public void run() {
+                try {
+                    Matcher2 m = Pattern2.compile("(?<x>a|b)*").matcher(sb);
+                    results.add(m.find());
+                    results.add(m.end());
+                    results.add(m.start("x"));
+                    m = Pattern2.compile("(?:(?<p>a)|b)*?").matcher(sb);
+                    results.add(m.matches());
+                    results.add(m.start("p"));
+                    m = Pattern2.compile("(?<w>(?:a|b)+,)*(?<last>(?:a|b)+)").matcher(csv);
+                    results.add(m.matches());
+                    results.add(m.group("w"));
+                    results.add(m.group("last"));
+                } catch (StackOverflowError e) {
+                    results.add(e);
+                }
+            }
+        }, "small stack", 256 * 1024);
+        t.start();
+        t.join();
+        assertEquals(8, results.size());
+        assertEquals(true, results.get(0));
+        assertEquals(sb.length(), results.get(1));
+        assertEquals(sb.length() - 1, results.get(2));
+        assertEquals(true, results.get(3));
+        assertEquals(sb.length() - 2, results.get(4));
+        assertEquals(true, results.get(5));
+        assertEquals("a,", results.get(6));
+        assertEquals("ba", results.get(7));
+    }
+
+    @Test
+    public void testStepBudgetStopsCatastrophicBacktracking() {
+        String input = "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxx";
+        Matcher2 m = Pattern2.compile("(?<p>x+x+)+(?=y)").matcher(input).useStepBudget(10000);
+        assertEquals(10000, m.stepBudget());
+        try {
+            m.find();
+            fail("expected MatchBudgetExceededException");
+        } catch (MatchBudgetExceededException e) {
+            assertEquals(10000, e.getSteps());
+            assertFalse(e.isDeadlineExceeded());
+        }
+        // The budget applies to each operation, and is kept across resets
+        m.reset("xxy");
+        assertTrue(m.find());
+        assertEquals("xx", m.group("p"));
+        m.useStepBudget(-1);
+        assertEquals(-1, m.stepBudget());
+    }
+
+    @Test
+    public void testDeadlineStopsCatastrophicBacktracking() {
+        String input = "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx";
+        Matcher2 m = Pattern2.compile("(?<p>x+x+)+(?=y)").matcher(input)
+            .useDeadline(20, TimeUnit.MILLISECONDS);
+        try {
+            m.matches();
+            fail("expected MatchBudgetExceededException");
+        } catch (MatchBudgetExceededException e) {
+            assertTrue(e.isDeadlineExceeded());
+            assertTrue(e.getSteps() > 0);
+        }
+        m.useDeadline(-1, TimeUnit.MILLISECONDS);
+        m.reset("xxxxy");
+        assertTrue(m.find());
+    }
+
+    @Test
+    public void testExpiredDeadlineStopsShortOperations() {
+        Matcher2 m = Pattern2.compile("a+b").matcher("xxaab xab");
+        assertTrue(m.find());
+        m.useDeadline(0, TimeUnit.NANOSECONDS);
+        try {
+            m.find();
+            fail("expected MatchBudgetExceededException");
+        } catch (MatchBudgetExceededException e) {
+            assertTrue(e.isDeadlineExceeded());
+            assertEquals(0, e.getSteps());
+        }
+        try {
+            m.group();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // the previous match is gone
+        }
+        m.useDeadline(-1, TimeUnit.NANOSECONDS);
+        assertTrue(m.find(0));
+    }
+
+    @Test
+    public void testGreedyQuantifiersThatCannotBackOffUsefully() {
+        // The loops are made possessive, so failing takes linear time
+        String input = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!";
+        Matcher2 m = Pattern2.compile("(?<l>a|a)*b").matcher(input).useStepBudget(100000);
+        assertFalse(m.matches());
+        assertFalse(m.find());
+        assertEquals(PatternAnalysis.Complexity.LINEAR,
+                     Pattern2.compile("(?<l>a|a)*b").analyze().complexity());
+
+        // and the matches and groups are those of the greedy quantifiers
+        m = Pattern2.compile("(?<l>a|b)*c").matcher("xababcabd");
+        assertTrue(m.find());
+        assertEquals("ababc", m.group());
+        assertEquals("b", m.group("l"));
+        m = Pattern2.compile("(?<n>\\d+)\\s(?<w>\\w+):").matcher("12 34 ab: x");
+        assertTrue(m.find());
+        assertEquals("34", m.group("n"));
+        assertEquals("ab", m.group("w"));
+        m = Pattern2.compile("(?<p>ab)+c|(?<q>ab)+a").matcher("ababa");
+        assertTrue(m.matches());
+        assertEquals("ab", m.group("q"));
+    }
+
+    @Test
+    public void testAnalyzeFindsCatastrophicBacktracking() {
+        PatternAnalysis a = Pattern2.compile("(?<w>\\w+\\s?)*$").analyze();
+        assertEquals(PatternAnalysis.Complexity.EXPONENTIAL, a.complexity());
+        assertNotNull(a.pump());
+        Matcher2 m = Pattern2.compile("(?<w>\\w+\\s?)*$").matcher(a.witness(30))
+            .useStepBudget(1000000);
+        try {
+            m.matches();
+            fail("expected MatchBudgetExceededException");
+        } catch (MatchBudgetExceededException e) {
+            assertFalse(e.isDeadlineExceeded());
+        }
+
+        a = Pattern2.compile("a*a*b").analyze();
+        assertEquals(PatternAnalysis.Complexity.POLYNOMIAL, a.complexity());
+        assertFalse(Pattern2.compile("a*a*b").matcher(a.witness(10)).matches());
+    }
+
+    @Test
+    public void testAnalyzeFindsLinearPatterns() {
+        for (String re : new String[] { "\\d+\\.\\d+", "(?<a>a++)+b", "(?>a|a)*b",
+                                        "(?<x>ab|a)*c", "\\s+$" }) {
+            PatternAnalysis a = Pattern2.compile(re).analyze();
+            assertEquals(re, PatternAnalysis.Complexity.LINEAR, a.complexity());
+            assertNull(a.witness(10));
+        }
+    }
+
+    @Test
+    public void testSimplifiedTreesMatchAsWritten() {
+        // Adjacent literals across pure groups become one literal
+        Matcher2 m = Pattern2.compile("(?:ab)(?:c)d|(?i:x)(?:)y").matcher("zabcdXy");
+        assertTrue(m.find());
+        assertEquals("abcd", m.group());
+        assertTrue(m.find());
+        assertEquals("Xy", m.group());
+
+        // alternations of single chars become a class
+        m = Pattern2.compile("(?<c>a|[x-z]|\\d)+!").matcher("-ay7!");
+        assertTrue(m.find());
+        assertEquals("ay7!", m.group());
+        assertEquals("7", m.group("c"));
+        assertTrue(Pattern2.compile("(?:\\x{1F600}|\\p{L})b").matcher("\uD83D\uDE00b").matches());
+        assertFalse(Pattern2.compile("(?:\\x{1F600}|\\p{L})b").matcher("\uD83Db").matches());
+    }
+
+    @Test
+    public void testAlternativeAfterOptionalGroupIsItsOwn() {
+        // the empty alternative is not added to the (a)? branch
+        String[] regexes = { "(a)?x|", "(?:a)?x|", "()?.|", "(a)?x|y|" };
+        for (String regex : regexes) {
+            for (int flags : new int[] { 0, Pattern2.LINEAR_TIME }) {
+                Matcher2 m = Pattern2.compile(regex, flags).matcher("");
+                assertTrue(regex, m.find());
+                assertEquals(regex, 0, m.end());
+            }
+        }
+        Matcher2 m = Pattern2.compile("(a)?x|y|").matcher("by");
+        assertTrue(m.find());
+        assertEquals(0, m.end());
+        assertTrue(m.find());
+        assertEquals("y", m.group());
+    }
+
+    @Test
+    public void testFactoredAlternationsMatchInOrder() {
+        Matcher2 m = Pattern2.compile("/api/v1/users/(?<u>\\d+)|/api/v1/orders/(?<o>\\d+)|/api/v1/items")
+            .matcher("GET /api/v1/orders/42 /api/v1/items");
+        assertTrue(m.find());
+        assertEquals("/api/v1/orders/42", m.group());
+        assertNull(m.group("u"));
+        assertEquals("42", m.group("o"));
+        assertTrue(m.find());
+        assertEquals("/api/v1/items", m.group());
+
+        // the first alternative that matches wins, even if it is shorter
+        m = Pattern2.compile("ab|abc|(?<b>b)c").matcher("abc");
+        assertTrue(m.find());
+        assertEquals("ab", m.group());
+        assertFalse(m.find());
+        m = Pattern2.compile("(?i)(?<k>foo|ba)_id|bar_id").matcher("BAR_ID");
+        assertTrue(m.find());
+        assertEquals("BAR_ID", m.group());
+        assertNull(m.group("k"));
+    }
 }
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2012-2013 The named-regexp Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.regexp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link PatternCache}
+ */
+public class PatternCacheTest {
+
+    @Test
+    public void testCompileReturnsCachedInstance() {
+        PatternCache cache = new PatternCache(10);
+        Pattern2 p = cache.compile("(?<named>x)");
+        assertSame(p, cache.compile("(?<named>x)"));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void testFlagsArePartOfKey() {
+        PatternCache cache = new PatternCache(10);
+        Pattern2 p1 = cache.compile("(?<named>x)");
+        Pattern2 p2 = cache.compile("(?<named>x)", Pattern2.CASE_INSENSITIVE);
+        assertNotSame(p1, p2);
+        assertEquals(Pattern2.CASE_INSENSITIVE, p2.flags());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() {
+        PatternCache cache = new PatternCache(2, PatternCache.Policy.LRU);
+        Pattern2 a = cache.compile("a");
+        cache.compile("b");
+        cache.compile("a");
+        cache.compile("c");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictionCount());
+        assertSame(a, cache.compile("a"));
+        assertEquals(2, cache.hitCount());
+    }
+
+    @Test
+    public void testTinyLfuKeepsFrequentPatterns() {
+        PatternCache cache = new PatternCache(100, PatternCache.Policy.TINY_LFU);
+        Pattern2 hot = cache.compile("(?<hot>x)");
+        for (int i = 0; i < 20; i++) {
+            cache.compile("(?<hot>x)");
+        }
+        // a scan of one-off patterns must not flush the popular one
+        for (int i = 0; i < 1000; i++) {
+            cache.compile("(?<cold>x)" + i);
+        }
+        assertTrue(cache.size() <= 100);
+        assertTrue(cache.evictionCount() > 0);
+        assertSame(hot, cache.compile("(?<hot>x)"));
+    }
+
+    @Test
+    public void testWarmUpDoesNotCountLookups() {
+        PatternCache cache = new PatternCache(10);
+        assertEquals(2, cache.warmUp(Arrays.asList("(?<a>x)", "(?<b>y)")));
+        assertEquals(2, cache.size());
+        cache.compile("(?<a>x)");
+        assertEquals(1, cache.hitCount());
+        assertEquals(0, cache.missCount());
+    }
+
+    @Test
+    public void testClearResetsCounters() {
+        PatternCache cache = new PatternCache(1);
+        cache.compile("a");
+        cache.compile("b");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.missCount());
+        assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    public void testCompileCachedUsesDefaultCache() {
+        Pattern2 p = Pattern2.compileCached("(?<named>x)(?<other>y)", Pattern2.DOTALL);
+        assertSame(p, PatternCache.defaultCache().compile("(?<named>x)(?<other>y)", Pattern2.DOTALL));
+        assertEquals(1, p.indexOf("other"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveSizeThrows() {
+        new PatternCache(0);
+    }
+}